@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sailpoint.ets.cloud.queue.api.AuthorizationHelper;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * The credential handling done for every request: extracting the token or Basic credentials from the
+ * Authorization header, and hashing and validating passwords.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthorizationBenchmark {
+
+	private String salt;
+	private String password;
+	private String hashedPassword;
+	private String bearerHeader;
+	private String basicHeader;
+
+	@Setup
+	public void setup() {
+		salt = "S3cr3tS@lt51";
+		password = "V3r4S3cr3tP@ssw0rd";
+		hashedPassword = AuthorizationHelper.ssha256(salt, password);
+		bearerHeader = "Bearer 2c4f3d1e9a8b7c6d5e4f3a2b1c0d9e8f7a6b5c4d3e2f1a0b9c8d7e6f5a4b3c2d";
+		basicHeader = "Basic " + Base64.getEncoder().encodeToString("spadmin:admin".getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Benchmark
+	public String ssha256() {
+		return AuthorizationHelper.ssha256(salt, password);
+	}
+
+	@Benchmark
+	public boolean validatePassword() {
+		return AuthorizationHelper.validatePassword(hashedPassword, password);
+	}
+
+	@Benchmark
+	public String getBearerToken() {
+		return AuthorizationHelper.getBearerToken(bearerHeader);
+	}
+
+	@Benchmark
+	public Map<String, String> getBasicCredentials() {
+		return AuthorizationHelper.getBasicCredentials(basicHeader);
+	}
+}
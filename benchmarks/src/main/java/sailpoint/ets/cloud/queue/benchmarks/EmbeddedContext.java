@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+import javax.servlet.ServletContext;
+
+import sailpoint.ets.cloud.queue.api.AuthorizationHelper;
+import sailpoint.ets.cloud.queue.api.ETSContext;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Starts an {@link ETSContext} on an in-memory H2 database, standing in for the web application and MySQL. A
+ * temporary directory takes the place of the web application: it receives the H2 schema scripts and a generated
+ * queue.properties. A queue, a user and a token with read and write access are created for the benchmarks.
+ */
+public class EmbeddedContext {
+
+	public static final String ADMIN_USER = "benchmark";
+	public static final String ADMIN_PASSWORD = "benchmark";
+
+	private final Path directory;
+	private final ETSContext context;
+	private final String queue;
+	private final String token;
+
+	/**
+	 * @param store			The queue store: h2, memory or segment.
+	 * @param writeBehind	Whether to enable the write-behind buffer.
+	 * @param overrides		Additional queue.properties settings, or null.
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	public EmbeddedContext(String store, boolean writeBehind, Map<String, String> overrides) throws IOException, SQLException {
+		this.directory = Files.createTempDirectory("ets-benchmark");
+		Path database = Paths.get(getWebApp(), "WEB-INF", "database");
+		copy(database, directory.resolve("WEB-INF").resolve("database"));
+
+		Properties properties = new Properties();
+		// A named in-memory database, kept until the context closes its pool
+		properties.setProperty("db.pool.url", "jdbc:h2:mem:" + directory.getFileName() + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+		properties.setProperty("db.pool.driver", "org.h2.Driver");
+		properties.setProperty("db.pool.user", "sa");
+		properties.setProperty("db.pool.password", "");
+		properties.setProperty("db.pool.maxTotal", "32");
+		properties.setProperty("db.pool.maxIdle", "32");
+		properties.setProperty("queue.store", store);
+		properties.setProperty("store.segment.dir", directory.resolve("segments").toString());
+		properties.setProperty("queue.writeBehind", String.valueOf(writeBehind));
+		properties.setProperty("db.queue.maxage", "0");
+		properties.setProperty("db.queue.maxbatch", "100");
+		properties.setProperty("admin.user", ADMIN_USER);
+		properties.setProperty("admin.pass", AuthorizationHelper.ssha256("benchmark", ADMIN_PASSWORD));
+		properties.setProperty(ETSContext.PROPERTY_TOKEN_SALT, "benchmark");
+		if (overrides != null) {
+			properties.putAll(overrides);
+		}
+		File classes = directory.resolve("WEB-INF").resolve("classes").toFile();
+		classes.mkdirs();
+		try (OutputStream out = new FileOutputStream(new File(classes, "queue.properties"))) {
+			properties.store(out, "Generated for the benchmarks");
+		}
+
+		this.context = ETSContext.initialize(servletContext(directory.toString() + File.separator));
+		this.queue = context.createQueue("benchmark").get("id");
+		String user = context.createUser("benchmark", "Benchmark", true).get("id");
+		context.setUserAuthorization(user, queue, true, true);
+		this.token = context.createUserToken(user, "benchmark", null).get("token");
+	}
+
+	public ETSContext getContext() {
+		return context;
+	}
+
+	/**
+	 * The id of the benchmark queue.
+	 *
+	 * @return
+	 */
+	public String getQueue() {
+		return queue;
+	}
+
+	/**
+	 * A plain text token with read and write access to the benchmark queue.
+	 *
+	 * @return
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * Shut down the context and remove the temporary directory.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		ETSContext.shutdown();
+		try (Stream<Path> paths = Files.walk(directory)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	/**
+	 * The web application directory, from the ets.webapp system property or the value set at build time.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	private static String getWebApp() throws IOException {
+		String webApp = System.getProperty("ets.webapp");
+		if (webApp == null) {
+			Properties properties = new Properties();
+			try (InputStream in = EmbeddedContext.class.getResourceAsStream("/benchmark.properties")) {
+				if (in != null) {
+					properties.load(in);
+				}
+			}
+			webApp = properties.getProperty("ets.webapp", "../src/main/web");
+		}
+		return webApp;
+	}
+
+	private static void copy(Path source, Path target) throws IOException {
+		try (Stream<Path> paths = Files.walk(source)) {
+			for (Path path : (Iterable<Path>) paths::iterator) {
+				Path destination = target.resolve(source.relativize(path).toString());
+				if (Files.isDirectory(path)) {
+					Files.createDirectories(destination);
+				} else {
+					Files.copy(path, destination, StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A servlet context that only knows its real path, which is all the ETSContext asks for.
+	 *
+	 * @param realPath
+	 * @return
+	 */
+	private static ServletContext servletContext(final String realPath) {
+		return (ServletContext) Proxy.newProxyInstance(EmbeddedContext.class.getClassLoader(),
+				new Class<?>[] { ServletContext.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getRealPath":
+						return realPath;
+					case "toString":
+						return "EmbeddedContext(" + realPath + ")";
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					default:
+						return null;
+					}
+				});
+	}
+}
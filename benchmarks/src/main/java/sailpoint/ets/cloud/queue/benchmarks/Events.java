@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.benchmarks;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Sample event payloads, shaped like the identity attribute change events sent by IdentityNow.
+ */
+public class Events {
+
+	private Events() {
+	}
+
+	/**
+	 * An event with the specified number of attribute changes.
+	 *
+	 * @param attributes
+	 * @return
+	 */
+	public static String event(int attributes) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"identity\":{\"id\":\"2c9180857e5f7a6d017e6a2b3c4d5e6f\",\"name\":\"john.doe\",\"type\":\"IDENTITY\"},");
+		sb.append("\"changes\":[");
+		for (int i = 0; i < attributes; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"attribute\":\"attribute").append(i).append("\",");
+			sb.append("\"oldValue\":\"old value ").append(i).append("\",");
+			sb.append("\"newValue\":\"new value ").append(i).append("\"}");
+		}
+		sb.append("],\"_metadata\":{\"triggerType\":\"FIRE_AND_FORGET\",");
+		sb.append("\"triggerId\":\"idn:identity-attributes-changed\",\"invocationId\":\"0f11f2a4-7c94-4bf3-a2bd-742580fe3bde\"}}");
+		return sb.toString();
+	}
+}
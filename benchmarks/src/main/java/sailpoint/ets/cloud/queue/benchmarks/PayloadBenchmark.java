@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.benchmarks;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.reflect.TypeToken;
+
+import sailpoint.ets.cloud.queue.rest.GsonProvider;
+import sailpoint.ets.cloud.queue.store.PayloadCodec;
+import sailpoint.ets.cloud.queue.tools.JsonPayload;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * The payload handling of trigger and poll calls: validating and splitting trigger bodies, adding the
+ * __hasMore property to a polled entry and encoding entries for storage. The gsonRoundTrip benchmark is the
+ * parse-to-map-and-back approach the payload handling replaced, as a reference.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PayloadBenchmark {
+
+	private static final String[] TRIGGER_ID = { "_metadata", "triggerId" };
+
+	@Param({ "10", "100" })
+	public int attributes;
+
+	private String event;
+	private String batch;
+	private byte[] stored;
+	private PayloadCodec codec;
+
+	@Setup
+	public void setup() {
+		event = Events.event(attributes);
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < 100; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(event);
+		}
+		batch = sb.append(']').toString();
+		codec = new PayloadCodec(true, 6, 256, null);
+		stored = codec.encode(event);
+	}
+
+	@Benchmark
+	public String triggerRequireObject() {
+		return JsonPayload.requireObject(event);
+	}
+
+	@Benchmark
+	public List<String> triggerBatchSplitArray() {
+		return JsonPayload.splitArray(batch);
+	}
+
+	@Benchmark
+	public String triggerExtractAttribute() {
+		return JsonPayload.extract(event, TRIGGER_ID);
+	}
+
+	@Benchmark
+	public String pollWithHasMore() {
+		return JsonPayload.withProperty(event, "__hasMore", "true");
+	}
+
+	@Benchmark
+	public String gsonRoundTrip() {
+		Map<String, Object> map = GsonProvider.getGson().fromJson(event, new TypeToken<Map<String, Object>>() {
+		}.getType());
+		map.put("__hasMore", Boolean.TRUE);
+		return GsonProvider.getGson().toJson(map);
+	}
+
+	@Benchmark
+	public byte[] encodeDeflate() {
+		return codec.encode(event);
+	}
+
+	@Benchmark
+	public String decodeDeflate() {
+		return codec.decode(stored);
+	}
+}
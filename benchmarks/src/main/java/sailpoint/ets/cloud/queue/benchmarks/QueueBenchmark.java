@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.benchmarks;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sailpoint.ets.cloud.queue.api.AuthorizationException;
+import sailpoint.ets.cloud.queue.api.ETSContext;
+import sailpoint.ets.cloud.queue.api.QueueBatch;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Enqueue, dequeue and token authorization through the {@link ETSContext}, on an embedded H2 database standing in
+ * for MySQL. The producerConsumer group runs producers and consumers on the same queue at the same time, as
+ * IdentityNow and IdentityIQ do in production. Use -t to run the other benchmarks multi-threaded, and
+ * -p authCacheTtl=0 to authorize every call against the database.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueueBenchmark {
+
+	@Param({ "h2", "memory", "segment" })
+	public String store;
+
+	@Param({ "false", "true" })
+	public boolean writeBehind;
+
+	@Param({ "60" })
+	public String authCacheTtl;
+
+	private EmbeddedContext embedded;
+	private ETSContext context;
+	private String queue;
+	private String token;
+	private String event;
+	private List<String> batch;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, SQLException {
+		embedded = new EmbeddedContext(store, writeBehind, Collections.singletonMap("auth.cache.ttl", authCacheTtl));
+		context = embedded.getContext();
+		queue = embedded.getQueue();
+		token = embedded.getToken();
+		event = Events.event(10);
+		batch = new ArrayList<String>();
+		for (int i = 0; i < 100; i++) {
+			batch.add(event);
+		}
+	}
+
+	/**
+	 * Empty the queue, so entries left by producers do not slow down the next iteration.
+	 */
+	@TearDown(Level.Iteration)
+	public void drain() {
+		while (!context.pollQueueData(queue, 100, true).isEmpty()) {
+			// Continue
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		embedded.close();
+	}
+
+	@Benchmark
+	public void enqueue() {
+		context.writeDataToQueue(queue, event);
+	}
+
+	@Benchmark
+	public int enqueueBatch() {
+		return context.writeDataToQueue(queue, batch);
+	}
+
+	/**
+	 * The trigger path: with write-behind, concurrent callers share commits.
+	 *
+	 * @return
+	 */
+	@Benchmark
+	public int enqueueAsync() {
+		return context.writeDataToQueueAsync(queue, Collections.singletonList(event)).join();
+	}
+
+	@Benchmark
+	public QueueBatch enqueueDequeue() {
+		context.writeDataToQueue(queue, event);
+		return context.pollQueueData(queue, 1, true);
+	}
+
+	@Benchmark
+	public void authorizeWrite() throws AuthorizationException {
+		context.authorizeWrite(token, queue);
+	}
+
+	@Benchmark
+	@Group("producerConsumer")
+	@GroupThreads(4)
+	public void producer() throws AuthorizationException {
+		context.authorizeWrite(token, queue);
+		context.writeDataToQueue(queue, event);
+	}
+
+	@Benchmark
+	@Group("producerConsumer")
+	@GroupThreads(4)
+	public QueueBatch consumer() throws AuthorizationException {
+		context.authorizeRead(token, queue);
+		return context.pollQueueData(queue, 10, true);
+	}
+}
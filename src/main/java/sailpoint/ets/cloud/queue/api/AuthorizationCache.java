@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.api;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * A bounded, in-memory cache of token authorization decisions, keyed by hashed token, queue and access mode. Both
+ * granted and denied decisions are cached, denied ones usually for a shorter time. Granted decisions never outlive
+ * the expiration of the token. Lookups do not lock. When the cache grows beyond its maximum size, one writer evicts
+ * expired decisions and then arbitrary ones until the cache is back to EVICT_TO of the maximum.
+ * <p>
+ * Every invalidation starts a new epoch. A decision is only cached if no invalidation happened since its lookup in
+ * the database began, as read from {@link #epoch()}, so a lookup that raced with a revocation cannot cache the
+ * revoked access again.
+ */
+public class AuthorizationCache {
+
+	private static final Logger log = LogManager.getLogger(AuthorizationCache.class);
+	// Fraction of the maximum size left after an eviction, so evictions do not run on every put of a full cache
+	private static final double EVICT_TO = 0.9;
+
+	public enum Mode {
+		READ, WRITE
+	}
+
+	private static class Key {
+		private final String token;
+		private final String queue;
+		private final Mode mode;
+
+		Key(String token, String queue, Mode mode) {
+			this.token = token;
+			this.queue = queue;
+			this.mode = mode;
+		}
+
+		@Override
+		public int hashCode() {
+			return (token.hashCode() * 31 + queue.hashCode()) * 31 + mode.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return mode == other.mode && token.equals(other.token) && queue.equals(other.queue);
+		}
+	}
+
+	private static class Decision {
+		private final boolean granted;
+		private final long expires;
+
+		Decision(boolean granted, long expires) {
+			this.granted = granted;
+			this.expires = expires;
+		}
+	}
+
+	private final long ttl;
+	private final long negativeTtl;
+	private final int maxSize;
+	private final ConcurrentHashMap<Key, Decision> decisions = new ConcurrentHashMap<Key, Decision>();
+	private final AtomicBoolean evicting = new AtomicBoolean();
+	private final AtomicLong epoch = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * @param ttl	Time in milliseconds to keep granted decisions. 0 disables the cache.
+	 * @param negativeTtl	Time in milliseconds to keep denied decisions. 0 disables caching them.
+	 * @param maxSize	The maximum number of decisions kept.
+	 */
+	public AuthorizationCache(long ttl, long negativeTtl, int maxSize) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Constructor: AuthorizationCache(%d, %d, %d)", ttl, negativeTtl, maxSize));
+		}
+		this.ttl = Math.max(0, ttl);
+		this.negativeTtl = Math.max(0, negativeTtl);
+		this.maxSize = Math.max(1, maxSize);
+	}
+
+	/**
+	 * Look up a cached decision.
+	 *
+	 * @param hashedToken
+	 * @param queue
+	 * @param mode
+	 * @return	true if granted, false if denied, null if unknown or expired.
+	 */
+	public Boolean get(String hashedToken, String queue, Mode mode) {
+		if (ttl == 0) {
+			misses.increment();
+			return null;
+		}
+		Key key = new Key(hashedToken, queue, mode);
+		Decision decision = decisions.get(key);
+		if (decision == null) {
+			misses.increment();
+			return null;
+		}
+		if (decision.expires <= System.currentTimeMillis()) {
+			// Only if not replaced by a fresh decision in the meantime
+			decisions.remove(key, decision);
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return decision.granted;
+	}
+
+	/**
+	 * The current epoch, to be read before looking up a decision in the database and passed to
+	 * {@link #grant(String, String, Mode, long, long)} or {@link #deny(String, String, Mode, long)}.
+	 *
+	 * @return
+	 */
+	public long epoch() {
+		return epoch.get();
+	}
+
+	/**
+	 * The number of lookups answered from the cache.
+	 *
+	 * @return
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * The number of lookups not answered from the cache.
+	 *
+	 * @return
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * The number of decisions cached.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return decisions.size();
+	}
+
+	/**
+	 * Cache a granted decision.
+	 *
+	 * @param hashedToken
+	 * @param queue
+	 * @param mode
+	 * @param tokenExpiration	Expiration of the token in milliseconds since the epoch, or 0 if it does not expire.
+	 * @param lookupEpoch	The epoch read before the decision was looked up.
+	 */
+	public void grant(String hashedToken, String queue, Mode mode, long tokenExpiration, long lookupEpoch) {
+		if (ttl == 0) {
+			return;
+		}
+		long expires = System.currentTimeMillis() + ttl;
+		if (tokenExpiration > 0) {
+			expires = Math.min(expires, tokenExpiration);
+		}
+		put(new Key(hashedToken, queue, mode), new Decision(true, expires), lookupEpoch);
+	}
+
+	/**
+	 * Cache a denied decision.
+	 *
+	 * @param hashedToken
+	 * @param queue
+	 * @param mode
+	 * @param lookupEpoch	The epoch read before the decision was looked up.
+	 */
+	public void deny(String hashedToken, String queue, Mode mode, long lookupEpoch) {
+		if (ttl == 0 || negativeTtl == 0) {
+			return;
+		}
+		put(new Key(hashedToken, queue, mode), new Decision(false, System.currentTimeMillis() + negativeTtl), lookupEpoch);
+	}
+
+	/**
+	 * Cache a decision, unless an invalidation happened since it was looked up. Invalidations start a new epoch
+	 * before removing decisions, so a decision put concurrently is either removed by the invalidation or seen here
+	 * to be stale and removed again.
+	 *
+	 * @param key
+	 * @param decision
+	 * @param lookupEpoch
+	 */
+	private void put(Key key, Decision decision, long lookupEpoch) {
+		if (epoch.get() != lookupEpoch) {
+			return;
+		}
+		decisions.put(key, decision);
+		if (epoch.get() != lookupEpoch) {
+			decisions.remove(key, decision);
+			return;
+		}
+		if (decisions.size() > maxSize) {
+			evict();
+		}
+	}
+
+	/**
+	 * Shrink the cache to EVICT_TO of its maximum size: expired decisions first, then arbitrary ones. Runs on one
+	 * thread at a time; other writers do not wait for it.
+	 */
+	private void evict() {
+		if (!evicting.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			int target = (int) (maxSize * EVICT_TO);
+			long now = System.currentTimeMillis();
+			decisions.values().removeIf(decision -> decision.expires <= now);
+			Iterator<Key> iterator = decisions.keySet().iterator();
+			while (decisions.size() > target && iterator.hasNext()) {
+				iterator.next();
+				iterator.remove();
+			}
+		} finally {
+			evicting.set(false);
+		}
+	}
+
+	/**
+	 * Forget all decisions for the specified queue.
+	 *
+	 * @param queue
+	 */
+	public void invalidateQueue(String queue) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: invalidateQueue(%s)", queue));
+		}
+		epoch.incrementAndGet();
+		decisions.keySet().removeIf(key -> key.queue.equals(queue));
+	}
+
+	/**
+	 * Forget all decisions for the specified token.
+	 *
+	 * @param hashedToken
+	 */
+	public void invalidateToken(String hashedToken) {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: invalidateToken(********)");
+		}
+		epoch.incrementAndGet();
+		decisions.keySet().removeIf(key -> key.token.equals(hashedToken));
+	}
+
+	/**
+	 * Forget all decisions.
+	 */
+	public void clear() {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: clear()");
+		}
+		epoch.incrementAndGet();
+		decisions.clear();
+	}
+}
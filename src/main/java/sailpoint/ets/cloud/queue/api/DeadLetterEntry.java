@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.api;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * An entry read from the dead-letter queue of a queue: an entry that was delivered the maximum number of times
+ * without being acknowledged.
+ */
+public class DeadLetterEntry extends QueueEntry {
+
+	private final int attempts;
+	private final long created;
+	private final long deadLettered;
+
+	/**
+	 * @param id	The id the entry had in its queue.
+	 * @param data
+	 * @param attempts	The number of times the entry was delivered.
+	 * @param created	The time the entry was written to its queue, in milliseconds since the epoch.
+	 * @param deadLettered	The time the entry was moved to the dead-letter queue, in milliseconds since the epoch.
+	 */
+	public DeadLetterEntry(long id, String data, int attempts, long created, long deadLettered) {
+		super(id, data);
+		this.attempts = attempts;
+		this.created = created;
+		this.deadLettered = deadLettered;
+	}
+
+	/**
+	 * The number of times the entry was delivered.
+	 *
+	 * @return
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * The time the entry was written to its queue, in milliseconds since the epoch.
+	 *
+	 * @return
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * The time the entry was moved to the dead-letter queue, in milliseconds since the epoch.
+	 *
+	 * @return
+	 */
+	public long getDeadLettered() {
+		return deadLettered;
+	}
+}
@@ -7,6 +7,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.PreparedStatement;
@@ -15,19 +16,34 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.servlet.http.HttpServletRequest;
+import javax.servlet.ServletContext;
 import javax.xml.ws.WebServiceException;
 
 import org.apache.commons.dbcp2.BasicDataSource;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
+import com.google.gson.stream.JsonWriter;
+
+import sailpoint.ets.cloud.queue.store.AttributeFilter;
+import sailpoint.ets.cloud.queue.store.EntryAttributes;
+import sailpoint.ets.cloud.queue.store.H2QueueStore;
+import sailpoint.ets.cloud.queue.store.JdbcQueueStore;
+import sailpoint.ets.cloud.queue.store.MemoryQueueStore;
+import sailpoint.ets.cloud.queue.store.PayloadCodec;
+import sailpoint.ets.cloud.queue.store.QueueStore;
+import sailpoint.ets.cloud.queue.store.SegmentLogQueueStore;
+import sailpoint.ets.cloud.queue.tools.PrometheusWriter;
 import sailpoint.ets.cloud.queue.tools.Util;
 
 /**
@@ -39,25 +55,76 @@ import sailpoint.ets.cloud.queue.tools.Util;
  */
 public class ETSContext {
 
-	private HttpServletRequest servletRequest = null;
-
 	private static final Logger log = LogManager.getLogger(ETSContext.class);
-	private static BasicDataSource dataSource = null;
-	private static Connection connection = null;
-	private static Properties properties = null;
-	private int maxEntryAge = 3600;
+	private static volatile ETSContext instance = null;
+
+	private final ServletContext servletContext;
+	private volatile BasicDataSource dataSource = null;
+	private volatile Properties properties = null;
+	private volatile int maxEntryAge = 3600;
+	private volatile int maxBatchSize = 100;
+	private volatile int maxPollWait = 60;
+	private volatile int maxLease = 3600;
+	private volatile int maxAttempts = 5;
+	private volatile int priorityAging = 300;
+	private volatile int subscriptionLag = 5;
+	// Per-queue max_attempts, for queues that set one; refreshed by the reaper
+	private volatile Map<String, Integer> queueMaxAttempts = new ConcurrentHashMap<String, Integer>();
+	// Whether queues are read through subscriptions, as last read from the database
+	private final Map<String, SubscriptionCheck> subscribedQueues = new ConcurrentHashMap<String, SubscriptionCheck>();
+	private volatile int httpCompressionMinSize = 1024;
+	private volatile AuthorizationCache authorizationCache = new AuthorizationCache(0, 0, 0);
+	private final QueueReaper reaper;
+	private final QueueWaiters waiters = new QueueWaiters();
+	private final QueueMetrics metrics = new QueueMetrics();
+	private final Map<String, QueueStore> stores = new ConcurrentHashMap<String, QueueStore>();
+	private volatile String defaultStoreType = STORE_MYSQL;
+	private volatile Map<String, String> queueStoreTypes = new HashMap<String, String>();
+	private volatile WriteBehindBuffer writeBehind;
+	private volatile PayloadCodec plainCodec = new PayloadCodec();
+	private volatile PayloadCodec deflateCodec = plainCodec;
+	private volatile String defaultCompression = COMPRESSION_NONE;
+	private volatile Map<String, String> queueCompression = new HashMap<String, String>();
+	private volatile EntryAttributes entryAttributes = EntryAttributes.NONE;
+	private volatile boolean metricsAuthentication = true;
+	private final AtomicInteger poolWaiting = new AtomicInteger();
+
+	// Kept per method, so recording does not look up the histogram
+	private static final Instrumentation.Histogram poolWait = Instrumentation.POOL_WAIT.get("main");
+	private static final Instrumentation.Histogram jdbcAuthorize = Instrumentation.JDBC.get("authorize");
+	private static final Instrumentation.Histogram jdbcWrite = Instrumentation.JDBC.get("writeDataToQueue");
+	private static final Instrumentation.Histogram jdbcPoll = Instrumentation.JDBC.get("pollQueueData");
+	private static final Instrumentation.Histogram jdbcLease = Instrumentation.JDBC.get("leaseQueueData");
+	private static final Instrumentation.Histogram jdbcAckLeases = Instrumentation.JDBC.get("ackQueueLeases");
+	private static final Instrumentation.Histogram jdbcReleaseLeases = Instrumentation.JDBC.get("releaseQueueLeases");
+	private static final Instrumentation.Histogram jdbcDeadLetters = Instrumentation.JDBC.get("deadLetters");
+	private static final Instrumentation.Histogram jdbcSubscription = Instrumentation.JDBC.get("pollSubscription");
+	// Cursor updates per subscription poll lost to other consumers of the subscription before giving up
+	private static final int SUBSCRIPTION_RETRIES = 5;
+	// How long whether a queue has subscriptions is taken from subscribedQueues before it is read again
+	private static final long SUBSCRIPTION_CHECK_TTL = 1000;
+	// The maximum number of queues or users listed at once
+	public static final int MAX_LIST_PAGE = 1000;
+	private static final Instrumentation.Histogram jdbcPurge = Instrumentation.JDBC.get("purgeExpiredEntries");
+	private static final Instrumentation.Histogram jdbcPromote = Instrumentation.JDBC.get("promoteWaitingEntries");
+	private static final Instrumentation.Histogram jdbcMaxAges = Instrumentation.JDBC.get("getQueueMaxAges");
 	
 	public final static String PROPERTY_TOKEN_SALT = "tokenSalt";
+	public final static String PROPERTY_QUEUE_STORE = "queue.store";
+	public final static String STORE_MYSQL = "mysql";
+	public final static String STORE_H2 = "h2";
+	public final static String STORE_MEMORY = "memory";
+	public final static String STORE_SEGMENT = "segment";
+	public final static String PROPERTY_QUEUE_COMPRESSION = "queue.compression";
+	public final static String COMPRESSION_NONE = "none";
+	public final static String COMPRESSION_DEFLATE = "deflate";
 	
-	private ETSContext() {
-		throw new WebServiceException("HttpServletRequest required");
-	}
-
-	private ETSContext(HttpServletRequest servletRequest) throws FileNotFoundException, IOException, SQLException {
+	private ETSContext(ServletContext servletContext) throws FileNotFoundException, IOException, SQLException {
 		if (log.isDebugEnabled()) {
-			log.debug(String.format("Constructor: ETSContext(%s)", servletRequest));
+			log.debug(String.format("Constructor: ETSContext(%s)", servletContext));
 		}
-		this.servletRequest = servletRequest;
+		this.servletContext = servletContext;
+		this.reaper = new QueueReaper(this);
 		init();
 	}
 
@@ -72,22 +139,39 @@ public class ETSContext {
 		if (log.isDebugEnabled()) {
 			log.debug("Enter: getDataSource()");
 		}
-		if (dataSource == null || dataSource.isClosed()) {
+		BasicDataSource dataSource = this.dataSource;
+		if (dataSource != null && !dataSource.isClosed()) {
+			return dataSource;
+		}
+		synchronized (this) {
+			dataSource = this.dataSource;
+			if (dataSource != null && !dataSource.isClosed()) {
+				return dataSource;
+			}
 			Properties properties = getProperties();
 			dataSource = new BasicDataSource();
 			dataSource.setUrl(properties.getProperty("db.pool.url"));
 			dataSource.setUsername(properties.getProperty("db.pool.user"));
 			dataSource.setPassword(properties.getProperty("db.pool.password"));
 			dataSource.setDriverClassName(properties.getProperty("db.pool.driver"));
-			dataSource.setMinIdle(5);
-			dataSource.setMaxIdle(10);
+			dataSource.setMaxTotal(Util.otoi(properties.getProperty("db.pool.maxTotal", "20")));
+			dataSource.setMinIdle(Util.otoi(properties.getProperty("db.pool.minIdle", "5")));
+			dataSource.setMaxIdle(Util.otoi(properties.getProperty("db.pool.maxIdle", "10")));
+			dataSource.setMaxWaitMillis(Util.otoi(properties.getProperty("db.pool.maxWaitMillis", "10000")));
+			String validationQuery = properties.getProperty("db.pool.validationQuery");
+			if (Util.isNotNullOrEmpty(validationQuery)) {
+				dataSource.setValidationQuery(validationQuery);
+				dataSource.setTestOnBorrow(true);
+			}
+			dataSource.setPoolPreparedStatements(true);
 			dataSource.setMaxOpenPreparedStatements(100);
+			this.dataSource = dataSource;
+			return dataSource;
 		}
-		return dataSource;
 	}
 
 	/**
-	 * Create a database connection if needed. Return the connection.
+	 * Borrow a connection from the pool. The caller must close it, which returns it to the pool.
 	 * 
 	 * @return
 	 * @throws FileNotFoundException
@@ -98,10 +182,15 @@ public class ETSContext {
 		if (log.isDebugEnabled()) {
 			log.debug("Enter: getConnection()");
 		}
-		if (connection == null || connection.isClosed()) {
-			connection = getDataSource().getConnection();
+		BasicDataSource dataSource = getDataSource();
+		long start = System.nanoTime();
+		poolWaiting.incrementAndGet();
+		try {
+			return dataSource.getConnection();
+		} finally {
+			poolWaiting.decrementAndGet();
+			poolWait.since(start);
 		}
-		return connection;
 	}
 
 	/**
@@ -115,10 +204,14 @@ public class ETSContext {
 		if (log.isDebugEnabled()) {
 			log.debug("Enter: getProperties()");
 		}
+		Properties properties = this.properties;
 		if (properties == null) {
 			properties = new Properties();
-			String basePath = servletRequest.getServletContext().getRealPath("/");
-			properties.load(new FileInputStream(new File(basePath + "WEB-INF/classes/queue.properties")));
+			String basePath = servletContext.getRealPath("/");
+			try (FileInputStream in = new FileInputStream(new File(basePath + "WEB-INF/classes/queue.properties"))) {
+				properties.load(in);
+			}
+			this.properties = properties;
 		}
 		return properties;
 	}
@@ -135,25 +228,403 @@ public class ETSContext {
 			log.debug("Enter: init()");
 			log.debug(new File("").getAbsolutePath());
 		}
-		getProperties();
+		Properties properties = getProperties();
 		getDataSource();
+		if (Util.otob(properties.getProperty("db.schema.migrate"), true)) {
+			migrateSchema();
+		}
 		this.maxEntryAge = Util.otoi(properties.getProperty("db.queue.maxage", "3600"));
+		this.maxBatchSize = Util.otoi(properties.getProperty("db.queue.maxbatch", "100"));
+		this.maxPollWait = Util.otoi(properties.getProperty("db.queue.maxwait", "60"));
+		this.maxLease = Util.otoi(properties.getProperty("db.queue.maxlease", "3600"));
+		this.maxAttempts = Util.otoi(properties.getProperty("db.queue.maxattempts", "5"));
+		this.priorityAging = Util.otoi(properties.getProperty("db.queue.priority.aging", "300"));
+		this.subscriptionLag = Util.otoi(properties.getProperty("db.queue.subscription.lag", "5"));
+		this.httpCompressionMinSize = Util.otoi(properties.getProperty("http.compression.minSize", "1024"));
+		this.metricsAuthentication = Util.otob(properties.getProperty("metrics.authenticate"), true);
+		this.authorizationCache = new AuthorizationCache(
+				Util.otoi(properties.getProperty("auth.cache.ttl", "60")) * 1000L,
+				Util.otoi(properties.getProperty("auth.cache.negativeTtl", "10")) * 1000L,
+				Util.otoi(properties.getProperty("auth.cache.size", "10000")));
+		configureCompression(properties);
+		configureAttributes(properties);
+		configureStores(properties);
+		if (writeBehind == null && Util.otob(properties.getProperty("queue.writeBehind"), false)) {
+			// Buffered writes may be in flight, so the buffer is kept until shutdown
+			this.writeBehind = new WriteBehindBuffer(this::getStore, this::stored,
+					Util.otoi(properties.getProperty("queue.writeBehind.capacity", "10000")),
+					Util.otoi(properties.getProperty("queue.writeBehind.maxBatch", "500")),
+					Util.otoi(properties.getProperty("queue.writeBehind.maxLatency", "5")),
+					Util.otoi(properties.getProperty("queue.writeBehind.offerTimeout", "100")));
+		}
+		syncQueueMetrics();
+		this.reaper.schedule(Util.otoi(properties.getProperty("db.queue.reaper.interval", "60")),
+				Util.otoi(properties.getProperty("db.queue.reaper.chunk", "1000")));
+	}
+
+	/**
+	 * Set the depth and oldest entry of every queue in the metrics to the values found in its store.
+	 */
+	void syncQueueMetrics() {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: syncQueueMetrics()");
+		}
+		try {
+			Set<String> queues = getQueueMaxAges().keySet();
+			for (String queue : queues) {
+				try {
+					QueueStore store = getStore(queue);
+					metrics.sync(queue, store.depth(queue), store.oldestEntryTime(queue));
+				} catch (RuntimeException e) {
+					// The other queues are still synchronized
+					log.warn(String.format("Unable to read the depth of queue %s: %s", queue, e.getMessage()));
+				}
+			}
+			this.queueMaxAttempts = loadQueueMaxAttempts();
+			subscribedQueues.keySet().retainAll(queues);
+		} catch (WebServiceException e) {
+			log.warn(String.format("Unable to read queue depths: %s", e.getMessage()));
+		}
+	}
+
+	/**
+	 * Read the maximum delivery attempts of the queues that set their own.
+	 *
+	 * @return
+	 */
+	private Map<String, Integer> loadQueueMaxAttempts() {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: loadQueueMaxAttempts()");
+		}
+		Map<String, Integer> result = new ConcurrentHashMap<String, Integer>();
+		String query = "SELECT id, max_attempts FROM ets_queue WHERE max_attempts IS NOT NULL";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				result.put(rs.getString("id"), rs.getInt("max_attempts"));
+			}
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+		return result;
+	}
+
+	/**
+	 * The maximum number of leased deliveries of an entry of the queue, or 0 if entries are delivered until
+	 * acknowledged. Changes made on other nodes are picked up when the reaper runs.
+	 *
+	 * @param queue	The id of the queue.
+	 * @return
+	 */
+	public int getMaxAttempts(String queue) {
+		Integer result = queueMaxAttempts.get(queue);
+		return (result == null) ? maxAttempts : result;
+	}
+
+	/**
+	 * Counters per queue, kept in memory: entries enqueued, dequeued and purged since startup, the depth and the
+	 * age in seconds of the oldest entry.
+	 *
+	 * @return
+	 */
+	public Map<String, Object> getQueueMetrics() {
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("queues", metrics.getStatistics(queue -> getStore(queue).oldestEntryTime(queue)));
+		WriteBehindBuffer writeBehind = this.writeBehind;
+		if (writeBehind != null) {
+			result.put("writeBehindPending", writeBehind.size());
+		}
+		return result;
+	}
+
+	/**
+	 * Whether the Prometheus metrics require admin credentials (metrics.authenticate, true by default).
+	 *
+	 * @return
+	 */
+	public boolean isMetricsAuthentication() {
+		return metricsAuthentication;
+	}
+
+	/**
+	 * Write the metrics in the Prometheus text format: the connection pool, the authorization cache, the counters
+	 * per queue and the latency histograms.
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public void writePrometheusMetrics(PrometheusWriter writer) throws IOException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: writePrometheusMetrics(%s)", writer));
+		}
+		BasicDataSource dataSource = this.dataSource;
+		if (dataSource != null) {
+			writer.metric("ets_db_pool_active", "Connections in use.", PrometheusWriter.GAUGE, dataSource.getNumActive());
+			writer.metric("ets_db_pool_idle", "Idle connections in the pool.", PrometheusWriter.GAUGE, dataSource.getNumIdle());
+			writer.metric("ets_db_pool_max", "Maximum number of connections.", PrometheusWriter.GAUGE, dataSource.getMaxTotal());
+		}
+		writer.metric("ets_db_pool_waiting", "Threads waiting for a connection.", PrometheusWriter.GAUGE, poolWaiting.get());
+		AuthorizationCache cache = this.authorizationCache;
+		writer.metric("ets_auth_cache_hits_total", "Authorization lookups answered from the cache.", PrometheusWriter.COUNTER, cache.getHits());
+		writer.metric("ets_auth_cache_misses_total", "Authorization lookups checked in the database.", PrometheusWriter.COUNTER, cache.getMisses());
+		writer.metric("ets_auth_cache_size", "Authorization decisions cached.", PrometheusWriter.GAUGE, cache.size());
+		WriteBehindBuffer writeBehind = this.writeBehind;
+		if (writeBehind != null) {
+			writer.metric("ets_write_behind_pending", "Writes waiting in the write-behind buffer.", PrometheusWriter.GAUGE, writeBehind.size());
+		}
+		Map<String, Object> statistics = metrics.getStatistics(queue -> getStore(queue).oldestEntryTime(queue));
+		String[][] queueMetrics = {
+			{ "ets_queue_depth", "Entries in the queue.", PrometheusWriter.GAUGE, "depth" },
+			{ "ets_queue_oldest_entry_age_seconds", "Age of the oldest entry in the queue.", PrometheusWriter.GAUGE, "oldestEntryAge" },
+			{ "ets_queue_enqueued_total", "Entries written to the queue.", PrometheusWriter.COUNTER, "enqueued" },
+			{ "ets_queue_dequeued_total", "Entries taken from the queue.", PrometheusWriter.COUNTER, "dequeued" },
+			{ "ets_queue_purged_total", "Expired entries removed from the queue.", PrometheusWriter.COUNTER, "purged" },
+			{ "ets_queue_dead_lettered_total", "Entries moved to the dead-letter queue after their last delivery attempt.", PrometheusWriter.COUNTER, "deadLettered" }
+		};
+		for (String[] metric : queueMetrics) {
+			writer.header(metric[0], metric[1], metric[2]);
+			for (Map.Entry<String, Object> entry : statistics.entrySet()) {
+				Object value = ((Map<String, Object>) entry.getValue()).get(metric[3]);
+				writer.sample(metric[0], new String[] { "queue", entry.getKey() }, ((Number) value).doubleValue());
+			}
+		}
+		Instrumentation.write(writer);
+	}
+
+	/**
+	 * Called when entries were stored in a queue: wakes waiting readers and updates the metrics.
+	 *
+	 * @param queue
+	 * @param count
+	 */
+	private void stored(String queue, int count) {
+		if (count > 0) {
+			metrics.enqueued(queue, count);
+			waiters.signal(queue, count);
+		}
+	}
+
+	/**
+	 * The registry of requests waiting for entries to arrive in a queue on this node.
+	 *
+	 * @return
+	 */
+	public QueueWaiters getWaiters() {
+		return waiters;
+	}
+
+	/**
+	 * Apply any pending schema migrations from WEB-INF/database/migrations.
+	 * 
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	private void migrateSchema() throws FileNotFoundException, IOException, SQLException {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: migrateSchema()");
+		}
+		String basePath = servletContext.getRealPath("/");
+		try (Connection connection = getConnection()) {
+			// The embedded database has its own scripts
+			String product = connection.getMetaData().getDatabaseProductName();
+			String directory = "H2".equalsIgnoreCase(product) ? "WEB-INF/database/h2" : "WEB-INF/database/migrations";
+			SchemaMigrations migrations = new SchemaMigrations(new File(basePath + directory));
+			int applied = migrations.migrate(connection);
+			if (applied > 0) {
+				log.info(String.format("Applied %d schema migrations", applied));
+			}
+		}
+	}
+
+	/**
+	 * Read the queue store settings: queue.store selects the store for all queues, and queue.store.&lt;queue id&gt;
+	 * overrides it for a single queue. Stores are created once and kept on reload, so entries in memory survive.
+	 * 
+	 * @param properties
+	 */
+	private void configureStores(Properties properties) {
+		String defaultType = properties.getProperty(PROPERTY_QUEUE_STORE, STORE_MYSQL).trim();
+		Map<String, String> types = new HashMap<String, String>();
+		String prefix = PROPERTY_QUEUE_STORE + ".";
+		for (String name : properties.stringPropertyNames()) {
+			if (name.startsWith(prefix) && name.length() > prefix.length()) {
+				types.put(name.substring(prefix.length()), properties.getProperty(name).trim());
+			}
+		}
+		// Fail on startup rather than on first use
+		getStoreByType(defaultType);
+		for (String type : types.values()) {
+			getStoreByType(type);
+		}
+		this.defaultStoreType = defaultType;
+		this.queueStoreTypes = types;
+	}
+
+	/**
+	 * Read the compression settings for entries in the database stores: queue.compression selects the codec for all
+	 * queues, and queue.compression.&lt;queue id&gt; overrides it for a single queue. The store.compression.*
+	 * properties set the level, the minimum size and an optional preset dictionary file. Entries are always read
+	 * back, whatever codec they were written with, as long as the dictionary is unchanged.
+	 *
+	 * @param properties
+	 * @throws IOException	If the dictionary can not be read.
+	 */
+	private void configureCompression(Properties properties) throws IOException {
+		String defaultType = properties.getProperty(PROPERTY_QUEUE_COMPRESSION, COMPRESSION_NONE).trim().toLowerCase();
+		Map<String, String> types = new HashMap<String, String>();
+		String prefix = PROPERTY_QUEUE_COMPRESSION + ".";
+		for (String name : properties.stringPropertyNames()) {
+			if (name.startsWith(prefix) && name.length() > prefix.length()) {
+				types.put(name.substring(prefix.length()), properties.getProperty(name).trim().toLowerCase());
+			}
+		}
+		List<String> configured = new ArrayList<String>(types.values());
+		configured.add(defaultType);
+		for (String type : configured) {
+			if (!COMPRESSION_NONE.equals(type) && !COMPRESSION_DEFLATE.equals(type)) {
+				throw new WebServiceException(String.format("Unknown queue compression: %s", type));
+			}
+		}
+		byte[] dictionary = null;
+		String dictionaryFile = properties.getProperty("store.compression.dictionary");
+		if (Util.isNotNullOrEmpty(dictionaryFile)) {
+			dictionary = Files.readAllBytes(new File(dictionaryFile.trim()).toPath());
+		}
+		int level = Util.otoi(properties.getProperty("store.compression.level", "6"));
+		int minSize = Util.otoi(properties.getProperty("store.compression.minSize", "256"));
+		this.plainCodec = new PayloadCodec(false, level, minSize, dictionary);
+		this.deflateCodec = new PayloadCodec(true, level, minSize, dictionary);
+		this.defaultCompression = defaultType;
+		this.queueCompression = types;
+	}
+
+	/**
+	 * Read the payload attributes extracted into indexed columns by the database stores, from queue.attributes:
+	 * a comma-separated list of name:path pairs. See {@link EntryAttributes}.
+	 *
+	 * @param properties
+	 */
+	private void configureAttributes(Properties properties) {
+		try {
+			this.entryAttributes = EntryAttributes.parse(properties.getProperty("queue.attributes"));
+		} catch (IllegalArgumentException e) {
+			throw new WebServiceException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * A filter on the payload attributes from name:value conditions, for {@link #pollQueueData(String, int, boolean, AttributeFilter)}
+	 * and {@link #leaseQueueData(String, int, long, AttributeFilter)}.
+	 *
+	 * @param conditions
+	 * @return	The filter, or null if there are no conditions.
+	 * @throws IllegalArgumentException	If a condition is malformed or names an attribute that is not configured.
+	 */
+	public AttributeFilter createFilter(List<String> conditions) {
+		return entryAttributes.filter(conditions);
+	}
+
+	private PayloadCodec getCodec(String queue) {
+		String type = queueCompression.get(queue);
+		if (type == null) {
+			type = defaultCompression;
+		}
+		return COMPRESSION_DEFLATE.equals(type) ? deflateCodec : plainCodec;
+	}
+
+	private QueueStore getStoreByType(String type) {
+		return stores.computeIfAbsent(type.toLowerCase(), t -> {
+			switch (t) {
+			case STORE_MYSQL:
+				return new JdbcQueueStore(this::getConnection, this::getCodec, () -> entryAttributes);
+			case STORE_H2:
+				return new H2QueueStore(this::getConnection, this::getCodec, () -> entryAttributes);
+			case STORE_MEMORY:
+				return new MemoryQueueStore();
+			case STORE_SEGMENT:
+				return createSegmentLogStore();
+			default:
+				throw new WebServiceException(String.format("Unknown queue store: %s", t));
+			}
+		});
+	}
+
+	private QueueStore createSegmentLogStore() {
+		Properties properties = this.properties;
+		String directory = properties.getProperty("store.segment.dir");
+		if (Util.isNullOrEmpty(directory)) {
+			throw new WebServiceException("Property store.segment.dir not configured");
+		}
+		return new SegmentLogQueueStore(new File(directory),
+				Util.otoi(properties.getProperty("store.segment.size", "67108864")),
+				Util.otob(properties.getProperty("store.segment.syncWrites"), true),
+				Util.otoi(properties.getProperty("store.segment.syncInterval", "100")));
 	}
 
 	/**
-	 * Get a fresh instance of this context.
+	 * Get the store holding the entries of the specified queue.
 	 * 
-	 * @param servletRequest
+	 * @param queue
+	 * @return
+	 */
+	private QueueStore getStore(String queue) {
+		String type = queueStoreTypes.get(queue);
+		return getStoreByType((type == null) ? defaultStoreType : type);
+	}
+
+	/**
+	 * Create the application-wide context. Called once when the web application starts.
+	 * 
+	 * @param servletContext
 	 * @return
 	 * @throws FileNotFoundException
 	 * @throws IOException
 	 * @throws SQLException
 	 */
-	public static ETSContext getContext(HttpServletRequest servletRequest) throws FileNotFoundException, IOException, SQLException {
+	public static synchronized ETSContext initialize(ServletContext servletContext) throws FileNotFoundException, IOException, SQLException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: initialize(%s)", servletContext));
+		}
+		if (instance == null) {
+			instance = new ETSContext(servletContext);
+		}
+		return instance;
+	}
+
+	/**
+	 * Get the application-wide context.
+	 * 
+	 * @return
+	 */
+	public static ETSContext getInstance() {
+		ETSContext context = instance;
+		if (context == null) {
+			throw new WebServiceException("ETSContext not initialized");
+		}
+		return context;
+	}
+
+	/**
+	 * Release all resources held by the context. Called once when the web application stops.
+	 */
+	public static synchronized void shutdown() {
 		if (log.isDebugEnabled()) {
-			log.debug(String.format("Enter: getCurrentContext(%s)", servletRequest));
+			log.debug("Enter: shutdown()");
+		}
+		if (instance != null) {
+			instance.waiters.shutdown();
+			instance.reaper.shutdown();
+			if (instance.writeBehind != null) {
+				instance.writeBehind.shutdown();
+			}
+			for (QueueStore store : instance.stores.values()) {
+				store.close();
+			}
+			instance.closeDataSource();
+			instance = null;
 		}
-		return new ETSContext(servletRequest);
 	}
 	
 	/**
@@ -163,166 +634,828 @@ public class ETSContext {
 	 * @throws IOException
 	 * @throws SQLException
 	 */
-	public void reload() throws FileNotFoundException, IOException, SQLException {
-		if (connection != null && !connection.isClosed()) {
-			connection.close();
-		}
-		if (dataSource != null && !dataSource.isClosed()) {
-			dataSource.close();
-		}
+	public synchronized void reload() throws FileNotFoundException, IOException, SQLException {
+		closeDataSource();
 		properties = null;
 		init();
 	}
 
+	private synchronized void closeDataSource() {
+		BasicDataSource dataSource = this.dataSource;
+		this.dataSource = null;
+		if (dataSource != null && !dataSource.isClosed()) {
+			try {
+				dataSource.close();
+			} catch (SQLException e) {
+				log.error(e);
+				// Silently ignore
+			}
+		}
+	}
+
+	/**
+	 * The maximum time, in milliseconds, a poll or peek request may wait for entries to arrive.
+	 *
+	 * @return
+	 */
+	public long getMaxPollWait() {
+		return maxPollWait * 1000L;
+	}
+
+	/**
+	 * The maximum time, in milliseconds, entries may stay leased before they are delivered again.
+	 *
+	 * @return
+	 */
+	public long getMaxLease() {
+		return maxLease * 1000L;
+	}
+
+	/**
+	 * The time, in seconds, entries are held back from subscriptions after they are written, so that a subscription
+	 * does not move past an entry that is still being committed; see {@link #pollSubscription(String, String, int, boolean)}.
+	 *
+	 * @return
+	 */
+	public int getSubscriptionLag() {
+		return subscriptionLag;
+	}
+
+	/**
+	 * The maximum number of entries returned or delivered at once.
+	 *
+	 * @return
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * The minimum size in bytes of a response to be compressed, or a negative number if responses are never
+	 * compressed.
+	 *
+	 * @return
+	 */
+	public int getHttpCompressionMinSize() {
+		return httpCompressionMinSize;
+	}
+
+	/**
+	 * Statistics of the background reaper that purges expired entries.
+	 *
+	 * @return
+	 */
+	public Map<String, Object> getReaperStatistics() {
+		return reaper.getStatistics();
+	}
+
+	/**
+	 * Get the maximum entry age, in seconds, of every queue. Queues without their own maximum age get the
+	 * configured default. 0 means entries are kept until read.
+	 *
+	 * @return
+	 */
+	public Map<String, Integer> getQueueMaxAges() {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: getQueueMaxAges()");
+		}
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		String query = "SELECT id, max_age FROM ets_queue";
+		long start = System.nanoTime();
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				int maxAge = rs.getInt("max_age");
+				result.put(rs.getString("id"), rs.wasNull() ? maxEntryAge : maxAge);
+			}
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		} finally {
+			jdbcMaxAges.since(start);
+		}
+		return result;
+	}
+
+	/**
+	 * Remove the entries of a queue that are older than the specified age, at most chunkSize at a time.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param maxAge	The maximum age, in seconds.
+	 * @param chunkSize	The maximum number of entries removed per step.
+	 * @return	The number of entries removed.
+	 */
+	int purgeExpiredEntries(String queue, int maxAge, int chunkSize) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: purgeExpiredEntries(%s, %d, %d)", queue, maxAge, chunkSize));
+		}
+		long start = System.nanoTime();
+		int count;
+		try {
+			count = getStore(queue).purge(queue, maxAge, chunkSize);
+		} finally {
+			jdbcPurge.since(start);
+		}
+		metrics.purged(queue, count);
+		return count;
+	}
+
+	/**
+	 * The time, in seconds, an entry may wait at its own priority before the reaper raises it to the highest
+	 * priority, or 0 if entries keep their priority.
+	 *
+	 * @return
+	 */
+	int getPriorityAging() {
+		return priorityAging;
+	}
+
+	/**
+	 * Raise the entries of a queue that have waited longer than the specified time to QueueStore.AGED_PRIORITY, at most
+	 * chunkSize at a time.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param maxWait	The maximum wait, in seconds.
+	 * @param chunkSize	The maximum number of entries promoted per step.
+	 * @return	The number of entries promoted.
+	 */
+	int promoteWaitingEntries(String queue, int maxWait, int chunkSize) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: promoteWaitingEntries(%s, %d, %d)", queue, maxWait, chunkSize));
+		}
+		long start = System.nanoTime();
+		try {
+			return getStore(queue).promote(queue, maxWait, chunkSize);
+		} finally {
+			jdbcPromote.since(start);
+		}
+	}
+
+	/**
+	 * Set the maximum entry age of a queue.
+	 *
+	 * @param id	The id of the queue.
+	 * @param maxAge	The maximum age in seconds, 0 to keep entries until read, or null to use the default.
+	 * @return	false if the queue does not exist.
+	 * @throws SQLException
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public boolean setQueueMaxAge(String id, Integer maxAge) throws SQLException, FileNotFoundException, IOException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: setQueueMaxAge(%s, %s)", id, maxAge));
+		}
+		String query = "UPDATE ets_queue SET max_age = ? WHERE id = ?";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			if (maxAge == null) {
+				statement.setNull(1, java.sql.Types.INTEGER);
+			} else {
+				statement.setInt(1, maxAge);
+			}
+			statement.setString(2, id);
+			return statement.executeUpdate() > 0;
+		}
+	}
+
 	/**
-	 * Clean the queue. Any entries older than the maximum age (in seconds) specfied in the configuration file will be removed.
+	 * Set the maximum number of leased deliveries of the entries of a queue. Entries that are not acknowledged
+	 * within that many deliveries are moved to the dead-letter queue of the queue.
+	 *
+	 * @param id	The id of the queue.
+	 * @param maxAttempts	The maximum attempts, 0 to deliver entries until acknowledged, or null to use the default.
+	 * @return	false if the queue does not exist.
+	 * @throws SQLException
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public boolean setQueueMaxAttempts(String id, Integer maxAttempts) throws SQLException, FileNotFoundException, IOException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: setQueueMaxAttempts(%s, %s)", id, maxAttempts));
+		}
+		String query = "UPDATE ets_queue SET max_attempts = ? WHERE id = ?";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			if (maxAttempts == null) {
+				statement.setNull(1, java.sql.Types.INTEGER);
+			} else {
+				statement.setInt(1, maxAttempts);
+			}
+			statement.setString(2, id);
+			if (statement.executeUpdate() == 0) {
+				return false;
+			}
+		}
+		if (maxAttempts == null) {
+			queueMaxAttempts.remove(id);
+		} else {
+			queueMaxAttempts.put(id, maxAttempts);
+		}
+		return true;
+	}
+
+	/**
+	 * Write a new entry to the specified queue.
 	 * 
-	 * @param queue	The id of the queue to clean.
+	 * @param queue	The id of the queue to use.
+	 * @param data	The data to be stored.
 	 */
-	public void cleanQueue(String queue) {
+	public void writeDataToQueue(String queue, String data) {
 		if (log.isDebugEnabled()) {
-			log.debug(String.format("Enter: cleanQueue(%s)", queue));
-		}
-		Calendar cal = Calendar.getInstance();
-		cal.add(Calendar.SECOND, -1 * maxEntryAge);
-		java.util.Date date = cal.getTime();
-		if (Util.isNotNullOrEmpty(queue)) {
-			String query = "DELETE FROM ets_queue_entry WHERE queue_id = ? AND created < ?";
-			PreparedStatement statement = null;
+			log.debug(String.format("Enter: writeDataToQueue(%s, %s)", queue, "********"));
+		}
+		if (Util.isNotNullOrEmpty(queue) && Util.isNotNullOrEmpty(data)) {
+			long start = System.nanoTime();
+			int count;
 			try {
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
-				statement.setString(1, queue);
-				Timestamp t = new Timestamp(date.getTime());
-				statement.setTimestamp(2, t);
-				statement.execute();
-			} catch (SQLException | IOException e) {
-				throw new WebServiceException(e);
+				count = getStore(queue).enqueue(queue, Collections.singletonList(data));
 			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
+				jdbcWrite.since(start);
+			}
+			stored(queue, count);
+		}
+	}
+
+	/**
+	 * Write several new entries to the specified queue. Either all or none of them are queued.
+	 *
+	 * @param queue	The id of the queue to use.
+	 * @param data	The data of the entries to be stored, in queue order.
+	 * @return	The number of entries written.
+	 */
+	public int writeDataToQueue(String queue, List<String> data) {
+		return writeDataToQueue(queue, data, QueueStore.DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * Write several new entries with a priority to the specified queue. Either all or none of them are queued.
+	 *
+	 * @param queue	The id of the queue to use.
+	 * @param data	The data of the entries to be stored, in queue order.
+	 * @param priority	From QueueStore.MIN_PRIORITY to QueueStore.MAX_PRIORITY; higher priorities are polled first.
+	 * @return	The number of entries written.
+	 * @throws UnsupportedOperationException	If the priority is not the default and the store of the queue does not
+	 * 		support priorities.
+	 */
+	public int writeDataToQueue(String queue, List<String> data, int priority) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: writeDataToQueue(%s, %s, %d)", queue, (data == null) ? "null" : "List(********)", priority));
+		}
+		if (Util.isNullOrEmpty(queue) || data == null || data.isEmpty()) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		int count;
+		try {
+			count = getStore(queue).enqueue(queue, data, priority);
+		} finally {
+			jdbcWrite.since(start);
+		}
+		stored(queue, count);
+		return count;
+	}
+
+	/**
+	 * Write several new entries to the specified queue without waiting for them to be stored. With write-behind
+	 * enabled (queue.writeBehind), the entries are buffered and stored together with those of other requests in a
+	 * single commit. Otherwise they are written right away.
+	 *
+	 * @param queue	The id of the queue to use.
+	 * @param data	The data of the entries to be stored, in queue order.
+	 * @return	Completes with the number of entries written once they are stored.
+	 */
+	public CompletableFuture<Integer> writeDataToQueueAsync(String queue, List<String> data) {
+		return writeDataToQueueAsync(queue, data, QueueStore.DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * Like {@link #writeDataToQueueAsync(String, List)}, with a priority for the entries.
+	 *
+	 * @param queue	The id of the queue to use.
+	 * @param data	The data of the entries to be stored, in queue order.
+	 * @param priority	From QueueStore.MIN_PRIORITY to QueueStore.MAX_PRIORITY; higher priorities are polled first.
+	 * @return	Completes with the number of entries written once they are stored. Fails with an
+	 *			UnsupportedOperationException if the priority is not the default and the store of the queue does not
+	 *			support priorities.
+	 */
+	public CompletableFuture<Integer> writeDataToQueueAsync(String queue, List<String> data, int priority) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: writeDataToQueueAsync(%s, %s, %d)", queue, (data == null) ? "null" : "List(********)", priority));
+		}
+		WriteBehindBuffer writeBehind = this.writeBehind;
+		if (writeBehind != null) {
+			return writeBehind.submit(queue, data, priority);
+		}
+		CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+		try {
+			future.complete(writeDataToQueue(queue, data, priority));
+		} catch (WebServiceException | UnsupportedOperationException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * Get up to max entries from the specified queue and remove them if remove is set to true. The number of
+	 * entries is limited to the configured maximum batch size.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param max	The maximum number of entries to return.
+	 * @param remove	Remove entries if true.
+	 * @return
+	 * @throws IllegalStateException	If entries are to be removed from a queue with subscriptions.
+	 */
+	public QueueBatch pollQueueData(String queue, int max, boolean remove) {
+		return pollQueueData(queue, max, remove, null);
+	}
+
+	/**
+	 * Like {@link #pollQueueData(String, int, boolean)}, but only for the entries matching a filter. Entries that do
+	 * not match stay in the queue for other consumers.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param max	The maximum number of entries to return.
+	 * @param remove	Remove entries if true.
+	 * @param filter	The filter, or null for all entries; see {@link #createFilter(List)}.
+	 * @return
+	 * @throws IllegalStateException	If entries are to be removed from a queue with subscriptions.
+	 * @throws UnsupportedOperationException	If a filter is given and the store of the queue does not support filters.
+	 */
+	public QueueBatch pollQueueData(String queue, int max, boolean remove, AttributeFilter filter) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: pollQueueData(%s, %d, %b, %s)", queue, max, remove, filter));
+		}
+		if (Util.isNullOrEmpty(queue)) {
+			return new QueueBatch(null, false);
+		}
+		if (remove) {
+			checkNotSubscribed(queue);
+		}
+		max = Math.max(1, Math.min(max, maxBatchSize));
+		long start = System.nanoTime();
+		try {
+			if (remove) {
+				QueueBatch batch = getStore(queue).dequeue(queue, max, filter);
+				metrics.dequeued(queue, batch.getEntries().size());
+				return batch;
+			}
+			return getStore(queue).peek(queue, max, filter);
+		} finally {
+			jdbcPoll.since(start);
+		}
+	}
+
+	/**
+	 * Claim up to max entries from the specified queue under a lease. The entries stay in the queue, hidden from
+	 * other consumers, until they are acknowledged with {@link #ackQueueLeases(String, List)} or the lease expires,
+	 * after which they are delivered again. The number of entries is limited to the configured maximum batch size,
+	 * and the lease time to db.queue.maxlease. Entries that were delivered the maximum number of times of the queue
+	 * are moved to its dead-letter queue instead; see {@link #getMaxAttempts(String)}.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param max	The maximum number of entries to return.
+	 * @param leaseMillis	The lease time in milliseconds.
+	 * @return	The entries, each with its lease id.
+	 * @throws UnsupportedOperationException	If the store of the queue does not support leases.
+	 * @throws IllegalStateException	If the queue has subscriptions.
+	 */
+	public QueueBatch leaseQueueData(String queue, int max, long leaseMillis) {
+		return leaseQueueData(queue, max, leaseMillis, null);
+	}
+
+	/**
+	 * Like {@link #leaseQueueData(String, int, long)}, but only for the entries matching a filter.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param max	The maximum number of entries to return.
+	 * @param leaseMillis	The lease time in milliseconds.
+	 * @param filter	The filter, or null for all entries; see {@link #createFilter(List)}.
+	 * @return	The entries, each with its lease id.
+	 * @throws UnsupportedOperationException	If the store of the queue does not support leases or filters.
+	 * @throws IllegalStateException	If the queue has subscriptions.
+	 */
+	public QueueBatch leaseQueueData(String queue, int max, long leaseMillis, AttributeFilter filter) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: leaseQueueData(%s, %d, %d, %s)", queue, max, leaseMillis, filter));
+		}
+		if (Util.isNullOrEmpty(queue)) {
+			return new QueueBatch(null, false);
+		}
+		checkNotSubscribed(queue);
+		max = Math.max(1, Math.min(max, maxBatchSize));
+		leaseMillis = Math.max(1, Math.min(leaseMillis, getMaxLease()));
+		long start = System.nanoTime();
+		QueueBatch batch;
+		try {
+			batch = getStore(queue).lease(queue, max, leaseMillis, getMaxAttempts(queue), filter);
+		} finally {
+			jdbcLease.since(start);
+		}
+		metrics.deadLettered(queue, batch.getDeadLettered());
+		return batch;
+	}
+
+	/**
+	 * Remove leased entries from the queue. Leases that expired and were taken by another consumer are ignored.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param leaseIds	The lease ids of the entries.
+	 * @return	The number of entries removed.
+	 * @throws UnsupportedOperationException	If the store of the queue does not support leases.
+	 */
+	public int ackQueueLeases(String queue, List<String> leaseIds) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: ackQueueLeases(%s, %s)", queue, leaseIds));
+		}
+		if (Util.isNullOrEmpty(queue) || leaseIds == null || leaseIds.isEmpty()) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		int count;
+		try {
+			count = getStore(queue).ackLeases(queue, leaseIds);
+		} finally {
+			jdbcAckLeases.since(start);
+		}
+		metrics.dequeued(queue, count);
+		return count;
+	}
+
+	/**
+	 * Make leased entries visible to other consumers again before their leases expire.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param leaseIds	The lease ids of the entries.
+	 * @return	The number of entries released.
+	 * @throws UnsupportedOperationException	If the store of the queue does not support leases.
+	 */
+	public int releaseQueueLeases(String queue, List<String> leaseIds) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: releaseQueueLeases(%s, %s)", queue, leaseIds));
+		}
+		if (Util.isNullOrEmpty(queue) || leaseIds == null || leaseIds.isEmpty()) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		try {
+			return getStore(queue).releaseLeases(queue, leaseIds);
+		} finally {
+			jdbcReleaseLeases.since(start);
+		}
+	}
+
+	/**
+	 * Whether a queue is read through subscriptions. The answer is read from the database at most once per
+	 * SUBSCRIPTION_CHECK_TTL, so subscriptions added on other nodes are seen within that time.
+	 *
+	 * @param queue	The id of the queue.
+	 * @return
+	 */
+	public boolean hasSubscriptions(String queue) {
+		long now = System.currentTimeMillis();
+		SubscriptionCheck check = subscribedQueues.get(queue);
+		if (check == null || now - check.checked >= SUBSCRIPTION_CHECK_TTL) {
+			check = new SubscriptionCheck(loadHasSubscriptions(queue), now);
+			subscribedQueues.put(queue, check);
+		}
+		return check.subscribed;
+	}
+
+	private static class SubscriptionCheck {
+		private final boolean subscribed;
+		private final long checked;
+
+		SubscriptionCheck(boolean subscribed, long checked) {
+			this.subscribed = subscribed;
+			this.checked = checked;
+		}
+	}
+
+	/**
+	 * Entries of a queue with subscriptions are shared by all subscriptions, so no consumer may take them for
+	 * itself.
+	 *
+	 * @param queue
+	 * @throws IllegalStateException	If the queue has subscriptions.
+	 */
+	private void checkNotSubscribed(String queue) {
+		if (hasSubscriptions(queue)) {
+			throw new IllegalStateException(String.format("Queue %s is read through subscriptions", queue));
+		}
+	}
+
+	/**
+	 * Read up to max entries of a queue for one of its subscriptions: the entries following the cursor of the
+	 * subscription. Every subscription receives every entry, while each entry is stored only once. If remove is true,
+	 * the cursor moves past the entries returned, so the next poll of the subscription continues after them;
+	 * concurrent consumers of the same subscription each receive different entries. The entries stay in the queue
+	 * until all its subscriptions have read them, after which the reaper removes them. The number of entries is
+	 * limited to the configured maximum batch size.
+	 * <p>
+	 * Delivery is at most once: the cursor moves before the entries reach the client, and there is no
+	 * acknowledgement, so entries of a response that is lost are not delivered again.
+	 * <p>
+	 * Entry ids are taken when an entry is inserted, not when it is committed, so a write still committing may have
+	 * a lower id than entries already visible. Entries are only returned once they were written at least
+	 * db.queue.subscription.lag seconds ago, by the clock of the database, so the cursor does not move past such a
+	 * write. This is a margin, not a guarantee: an entry whose write takes longer than the lag to commit can be
+	 * passed by the cursor, and is then never delivered to the subscription.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param subscription	The name of the subscription.
+	 * @param max	The maximum number of entries to return.
+	 * @param remove	Move the cursor of the subscription if true.
+	 * @return
+	 * @throws IllegalArgumentException	If the subscription does not exist.
+	 * @throws IllegalStateException	If other consumers of the subscription kept moving its cursor first.
+	 */
+	public QueueBatch pollSubscription(String queue, String subscription, int max, boolean remove) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: pollSubscription(%s, %s, %d, %b)", queue, subscription, max, remove));
+		}
+		if (Util.isNullOrEmpty(queue) || Util.isNullOrEmpty(subscription)) {
+			return new QueueBatch(null, false);
+		}
+		max = Math.max(1, Math.min(max, maxBatchSize));
+		String selectQuery = "SELECT last_id FROM ets_queue_subscription WHERE queue_id = ? AND name = ?";
+		String updateQuery = "UPDATE ets_queue_subscription SET last_id = ? WHERE queue_id = ? AND name = ? AND last_id = ?";
+		long start = System.nanoTime();
+		try {
+			// No connection is held while the store is read, as the store may need one of its own
+			for (int attempt = 0; attempt < SUBSCRIPTION_RETRIES; attempt++) {
+				long cursor;
+				try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(selectQuery)) {
+					statement.setString(1, queue);
+					statement.setString(2, subscription);
+					ResultSet rs = statement.executeQuery();
+					if (!rs.next()) {
+						throw new IllegalArgumentException(String.format("Unknown subscription %s of queue %s", subscription, queue));
 					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
+					cursor = rs.getLong("last_id");
 				}
+				QueueBatch batch = getStore(queue).read(queue, cursor, max, subscriptionLag);
+				if (!remove || batch.isEmpty()) {
+					return batch;
+				}
+				List<QueueEntry> entries = batch.getEntries();
+				try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(updateQuery)) {
+					statement.setLong(1, entries.get(entries.size() - 1).getId());
+					statement.setString(2, queue);
+					statement.setString(3, subscription);
+					statement.setLong(4, cursor);
+					if (statement.executeUpdate() > 0) {
+						return batch;
+					}
+				}
+				// Another consumer of the subscription took these entries first; read again after its cursor
+			}
+			throw new IllegalStateException(String.format("Subscription %s of queue %s is read by too many consumers at once; poll again", subscription, queue));
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		} finally {
+			jdbcSubscription.since(start);
+		}
+	}
+
+	/**
+	 * Per queue with subscriptions, the id of the last entry all its subscriptions have read.
+	 *
+	 * @return
+	 */
+	Map<String, Long> getSubscriptionTrimPoints() {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: getSubscriptionTrimPoints()");
+		}
+		Map<String, Long> cursors = new HashMap<String, Long>();
+		String query = "SELECT queue_id, MIN(last_id) FROM ets_queue_subscription GROUP BY queue_id";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				cursors.put(rs.getString(1), rs.getLong(2));
+			}
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+		return cursors;
+	}
+
+	/**
+	 * Remove the entries of a queue that all its subscriptions have read, at most chunkSize at a time.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param throughId	The id of the last entry all subscriptions have read; see {@link #getSubscriptionTrimPoints()}.
+	 * @param chunkSize	The maximum number of entries removed per step.
+	 * @return	The number of entries removed.
+	 */
+	int trimSubscribedQueue(String queue, long throughId, int chunkSize) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: trimSubscribedQueue(%s, %d, %d)", queue, throughId, chunkSize));
+		}
+		if (throughId <= 0) {
+			return 0;
+		}
+		int count = getStore(queue).trim(queue, throughId, chunkSize);
+		metrics.dequeued(queue, count);
+		return count;
+	}
+
+	/**
+	 * Read whether a queue has subscriptions.
+	 *
+	 * @param queue	The id of the queue.
+	 * @return
+	 */
+	private boolean loadHasSubscriptions(String queue) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: loadHasSubscriptions(%s)", queue));
+		}
+		String query = "SELECT name FROM ets_queue_subscription WHERE queue_id = ? LIMIT 1";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			return statement.executeQuery().next();
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * Get the subscriptions of a queue, with the id of the last entry each has read.
+	 *
+	 * @param queue	The id of the queue.
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public List<Map<String, Object>> getSubscriptions(String queue) throws FileNotFoundException, SQLException, IOException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: getSubscriptions(%s)", queue));
+		}
+		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
+		String query = "SELECT name, last_id, created FROM ets_queue_subscription WHERE queue_id = ? ORDER BY name";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				Map<String, Object> subscription = new HashMap<String, Object>();
+				subscription.put("name", rs.getString("name"));
+				subscription.put("lastId", rs.getLong("last_id"));
+				subscription.put("created", rs.getString("created"));
+				result.add(subscription);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Add a subscription to a queue. The subscription starts at the head of the queue, so it receives the entries
+	 * the queue still holds. From now on, entries are no longer taken from the queue by plain polls, but read by
+	 * each subscription.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param name	The name of the subscription, unique within the queue.
+	 * @throws SQLException
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public void createSubscription(String queue, String name) throws SQLException, FileNotFoundException, IOException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: createSubscription(%s, %s)", queue, name));
+		}
+		String query = "INSERT INTO ets_queue_subscription (queue_id, name) VALUES (?, ?)";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			statement.setString(2, name);
+			statement.execute();
+		}
+		subscribedQueues.put(queue, new SubscriptionCheck(true, System.currentTimeMillis()));
+	}
+
+	/**
+	 * Remove a subscription from a queue. Once the last subscription is removed, the queue is read by plain polls
+	 * again.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param name	The name of the subscription.
+	 * @return	false if the subscription does not exist.
+	 * @throws SQLException
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public boolean deleteSubscription(String queue, String name) throws SQLException, FileNotFoundException, IOException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: deleteSubscription(%s, %s)", queue, name));
+		}
+		boolean deleted;
+		try (Connection connection = getConnection()) {
+			try (PreparedStatement statement = connection.prepareStatement("DELETE FROM ets_queue_subscription WHERE queue_id = ? AND name = ?")) {
+				statement.setString(1, queue);
+				statement.setString(2, name);
+				deleted = statement.executeUpdate() > 0;
 			}
+			try (PreparedStatement statement = connection.prepareStatement("SELECT name FROM ets_queue_subscription WHERE queue_id = ? LIMIT 1")) {
+				statement.setString(1, queue);
+				subscribedQueues.put(queue, new SubscriptionCheck(statement.executeQuery().next(), System.currentTimeMillis()));
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Read up to max entries following the specified entry id from the dead-letter queue of a queue. The number of
+	 * entries is limited to the configured maximum batch size.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param afterId	Only entries with a higher id are returned.
+	 * @param max	The maximum number of entries to return.
+	 * @return	The entries, as {@link DeadLetterEntry} instances.
+	 * @throws UnsupportedOperationException	If the store of the queue does not support dead-letter queues.
+	 */
+	public QueueBatch readDeadLetters(String queue, long afterId, int max) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: readDeadLetters(%s, %d, %d)", queue, afterId, max));
+		}
+		if (Util.isNullOrEmpty(queue)) {
+			return new QueueBatch(null, false);
+		}
+		max = Math.max(1, Math.min(max, maxBatchSize));
+		long start = System.nanoTime();
+		try {
+			return getStore(queue).readDeadLetters(queue, afterId, max);
+		} finally {
+			jdbcDeadLetters.since(start);
 		}
 	}
 
 	/**
-	 * Write a new entry to the specified queue.
-	 * 
-	 * @param queue	The id of the queue to use.
-	 * @param data	The data to be stored.
+	 * The number of entries in the dead-letter queue of a queue.
+	 *
+	 * @param queue	The id of the queue.
+	 * @return
+	 * @throws UnsupportedOperationException	If the store of the queue does not support dead-letter queues.
 	 */
-	public void writeDataToQueue(String queue, String data) {
+	public long getDeadLetterDepth(String queue) {
 		if (log.isDebugEnabled()) {
-			log.debug(String.format("Enter: writeDataToQueue(%s, %s)", queue, "********"));
+			log.debug(String.format("Enter: getDeadLetterDepth(%s)", queue));
 		}
-		if (Util.isNotNullOrEmpty(queue) && Util.isNotNullOrEmpty(data)) {
-			String query = "INSERT INTO ets_queue_entry (queue_id, data) VALUES (?, ?)";
-			PreparedStatement statement = null;
-			try {
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
-				statement.setString(1, queue);
-				statement.setString(2, data);
-				statement.execute();
-				// cleanQueue(queue);
-			} catch (SQLException | IOException e) {
-				throw new WebServiceException(e);
-			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
-					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
-				}
-			}
+		long start = System.nanoTime();
+		try {
+			return getStore(queue).deadLetterDepth(queue);
+		} finally {
+			jdbcDeadLetters.since(start);
 		}
 	}
 
 	/**
-	 * Remove data from the queue.
-	 * 
+	 * Move entries from the dead-letter queue of a queue back to the tail of the queue, with their delivery attempts
+	 * reset. Waiting readers are woken as for new entries.
+	 *
 	 * @param queue	The id of the queue.
-	 * @param id	The id of the entry to be removed.	 * 
+	 * @param ids	The ids of the dead-lettered entries, or null for all of them.
+	 * @return	The number of entries moved.
+	 * @throws UnsupportedOperationException	If the store of the queue does not support dead-letter queues.
 	 */
-	public void removeQueueData(String queue, String id) {
+	public int redriveDeadLetters(String queue, List<Long> ids) {
 		if (log.isDebugEnabled()) {
-			log.debug(String.format("Enter: removeQueueData(%s, %s)", queue, id));
+			log.debug(String.format("Enter: redriveDeadLetters(%s, %s)", queue, ids));
 		}
-		if (Util.isNotNullOrEmpty(queue) && Util.isNotNullOrEmpty(id)) {
-			String query = "DELETE FROM ets_queue_entry WHERE queue_id = ? AND id = ?";
-			PreparedStatement statement = null;
-			try {
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
-				statement.setString(1, queue);
-				statement.setString(2, id);
-				statement.execute();
-			} catch (SQLException | IOException e) {
-				throw new WebServiceException(e);
-			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
-					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
-				}
-			}
+		if (Util.isNullOrEmpty(queue)) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		int count;
+		try {
+			count = getStore(queue).redriveDeadLetters(queue, ids);
+		} finally {
+			jdbcDeadLetters.since(start);
 		}
+		stored(queue, count);
+		return count;
 	}
 
 	/**
-	 * Check whether any entries exist in the specified queue.
-	 * 
-	 * @param queue	The queue to check.
-	 * @return
+	 * Remove entries from the dead-letter queue of a queue.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param ids	The ids of the dead-lettered entries, or null for all of them.
+	 * @return	The number of entries removed.
+	 * @throws UnsupportedOperationException	If the store of the queue does not support dead-letter queues.
 	 */
-	public boolean queueHasMore(String queue) {
+	public int discardDeadLetters(String queue, List<Long> ids) {
 		if (log.isDebugEnabled()) {
-			log.debug(String.format("Enter: queueHasMore(%s)", queue));
+			log.debug(String.format("Enter: discardDeadLetters(%s, %s)", queue, ids));
 		}
-		if (Util.isNotNullOrEmpty(queue)) {
-			String query = "SELECT COUNT(*) FROM ets_queue_entry WHERE queue_id = ? ORDER BY created";
-			PreparedStatement statement = null;
-			try {
-				// cleanQueue(queue);
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
-				statement.setString(1, queue);
-				statement.setMaxRows(1);
-				ResultSet rs = statement.executeQuery();
-				if (rs.next()) {
-					int c = rs.getInt(1);
-					return (c > 0);
-				}
-			} catch (SQLException | IOException e) {
-				throw new WebServiceException(e);
-			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
-					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
-				}
-			}
+		if (Util.isNullOrEmpty(queue)) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		try {
+			return getStore(queue).discardDeadLetters(queue, ids);
+		} finally {
+			jdbcDeadLetters.since(start);
 		}
-		return false;
 	}
 
 	/**
 	 * Get an entry from the specified queue and remove if remove is set to true.
-	 * 
+	 *
 	 * @param queue	The id of the queue.
 	 * @param remove	Remove entry if true.
 	 * @return
@@ -331,36 +1464,9 @@ public class ETSContext {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("Enter: pollQueueData(%s)", queue));
 		}
-		if (Util.isNotNullOrEmpty(queue)) {
-			String query = "SELECT id,data FROM ets_queue_entry WHERE queue_id = ? ORDER BY created";
-			PreparedStatement statement = null;
-			try {
-				// cleanQueue(queue);
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
-				statement.setString(1, queue);
-				statement.setMaxRows(1);
-				ResultSet rs = statement.executeQuery();
-				if (rs.next()) {
-					String id = rs.getString("id");
-					String data = rs.getString("data");
-					if (remove) {
-						removeQueueData(queue, id);
-					}
-					return data;
-				}
-			} catch (SQLException | IOException e) {
-				throw new WebServiceException(e);
-			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
-					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
-				}
-			}
+		QueueBatch batch = pollQueueData(queue, 1, remove);
+		if (!batch.isEmpty()) {
+			return batch.getEntries().get(0).getData();
 		}
 		return null;
 	}
@@ -399,40 +1505,7 @@ public class ETSContext {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("Enter: authorizeWrite(********, %s)", queue));
 		}
-		if (Util.isNotNullOrEmpty(token) && Util.isNotNullOrEmpty(queue)) {
-			String query = "SELECT COUNT(*) FROM ets_queue_access xs, ets_user_token t, ets_user u WHERE u.id = xs.user_id AND u.active = 1 AND xs.user_id = t.user_id AND xs.queue_id = ? AND t.token = ? AND xs.write = 1 AND (t.expiration IS NULL OR t.expiration > ?);";
-			PreparedStatement statement = null;
-			try {
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
-				statement.setString(1, queue);
-				statement.setString(2, hashToken(token));
-				Timestamp t = new Timestamp(new java.util.Date().getTime());
-				statement.setTimestamp(3, t);
-				ResultSet rs = statement.executeQuery();
-				if (rs.next()) {
-					int c = rs.getInt(1);
-					if (c > 0) {
-						// Success!
-						return;
-					}
-				}
-				throw new AuthorizationException("Access Denied");
-			} catch (SQLException | IOException e) {
-				throw new AuthorizationException(e);
-			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
-					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
-				}
-			}
-		} else {
-			throw new AuthorizationException("Invalid Credentials");
-		}
+		authorize(token, queue, AuthorizationCache.Mode.WRITE);
 	}
 
 	/**
@@ -446,41 +1519,69 @@ public class ETSContext {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("Enter: authorizeRead(********, %s)", queue));
 		}
-		if (Util.isNotNullOrEmpty(token) && Util.isNotNullOrEmpty(queue)) {
-			String query = "SELECT COUNT(*) FROM ets_queue_access xs, ets_user_token t, ets_user u WHERE u.id = xs.user_id AND u.active = 1 AND  xs.user_id = t.user_id AND xs.queue_id = ? AND t.token = ? AND xs.read = 1 AND (t.expiration IS NULL OR t.expiration > ?);";
-			PreparedStatement statement = null;
-			try {
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
-				statement.setString(1, queue);
-				statement.setString(2, hashToken(token));
-				Timestamp t = new Timestamp(new java.util.Date().getTime());
-				statement.setTimestamp(3, t);
-				ResultSet rs = statement.executeQuery();
-				if (rs.next()) {
-					int c = rs.getInt(1);
-					if (c > 0) {
-						// Success!
-						return;
-					}
-				}
-				throw new AuthorizationException("Access Denied");
-			} catch (SQLException | IOException e) {
-				throw new AuthorizationException(e);
-			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
-					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
-				}
-			}
-		} else {
+		authorize(token, queue, AuthorizationCache.Mode.READ);
+	}
+
+	/**
+	 * Check whether a user, to whom the provided token belongs, has the specified access to a queue. Decisions are
+	 * cached, so repeated requests with the same token do not hit the database.
+	 * 
+	 * @param token	Plain text token.
+	 * @param queue	Id of the queue.
+	 * @param mode
+	 * @throws AuthorizationException
+	 */
+	private void authorize(String token, String queue, AuthorizationCache.Mode mode) throws AuthorizationException {
+		if (Util.isNullOrEmpty(token) || Util.isNullOrEmpty(queue)) {
 			log.error("Invalid credentials");
 			throw new AuthorizationException("Invalid Credentials");
 		}
+		String hashedToken;
+		try {
+			hashedToken = hashToken(token);
+		} catch (IOException e) {
+			throw new AuthorizationException(e);
+		}
+		AuthorizationCache cache = this.authorizationCache;
+		Boolean granted = cache.get(hashedToken, queue, mode);
+		if (granted != null) {
+			if (granted) {
+				return;
+			}
+			throw new AuthorizationException("Access Denied");
+		}
+		// Read before the lookup, so an invalidation during the lookup keeps its result out of the cache
+		long epoch = cache.epoch();
+		long start = System.nanoTime();
+		String column = (mode == AuthorizationCache.Mode.WRITE) ? "xs.write" : "xs.read";
+		String query = "SELECT t.expiration FROM ets_queue_access xs, ets_user_token t, ets_user u WHERE u.id = xs.user_id AND u.active = 1 AND xs.user_id = t.user_id AND xs.queue_id = ? AND t.token = ? AND " + column + " = 1 AND (t.expiration IS NULL OR t.expiration > ?);";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			statement.setString(2, hashedToken);
+			Timestamp t = new Timestamp(new java.util.Date().getTime());
+			statement.setTimestamp(3, t);
+			ResultSet rs = statement.executeQuery();
+			boolean found = false;
+			long expiration = 0;
+			while (rs.next()) {
+				Timestamp e = rs.getTimestamp(1);
+				if (!found || expiration > 0) {
+					expiration = (e == null) ? 0 : Math.max(expiration, e.getTime());
+				}
+				found = true;
+			}
+			if (found) {
+				// Success!
+				cache.grant(hashedToken, queue, mode, expiration, epoch);
+				return;
+			}
+			cache.deny(hashedToken, queue, mode, epoch);
+			throw new AuthorizationException("Access Denied");
+		} catch (SQLException | IOException e) {
+			throw new AuthorizationException(e);
+		} finally {
+			jdbcAuthorize.since(start);
+		}
 	}
 
 	/**
@@ -530,49 +1631,59 @@ public class ETSContext {
 	}
 
 	/**
-	 * List all available queues.
+	 * Run the query for a page of queues, in id order, to be written as a JSON array with
+	 * {@link ResultStream#write(JsonWriter)}. The query runs here, so a failure is raised before any response is
+	 * written.
 	 * 
-	 * @return
+	 * @param after	Only queues with a higher id are listed, or null to start with the first queue.
+	 * @param max	The maximum number of queues, limited to MAX_LIST_PAGE.
+	 * @return	The stream of queues, to be closed by the caller.
+	 * @throws WebServiceException	If the query fails.
 	 */
-	public List<Map<String, String>> getQueues() {
+	public ResultStream openQueues(String after, int max) {
 		if (log.isDebugEnabled()) {
-			log.debug("Enter: getQueues()");
+			log.debug(String.format("Enter: openQueues(%s, %d)", after, max));
 		}
-		/* TODO: paging? */
-		List<Map<String, String>> result = new ArrayList<Map<String, String>>();
-		String query = "SELECT * FROM ets_queue";
-		PreparedStatement statement = null;
-		try {
-			Connection connection = getConnection();
-			statement = connection.prepareStatement(query);
-			statement.setMaxRows(1000); // TODO: add paging
-			ResultSet rs = statement.executeQuery();
-			while (rs.next()) {
-				ResultSetMetaData rsmd = rs.getMetaData();
-				int n = rsmd.getColumnCount();
-				if (n > 0) {
-					Map<String, String> row = new HashMap<String, String>();
-					for (int c = 1; c <= n; c++) {
-						String name = rsmd.getColumnName(c);
-						String value = rs.getString(c);
-						row.put(name, value);
-					}
-					result.add(row);
-				}
+		return openQuery("SELECT * FROM ets_queue WHERE id > ? ORDER BY id LIMIT ?", after, max, (writer, connection, rs) -> {
+			ResultSetMetaData rsmd = rs.getMetaData();
+			writer.beginObject();
+			for (int c = 1; c <= rsmd.getColumnCount(); c++) {
+				writer.name(rsmd.getColumnName(c)).value(rs.getString(c));
 			}
+			writer.endObject();
+		});
+	}
+
+	/**
+	 * Execute a list query and keep its connection open for streaming the rows.
+	 * 
+	 * @param query	A query with the id to start after and the row limit as parameters.
+	 * @param after	The id to start after, or null to start at the beginning.
+	 * @param max	The maximum number of rows, limited to MAX_LIST_PAGE.
+	 * @param row		Writes each row.
+	 * @return
+	 * @throws WebServiceException	If the query fails.
+	 */
+	private ResultStream openQuery(String query, String after, int max, ResultStream.RowWriter row) {
+		max = Math.max(1, Math.min(max, MAX_LIST_PAGE));
+		Connection connection = null;
+		try {
+			connection = getConnection();
+			PreparedStatement statement = connection.prepareStatement(query);
+			statement.setString(1, (after == null) ? "" : after);
+			// One more than returned, to tell whether there is another page
+			statement.setInt(2, max + 1);
+			return new ResultStream(connection, statement.executeQuery(), max, row);
 		} catch (SQLException | IOException e) {
-			throw new AuthorizationException(e);
-		} finally {
-			try {
-				if (statement != null && !statement.isClosed()) {
-					statement.close();
+			if (connection != null) {
+				try {
+					connection.close();
+				} catch (SQLException ce) {
+					log.warn("Unable to close connection: " + ce.getMessage());
 				}
-			} catch (SQLException e) {
-				log.error(e);
-				// Silently ignore
 			}
+			throw new WebServiceException(e);
 		}
-		return result;
 	}
 
 	/**
@@ -585,30 +1696,37 @@ public class ETSContext {
 	 * @throws IOException
 	 */
 	public Map<String, String> createQueue(String description) throws SQLException, FileNotFoundException, IOException {
+		return createQueue(description, null);
+	}
+
+	/**
+	 * Create a new queue with its own maximum entry age.
+	 * 
+	 * @param description
+	 * @param maxAge	The maximum age in seconds, 0 to keep entries until read, or null to use the default.
+	 * @return
+	 * @throws SQLException
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public Map<String, String> createQueue(String description, Integer maxAge) throws SQLException, FileNotFoundException, IOException {
 		if (log.isDebugEnabled()) {
-			log.debug(String.format("Enter: createQueue(%s)", description));
+			log.debug(String.format("Enter: createQueue(%s, %s)", description, maxAge));
 		}
 		Map<String, String> result = new HashMap<String, String>();
-		String query = "INSERT INTO ets_queue (id, description) VALUES (?, ?)";
-		PreparedStatement statement = null;
-		try {
-			String uuid = Util.uuid();
-			Connection connection = getConnection();
-			statement = connection.prepareStatement(query);
+		String query = "INSERT INTO ets_queue (id, description, max_age) VALUES (?, ?, ?)";
+		String uuid = Util.uuid();
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
 			statement.setString(1, uuid);
 			statement.setString(2, description);
+			if (maxAge == null) {
+				statement.setNull(3, java.sql.Types.INTEGER);
+			} else {
+				statement.setInt(3, maxAge);
+			}
 			statement.execute();
 			result.put("id", uuid);
 			result.put("status", "success");
-		} finally {
-			try {
-				if (statement != null && !statement.isClosed()) {
-					statement.close();
-				}
-			} catch (SQLException e) {
-				log.error(e);
-				// Silently ignore
-			}
 		}
 		return result;
 	}
@@ -627,22 +1745,15 @@ public class ETSContext {
 		}
 		if (Util.isNotNullOrEmpty(id)) {
 			String query = "DELETE FROM ets_queue WHERE id = ?";
-			PreparedStatement statement = null;
-			try {
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
+			try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
 				statement.setString(1, id);
 				statement.execute();
-			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
-					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
-				}
 			}
+			getStore(id).drop(id);
+			metrics.remove(id);
+			queueMaxAttempts.remove(id);
+			subscribedQueues.remove(id);
+			authorizationCache.invalidateQueue(id);
 		}
 	}
 
@@ -659,15 +1770,17 @@ public class ETSContext {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("Enter: getUserQueueAccess(%s)", user_id));
 		}
+		try (Connection connection = getConnection()) {
+			return getUserQueueAccess(connection, user_id);
+		}
+	}
+
+	private List<Map<String, Object>> getUserQueueAccess(Connection connection, String user_id) throws SQLException {
 		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
 		if (Util.isNotNullOrEmpty(user_id)) {
 			String query = "SELECT q.id, q.description, a.read, a.write FROM ets_queue q, ets_queue_access a WHERE a.user_id = ? AND q.id = a.queue_id";
-			PreparedStatement statement = null;
-			try {
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
+			try (PreparedStatement statement = connection.prepareStatement(query)) {
 				statement.setString(1, user_id);
-				statement.setMaxRows(1000); // TODO: add paging
 				ResultSet rs = statement.executeQuery();
 				while (rs.next()) {
 					String id = rs.getString("id");
@@ -681,15 +1794,6 @@ public class ETSContext {
 					row.put("write", write);
 					result.add(row);
 				}
-			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
-					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
-				}
 			}
 		}
 		return result;
@@ -708,15 +1812,17 @@ public class ETSContext {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("Enter: getUserTokens(%s)", user_id));
 		}
+		try (Connection connection = getConnection()) {
+			return getUserTokens(connection, user_id);
+		}
+	}
+
+	private List<Map<String, Object>> getUserTokens(Connection connection, String user_id) throws SQLException {
 		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
 		if (Util.isNotNullOrEmpty(user_id)) {
 			String query = "SELECT id, description, expiration FROM ets_user_token WHERE user_id = ?";
-			PreparedStatement statement = null;
-			try {
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
+			try (PreparedStatement statement = connection.prepareStatement(query)) {
 				statement.setString(1, user_id);
-				statement.setMaxRows(1000); // TODO: add paging
 				ResultSet rs = statement.executeQuery();
 				while (rs.next()) {
 					String id = rs.getString("id");
@@ -728,73 +1834,64 @@ public class ETSContext {
 					row.put("expiration", expiration);
 					result.add(row);
 				}
-			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
-					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
-				}
 			}
 		}
 		return result;
 	}
 
 	/**
-	 * List all users.
+	 * Run the query for a page of users, in id order, to be written with their tokens and queue authorizations as a
+	 * JSON array with {@link ResultStream#write(JsonWriter)}. The query runs here, so a failure is raised before any
+	 * response is written.
 	 * 
-	 * @return
+	 * @param after	Only users with a higher id are listed, or null to start with the first user.
+	 * @param max	The maximum number of users, limited to MAX_LIST_PAGE.
+	 * @return	The stream of users, to be closed by the caller.
+	 * @throws WebServiceException	If the query fails.
 	 */
-	public List<Map<String, Object>> getUsers() {
+	public ResultStream openUsers(String after, int max) {
 		if (log.isDebugEnabled()) {
-			log.debug("Enter: getUsers()");
+			log.debug(String.format("Enter: openUsers(%s, %d)", after, max));
 		}
-		/**
-		 * TODO: paging?
-		 */
-		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
-		String query = "SELECT id, name, display_name, active FROM ets_user";
-		PreparedStatement statement = null;
-		try {
-			Connection connection = getConnection();
-			statement = connection.prepareStatement(query);
-			statement.setMaxRows(1000); // TODO: add paging
-			ResultSet rs = statement.executeQuery();
-			while (rs.next()) {
-				Map<String, Object> row = new HashMap<String, Object>();
-				String id = rs.getString("id");
-				String name = rs.getString("name");
-				String displayName = rs.getString("display_name");
-				boolean active = rs.getBoolean("active");
-				row.put("id", id);
-				row.put("name", name);
-				row.put("displayName", displayName);
-				row.put("active", active);
-				result.add(row);
-				List<Map<String, Object>> tokens = getUserTokens(id);
-				if (tokens != null && !tokens.isEmpty()) {
-					row.put("tokens", tokens);
-				}
-				List<Map<String, Object>> queues = getUserQueueAccess(id);
-				if (queues != null && !queues.isEmpty()) {
-					row.put("queues", queues);
-				}
+		return openQuery("SELECT id, name, display_name, active FROM ets_user WHERE id > ? ORDER BY id LIMIT ?", after, max, (writer, connection, rs) -> {
+			String id = rs.getString("id");
+			writer.beginObject();
+			writer.name("id").value(id);
+			writer.name("name").value(rs.getString("name"));
+			writer.name("displayName").value(rs.getString("display_name"));
+			writer.name("active").value(rs.getBoolean("active"));
+			List<Map<String, Object>> tokens = getUserTokens(connection, id);
+			if (tokens != null && !tokens.isEmpty()) {
+				writer.name("tokens");
+				writeRows(writer, tokens);
 			}
-		} catch (SQLException | IOException e) {
-			throw new AuthorizationException(e);
-		} finally {
-			try {
-				if (statement != null && !statement.isClosed()) {
-					statement.close();
+			List<Map<String, Object>> queues = getUserQueueAccess(connection, id);
+			if (queues != null && !queues.isEmpty()) {
+				writer.name("queues");
+				writeRows(writer, queues);
+			}
+			writer.endObject();
+		});
+	}
+
+	private void writeRows(JsonWriter writer, List<Map<String, Object>> rows) throws IOException {
+		writer.beginArray();
+		for (Map<String, Object> row : rows) {
+			writer.beginObject();
+			for (Map.Entry<String, Object> column : row.entrySet()) {
+				Object value = column.getValue();
+				writer.name(column.getKey());
+				if (value instanceof Boolean) {
+					writer.value((Boolean) value);
+				} else if (value instanceof Number) {
+					writer.value((Number) value);
+				} else {
+					writer.value(Util.otos(value));
 				}
-			} catch (SQLException e) {
-				log.error(e);
-				// Silently ignore
 			}
+			writer.endObject();
 		}
-		return result;
+		writer.endArray();
 	}
 
 	/**
@@ -814,12 +1911,9 @@ public class ETSContext {
 		}
 		Map<String, String> result = new HashMap<String, String>();
 		String query = "INSERT INTO ets_user_token (id, token, user_id, description, expiration) VALUES (?, ?, ?, ?, ?)";
-		PreparedStatement statement = null;
-		try {
-			String uuid = Util.uuid();
-			String token = Util.generateToken(64);
-			Connection connection = getConnection();
-			statement = connection.prepareStatement(query);
+		String uuid = Util.uuid();
+		String token = Util.generateToken(64);
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
 			statement.setString(1, uuid);
 			statement.setString(2, hashToken(token));
 			statement.setString(3, user_id);
@@ -830,15 +1924,6 @@ public class ETSContext {
 			result.put("id", uuid);
 			result.put("token", token);
 			result.put("status", "success");
-		} finally {
-			try {
-				if (statement != null && !statement.isClosed()) {
-					statement.close();
-				}
-			} catch (SQLException e) {
-				log.error(e);
-				// Silently ignore
-			}
 		}
 		return result;
 	}
@@ -856,22 +1941,23 @@ public class ETSContext {
 			log.debug(String.format("Enter: deleteUserToken(%s)", id));
 		}
 		if (Util.isNotNullOrEmpty(id)) {
-			String query = "DELETE FROM ets_user_token WHERE id = ?";
-			PreparedStatement statement = null;
-			try {
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
-				statement.setString(1, id);
-				statement.execute();
-			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
+			String token = null;
+			try (Connection connection = getConnection()) {
+				try (PreparedStatement statement = connection.prepareStatement("SELECT token FROM ets_user_token WHERE id = ?")) {
+					statement.setString(1, id);
+					ResultSet rs = statement.executeQuery();
+					if (rs.next()) {
+						token = rs.getString("token");
 					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
 				}
+				try (PreparedStatement statement = connection.prepareStatement("DELETE FROM ets_user_token WHERE id = ?")) {
+					statement.setString(1, id);
+					statement.execute();
+				}
+			}
+			if (token != null) {
+				// Decisions are cached by hashed token; tokens not rehashed yet are stored in plain text
+				authorizationCache.invalidateToken(token.startsWith(AuthorizationHelper.SSHA256PREFIX) ? token : hashToken(token));
 			}
 		}
 	}
@@ -893,11 +1979,8 @@ public class ETSContext {
 		}
 		Map<String, String> result = new HashMap<String, String>();
 		String query = "INSERT INTO ets_user (id, name, display_name, active) VALUES (?, ?, ?, ?)";
-		PreparedStatement statement = null;
-		try {
-			String uuid = Util.uuid();
-			Connection connection = getConnection();
-			statement = connection.prepareStatement(query);
+		String uuid = Util.uuid();
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
 			statement.setString(1, uuid);
 			statement.setString(2, name);
 			statement.setString(3, displayName);
@@ -905,15 +1988,6 @@ public class ETSContext {
 			statement.execute();
 			result.put("id", uuid);
 			result.put("status", "success");
-		} finally {
-			try {
-				if (statement != null && !statement.isClosed()) {
-					statement.close();
-				}
-			} catch (SQLException e) {
-				log.error(e);
-				// Silently ignore
-			}
 		}
 		return result;
 	}
@@ -932,22 +2006,11 @@ public class ETSContext {
 		}
 		if (Util.isNotNullOrEmpty(id)) {
 			String query = "DELETE FROM ets_user WHERE id = ?";
-			PreparedStatement statement = null;
-			try {
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
+			try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
 				statement.setString(1, id);
 				statement.execute();
-			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
-					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
-				}
 			}
+			authorizationCache.clear();
 		}
 	}
 
@@ -968,25 +2031,15 @@ public class ETSContext {
 		}
 		if (Util.isNotNullOrEmpty(userId) && Util.isNotNullOrEmpty(queueId)) {
 			String query = "INSERT INTO ets_queue_access (`queue_id`, `user_id`, `read`, `write`) VALUES (?, ?, ?, ?)";
-			PreparedStatement statement = null;
-			try {
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
+			try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
 				statement.setString(1, queueId);
 				statement.setString(2, userId);
 				statement.setBoolean(3, read);
 				statement.setBoolean(4, write);
 				statement.execute();
-			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
-					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
-				}
 			}
+			// Drop cached denials
+			authorizationCache.invalidateQueue(queueId);
 		}
 	}
 
@@ -1005,23 +2058,12 @@ public class ETSContext {
 		}
 		if (Util.isNotNullOrEmpty(userId) && Util.isNotNullOrEmpty(queueId)) {
 			String query = "DELETE FROM ets_queue_access WHERE queue_id = ? AND user_id = ?";
-			PreparedStatement statement = null;
-			try {
-				Connection connection = getConnection();
-				statement = connection.prepareStatement(query);
+			try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
 				statement.setString(1, queueId);
 				statement.setString(2, userId);
 				statement.execute();
-			} finally {
-				try {
-					if (statement != null && !statement.isClosed()) {
-						statement.close();
-					}
-				} catch (SQLException e) {
-					log.error(e);
-					// Silently ignore
-				}
 			}
+			authorizationCache.invalidateQueue(queueId);
 		}
 	}
 	
@@ -1040,68 +2082,39 @@ public class ETSContext {
 		Map<String,String> tokenMap = new HashMap<String,String>();
 		int updated = 0;
 		String query = "SELECT id, token FROM ets_user_token WHERE NOT(token like '{SSHA256}%')";
-		PreparedStatement statement = null;
-		ResultSet rs = null;
-		try {
-			Connection connection = getConnection();
-			statement = connection.prepareStatement(query);
-			rs = statement.executeQuery();
-			while (rs.next()) {
-				String id = rs.getString("id");
-				String token = rs.getString("token");
-				if (log.isTraceEnabled()) {
-					log.trace(String.format("hashTokens: Token id: %s", id));
+		try (Connection connection = getConnection()) {
+			try (PreparedStatement statement = connection.prepareStatement(query)) {
+				ResultSet rs = statement.executeQuery();
+				while (rs.next()) {
+					String id = rs.getString("id");
+					String token = rs.getString("token");
+					if (log.isTraceEnabled()) {
+						log.trace(String.format("hashTokens: Token id: %s", id));
+					}
+					tokenMap.put(id, token);
 				}
-				tokenMap.put(id, token);
 			}
-			rs.close();
-			statement.close();
 			if (!tokenMap.isEmpty()) {
-				for (String id: tokenMap.keySet()) {
-					String token = tokenMap.get(id);
-					token = hashToken(token);
-					if (token == null || token.equals(tokenMap.get(id))) {
-						log.error("No hash update, aborting");
-						return -1;
+				query = "UPDATE ets_user_token SET token = ? WHERE id = ?";
+				try (PreparedStatement statement = connection.prepareStatement(query)) {
+					for (String id: tokenMap.keySet()) {
+						String token = tokenMap.get(id);
+						token = hashToken(token);
+						if (token == null || token.equals(tokenMap.get(id))) {
+							log.error("No hash update, aborting");
+							return -1;
+						}
+						statement.setString(1, token);
+						statement.setString(2, id);
+						statement.execute();
+						// Denied before, as lookups compare hashed tokens
+						authorizationCache.invalidateToken(token);
+						updated++;
 					}
-					query = "UPDATE ets_user_token SET token = ? WHERE id = ?";
-					statement = connection.prepareStatement(query);
-					statement.setString(1, token);
-					statement.setString(2, id);
-					statement.execute();
-					statement.close();
-					updated++;
 				}
-			}			
-		} finally {
-			try {
-				if (rs != null && !rs.isClosed()) {
-					rs.close();
-				}
-				if (statement != null && !statement.isClosed()) {
-					statement.close();
-				}
-			} catch (SQLException e) {
-				log.error(e);
-				// Silently ignore
 			}
 		}
 		log.trace(String.format("hashTokens: Rehashed %d tokens", updated));
 		return updated;
 	}
-
-	/**
-	 * To be executed if the class is removed from memory.
-	 */
-	protected void finalize() throws SQLException {
-		if (log.isDebugEnabled()) {
-			log.debug("Enter: finalize()");
-		}
-		if (connection != null && !connection.isClosed()) {
-			connection.close();
-		}
-		if (dataSource != null && !dataSource.isClosed()) {
-			dataSource.close();
-		}
-	}
 }
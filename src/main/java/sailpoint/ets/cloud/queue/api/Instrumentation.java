@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.api;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import sailpoint.ets.cloud.queue.tools.PrometheusWriter;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Latency histograms of REST calls and of the database work done per {@link ETSContext} method. All counters are
+ * LongAdders, which spread concurrent updates over several cells, so recording a latency does not make the threads
+ * of busy queues contend with each other. The counters are only summed when the metrics are read.
+ */
+public class Instrumentation {
+
+	// Upper bounds of the buckets, in seconds
+	private static final double[] BOUNDS = {
+		0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+	};
+	private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+	static {
+		for (int i = 0; i < BOUNDS.length; i++) {
+			BOUNDS_NANOS[i] = (long) (BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+		}
+	}
+
+	/**
+	 * A latency histogram with fixed buckets.
+	 */
+	public static class Histogram {
+		// One more than the bounds, for the values above the highest bound
+		private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+		private final LongAdder sum = new LongAdder();
+
+		Histogram() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		/**
+		 * Record a duration.
+		 *
+		 * @param nanos
+		 */
+		public void observe(long nanos) {
+			int i = 0;
+			while (i < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[i]) {
+				i++;
+			}
+			buckets[i].increment();
+			sum.add(nanos);
+		}
+
+		/**
+		 * Record the time passed since the specified start.
+		 *
+		 * @param start	A value of System.nanoTime().
+		 */
+		public void since(long start) {
+			observe(System.nanoTime() - start);
+		}
+
+		private void write(PrometheusWriter writer, String name, String label, String value) throws IOException {
+			long count = 0;
+			for (int i = 0; i < BOUNDS.length; i++) {
+				count += buckets[i].sum();
+				writer.sample(name + "_bucket", new String[] { label, value, "le", PrometheusWriter.format(BOUNDS[i]) }, count);
+			}
+			count += buckets[BOUNDS.length].sum();
+			writer.sample(name + "_bucket", new String[] { label, value, "le", "+Inf" }, count);
+			writer.sample(name + "_sum", new String[] { label, value }, sum.sum() / 1e9);
+			writer.sample(name + "_count", new String[] { label, value }, count);
+		}
+	}
+
+	/**
+	 * Histograms of the same metric, one per value of its label.
+	 */
+	public static class Family {
+		private final String name;
+		private final String help;
+		private final String label;
+		private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+		Family(String name, String help, String label) {
+			this.name = name;
+			this.help = help;
+			this.label = label;
+		}
+
+		/**
+		 * The histogram for a label value. Callers on hot paths should keep the result.
+		 *
+		 * @param value
+		 * @return
+		 */
+		public Histogram get(String value) {
+			Histogram histogram = histograms.get(value);
+			return (histogram != null) ? histogram : histograms.computeIfAbsent(value, v -> new Histogram());
+		}
+
+		void write(PrometheusWriter writer) throws IOException {
+			if (histograms.isEmpty()) {
+				return;
+			}
+			writer.header(name, help, PrometheusWriter.HISTOGRAM);
+			for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+				entry.getValue().write(writer, name, label, entry.getKey());
+			}
+		}
+	}
+
+	public static final Family REQUESTS = new Family("ets_http_request_duration_seconds",
+			"Time taken by REST calls, per resource method.", "endpoint");
+
+	public static final Family JDBC = new Family("ets_jdbc_duration_seconds",
+			"Time spent on database work, per ETSContext method.", "method");
+
+	public static final Family POOL_WAIT = new Family("ets_db_pool_wait_seconds",
+			"Time spent waiting for a connection from the pool.", "pool");
+
+	private Instrumentation() {
+	}
+
+	/**
+	 * Write all histograms.
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	public static void write(PrometheusWriter writer) throws IOException {
+		REQUESTS.write(writer);
+		JDBC.write(writer);
+		POOL_WAIT.write(writer);
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.api;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * The result of reading one or more entries from a queue: the entries, in queue order, and whether
+ * the queue held more entries than were returned.
+ */
+public class QueueBatch {
+
+	private final List<QueueEntry> entries;
+	private final boolean hasMore;
+	private final int deadLettered;
+
+	public QueueBatch(List<QueueEntry> entries, boolean hasMore) {
+		this(entries, hasMore, 0);
+	}
+
+	/**
+	 * @param entries
+	 * @param hasMore
+	 * @param deadLettered	The number of entries moved to the dead-letter queue while claiming the entries.
+	 */
+	public QueueBatch(List<QueueEntry> entries, boolean hasMore, int deadLettered) {
+		this.entries = (entries == null) ? new ArrayList<QueueEntry>() : entries;
+		this.hasMore = hasMore;
+		this.deadLettered = deadLettered;
+	}
+
+	/**
+	 * The entries read, oldest first.
+	 *
+	 * @return
+	 */
+	public List<QueueEntry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Whether entries remained in the queue after this batch.
+	 *
+	 * @return
+	 */
+	public boolean hasMore() {
+		return hasMore;
+	}
+
+	/**
+	 * The number of entries that ran out of delivery attempts and were moved to the dead-letter queue instead of
+	 * being returned.
+	 *
+	 * @return
+	 */
+	public int getDeadLettered() {
+		return deadLettered;
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.api;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * A single entry read from a queue.
+ */
+public class QueueEntry {
+
+	private final long id;
+	private final String data;
+	private final String leaseId;
+
+	public QueueEntry(long id, String data) {
+		this(id, data, null);
+	}
+
+	/**
+	 * @param id
+	 * @param data
+	 * @param leaseId	The lease under which the entry was claimed, or null.
+	 */
+	public QueueEntry(long id, String data, String leaseId) {
+		this.id = id;
+		this.data = data;
+		this.leaseId = leaseId;
+	}
+
+	/**
+	 * The id of the entry, which increases in queue order.
+	 *
+	 * @return
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * The data stored for the entry.
+	 *
+	 * @return
+	 */
+	public String getData() {
+		return data;
+	}
+
+	/**
+	 * The lease under which the entry was claimed, needed to acknowledge it, or null if it was not leased.
+	 *
+	 * @return
+	 */
+	public String getLeaseId() {
+		return leaseId;
+	}
+}
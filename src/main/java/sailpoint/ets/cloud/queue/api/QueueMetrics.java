@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.api;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * In-memory counters per queue: entries enqueued, dequeued (polled or acknowledged), purged and moved to the
+ * dead-letter queue since startup, the current depth and the creation time of the oldest entry. The counters are updated by the write, read and purge
+ * paths of {@link ETSContext}, so reading them costs no database access. The depth and oldest entry are seeded from
+ * the store at startup and synchronized again by the reaper, which corrects any drift caused by other nodes writing
+ * to or reading from the same database.
+ */
+public class QueueMetrics {
+
+	private static final Logger log = LogManager.getLogger(QueueMetrics.class);
+
+	// The oldest entry is found again from the store when it is needed
+	private static final long OLDEST_UNKNOWN = -1;
+
+	private static class Counters {
+		private final LongAdder enqueued = new LongAdder();
+		private final LongAdder dequeued = new LongAdder();
+		private final LongAdder purged = new LongAdder();
+		private final LongAdder deadLettered = new LongAdder();
+		private final AtomicLong depth = new AtomicLong();
+		private volatile long oldest = OLDEST_UNKNOWN;
+
+		void removed(long count) {
+			depth.updateAndGet(d -> Math.max(0, d - count));
+			oldest = OLDEST_UNKNOWN;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Counters> queues = new ConcurrentHashMap<String, Counters>();
+
+	private Counters get(String queue) {
+		return queues.computeIfAbsent(queue, q -> new Counters());
+	}
+
+	/**
+	 * Record entries written to a queue.
+	 *
+	 * @param queue
+	 * @param count
+	 */
+	void enqueued(String queue, int count) {
+		Counters counters = get(queue);
+		counters.enqueued.add(count);
+		if (counters.depth.getAndAdd(count) == 0) {
+			// The queue was empty, so the first of these entries is the oldest
+			counters.oldest = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Record entries taken from a queue by a poll or an acknowledgement.
+	 *
+	 * @param queue
+	 * @param count
+	 */
+	void dequeued(String queue, int count) {
+		if (count > 0) {
+			Counters counters = get(queue);
+			counters.dequeued.add(count);
+			counters.removed(count);
+		}
+	}
+
+	/**
+	 * Record expired entries removed from a queue.
+	 *
+	 * @param queue
+	 * @param count
+	 */
+	void purged(String queue, int count) {
+		if (count > 0) {
+			Counters counters = get(queue);
+			counters.purged.add(count);
+			counters.removed(count);
+		}
+	}
+
+	/**
+	 * Record entries moved to the dead-letter queue of a queue.
+	 *
+	 * @param queue
+	 * @param count
+	 */
+	void deadLettered(String queue, int count) {
+		if (count > 0) {
+			Counters counters = get(queue);
+			counters.deadLettered.add(count);
+			counters.removed(count);
+		}
+	}
+
+	/**
+	 * Set the depth and oldest entry of a queue to the values found in the store.
+	 *
+	 * @param queue
+	 * @param depth
+	 * @param oldest	The creation time of the oldest entry, or 0 if the queue is empty.
+	 */
+	void sync(String queue, long depth, long oldest) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: sync(%s, %d, %d)", queue, depth, oldest));
+		}
+		Counters counters = get(queue);
+		counters.depth.set(depth);
+		counters.oldest = oldest;
+	}
+
+	/**
+	 * Stop tracking a deleted queue.
+	 *
+	 * @param queue
+	 */
+	void remove(String queue) {
+		queues.remove(queue);
+	}
+
+	/**
+	 * The counters of all queues. The oldest entry of queues that had entries removed since it was last known is
+	 * looked up in the store.
+	 *
+	 * @param oldestEntryTime	Finds the creation time of the oldest entry of a queue in its store.
+	 * @return
+	 */
+	public Map<String, Object> getStatistics(ToLongFunction<String> oldestEntryTime) {
+		Map<String, Object> result = new HashMap<String, Object>();
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Counters> entry : queues.entrySet()) {
+			Counters counters = entry.getValue();
+			long oldest = counters.oldest;
+			if (oldest == OLDEST_UNKNOWN) {
+				oldest = oldestEntryTime.applyAsLong(entry.getKey());
+				counters.oldest = oldest;
+			}
+			Map<String, Object> queue = new HashMap<String, Object>();
+			queue.put("enqueued", counters.enqueued.sum());
+			queue.put("dequeued", counters.dequeued.sum());
+			queue.put("purged", counters.purged.sum());
+			queue.put("deadLettered", counters.deadLettered.sum());
+			queue.put("depth", counters.depth.get());
+			// In seconds, 0 for an empty queue
+			queue.put("oldestEntryAge", (oldest <= 0) ? 0 : Math.max(0, (now - oldest) / 1000));
+			result.put(entry.getKey(), queue);
+		}
+		return result;
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.api;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import sailpoint.ets.cloud.queue.tools.Util;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Periodically removes expired entries from all queues on a single background thread. Each queue uses its own
+ * maximum age if one is set, or the configured default otherwise. Entries are deleted in bounded chunks, each in
+ * its own transaction, so row locks are held briefly and pollers are not blocked by a large purge. Entries that all
+ * subscriptions of their queue have read are removed the same way, and entries that have waited longer than
+ * db.queue.priority.aging are raised to one below the highest priority, so they are not starved by higher priority
+ * entries, while entries written with the highest priority still go first.
+ * After each run the queue metrics are synchronized with the stores.
+ */
+public class QueueReaper {
+
+	private static final Logger log = LogManager.getLogger(QueueReaper.class);
+
+	private final ETSContext context;
+	private final ScheduledExecutorService scheduler;
+	private final ConcurrentHashMap<String, AtomicLong> purgedPerQueue = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong purged = new AtomicLong();
+	private final AtomicLong trimmed = new AtomicLong();
+	private final AtomicLong promoted = new AtomicLong();
+	private final AtomicLong runs = new AtomicLong();
+	private ScheduledFuture<?> task = null;
+	private volatile int chunkSize = 1000;
+	private volatile long lastRun = 0;
+	private volatile long lastRunMillis = 0;
+	private volatile String lastError = null;
+	private volatile Map<String, String> lastErrors = Collections.emptyMap();
+
+	QueueReaper(ETSContext context) {
+		this.context = context;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "ets-queue-reaper");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * (Re)schedule the reaper.
+	 *
+	 * @param intervalSeconds	Time between runs. 0 or less disables the reaper.
+	 * @param chunkSize	The maximum number of entries deleted per statement.
+	 */
+	synchronized void schedule(int intervalSeconds, int chunkSize) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: schedule(%d, %d)", intervalSeconds, chunkSize));
+		}
+		this.chunkSize = Math.max(1, chunkSize);
+		if (task != null) {
+			task.cancel(false);
+			task = null;
+		}
+		if (intervalSeconds > 0 && !scheduler.isShutdown()) {
+			task = scheduler.scheduleWithFixedDelay(this::run, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Purge all queues once. Failures are recorded per queue and step, so one queue that cannot be purged does not
+	 * stop the others.
+	 */
+	void run() {
+		long start = System.currentTimeMillis();
+		Map<String, String> errors = new LinkedHashMap<String, String>();
+		try {
+			Map<String, Integer> maxAges = context.getQueueMaxAges();
+			for (Map.Entry<String, Integer> queue : maxAges.entrySet()) {
+				if (queue.getValue() <= 0) {
+					// Kept forever
+					continue;
+				}
+				try {
+					int count = context.purgeExpiredEntries(queue.getKey(), queue.getValue(), chunkSize);
+					if (count > 0) {
+						purged.addAndGet(count);
+						purgedPerQueue.computeIfAbsent(queue.getKey(), q -> new AtomicLong()).addAndGet(count);
+						if (log.isDebugEnabled()) {
+							log.debug(String.format("run: Purged %d entries from queue %s", count, queue.getKey()));
+						}
+					}
+				} catch (RuntimeException e) {
+					failed(errors, "purge", queue.getKey(), e);
+				}
+			}
+			int aging = context.getPriorityAging();
+			if (aging > 0) {
+				for (String queue : maxAges.keySet()) {
+					try {
+						int count = context.promoteWaitingEntries(queue, aging, chunkSize);
+						promoted.addAndGet(count);
+						if (log.isDebugEnabled() && count > 0) {
+							log.debug(String.format("run: Promoted %d waiting entries of queue %s", count, queue));
+						}
+					} catch (RuntimeException e) {
+						failed(errors, "promote", queue, e);
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			failed(errors, "list", null, e);
+		}
+		try {
+			for (Map.Entry<String, Long> queue : context.getSubscriptionTrimPoints().entrySet()) {
+				try {
+					int count = context.trimSubscribedQueue(queue.getKey(), queue.getValue(), chunkSize);
+					trimmed.addAndGet(count);
+					if (log.isDebugEnabled() && count > 0) {
+						log.debug(String.format("run: Removed %d entries read by all subscriptions from queue %s", count, queue.getKey()));
+					}
+				} catch (RuntimeException e) {
+					failed(errors, "trim", queue.getKey(), e);
+				}
+			}
+		} catch (RuntimeException e) {
+			failed(errors, "subscriptions", null, e);
+		}
+		try {
+			context.syncQueueMetrics();
+		} catch (RuntimeException e) {
+			failed(errors, "sync", null, e);
+		}
+		lastError = errors.isEmpty() ? null : errors.values().iterator().next();
+		lastErrors = errors;
+		runs.incrementAndGet();
+		lastRun = start;
+		lastRunMillis = System.currentTimeMillis() - start;
+	}
+
+	/**
+	 * Log and record a failed step of a run.
+	 *
+	 * @param errors	The errors of the run, per step and queue.
+	 * @param step
+	 * @param queue	The queue the step failed for, or null if it covers all queues.
+	 * @param e
+	 */
+	private static void failed(Map<String, String> errors, String step, String queue, RuntimeException e) {
+		String key = (queue == null) ? step : step + " " + queue;
+		log.error(String.format("Reaper step %s failed", key), e);
+		errors.put(key, String.format("%s: %s", key, e.getMessage()));
+	}
+
+	/**
+	 * Statistics on the entries purged, trimmed and promoted since the application started.
+	 *
+	 * @return
+	 */
+	public Map<String, Object> getStatistics() {
+		Map<String, Object> result = new HashMap<String, Object>();
+		result.put("purged", purged.get());
+		result.put("trimmed", trimmed.get());
+		result.put("promoted", promoted.get());
+		result.put("runs", runs.get());
+		result.put("lastRun", (lastRun == 0) ? null : new SimpleDateFormat(Util.PREF_DATEFORMAT).format(new Date(lastRun)));
+		result.put("lastRunMillis", lastRunMillis);
+		result.put("lastError", lastError);
+		result.put("errors", new ArrayList<String>(lastErrors.values()));
+		Map<String, Long> queues = new HashMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : purgedPerQueue.entrySet()) {
+			queues.put(entry.getKey(), entry.getValue().get());
+		}
+		result.put("queues", queues);
+		return result;
+	}
+
+	/**
+	 * Stop the background thread.
+	 */
+	synchronized void shutdown() {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: shutdown()");
+		}
+		scheduler.shutdownNow();
+	}
+}
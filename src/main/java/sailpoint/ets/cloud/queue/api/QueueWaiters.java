@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.api;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * An in-memory registry of requests waiting for entries to arrive in a queue. Writers signal the registry after
+ * committing new entries, and the matching waiters are woken on a separate thread pool so the writing request is
+ * not held up. Only writes on this node are seen; waiters must fall back to polling on timeout. The registry lives
+ * as long as its {@link ETSContext}, so a context initialized again gets a fresh thread pool.
+ */
+public class QueueWaiters {
+
+	private static final Logger log = LogManager.getLogger(QueueWaiters.class);
+
+	/**
+	 * A registered waiter. Consuming waiters take entries from the queue, so only as many of them are woken as
+	 * entries were written. Non-consuming waiters (e.g. peek) are all woken on every write.
+	 */
+	public static class Waiter {
+		private final boolean consuming;
+		private final Runnable callback;
+
+		public Waiter(boolean consuming, Runnable callback) {
+			this.consuming = consuming;
+			this.callback = callback;
+		}
+
+		public boolean isConsuming() {
+			return consuming;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Queue<Waiter>> waiters = new ConcurrentHashMap<String, Queue<Waiter>>();
+	private final ExecutorService executor;
+	// Only hands delayed callbacks to the executor
+	private final ScheduledExecutorService timer;
+
+	QueueWaiters() {
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "ets-queue-waiter-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "ets-queue-waiter-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Register a waiter for the specified queue.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param waiter
+	 */
+	public void register(String queue, Waiter waiter) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: register(%s, %s)", queue, waiter));
+		}
+		// Added inside compute, so a concurrent prune cannot drop the list the waiter is added to
+		waiters.compute(queue, (k, queueWaiters) -> {
+			Queue<Waiter> result = (queueWaiters == null) ? new ConcurrentLinkedQueue<Waiter>() : queueWaiters;
+			result.add(waiter);
+			return result;
+		});
+	}
+
+	/**
+	 * Remove a waiter from the specified queue, e.g. after it timed out.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param waiter
+	 * @return	true if the waiter was still registered.
+	 */
+	public boolean unregister(String queue, Waiter waiter) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: unregister(%s, %s)", queue, waiter));
+		}
+		Queue<Waiter> queueWaiters = waiters.get(queue);
+		boolean removed = (queueWaiters != null && queueWaiters.remove(waiter));
+		if (removed) {
+			prune(queue);
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove the waiter list of a queue once it is empty.
+	 *
+	 * @param queue
+	 */
+	private void prune(String queue) {
+		waiters.computeIfPresent(queue, (k, queueWaiters) -> queueWaiters.isEmpty() ? null : queueWaiters);
+	}
+
+	/**
+	 * Signal that entries were written to the specified queue. Wakes all non-consuming waiters and up to count
+	 * consuming waiters, in registration order.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param count	The number of entries written.
+	 */
+	public void signal(String queue, int count) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: signal(%s, %d)", queue, count));
+		}
+		Queue<Waiter> queueWaiters = waiters.get(queue);
+		if (queueWaiters == null || queueWaiters.isEmpty()) {
+			return;
+		}
+		int consumers = count;
+		Iterator<Waiter> iterator = queueWaiters.iterator();
+		while (iterator.hasNext()) {
+			Waiter waiter = iterator.next();
+			if (waiter.isConsuming()) {
+				if (consumers <= 0) {
+					continue;
+				}
+				if (!queueWaiters.remove(waiter)) {
+					// Taken by a concurrent signal or timeout
+					continue;
+				}
+				consumers--;
+			} else if (!queueWaiters.remove(waiter)) {
+				continue;
+			}
+			try {
+				executor.execute(waiter.callback);
+			} catch (RejectedExecutionException e) {
+				log.warn(String.format("Unable to wake waiter on queue %s", queue), e);
+			}
+		}
+		prune(queue);
+	}
+
+	/**
+	 * Run a callback on the thread pool of the waiters after a delay, e.g. to read a queue again once entries that
+	 * were not readable yet are expected to be.
+	 *
+	 * @param callback
+	 * @param delayMillis
+	 */
+	public void schedule(Runnable callback, long delayMillis) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: schedule(%s, %d)", callback, delayMillis));
+		}
+		try {
+			timer.schedule(() -> {
+				try {
+					executor.execute(callback);
+				} catch (RejectedExecutionException e) {
+					log.warn("Unable to run delayed waiter callback", e);
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			log.warn("Unable to schedule waiter callback", e);
+		}
+	}
+
+	/**
+	 * Stop the threads used to wake waiters.
+	 */
+	public void shutdown() {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: shutdown()");
+		}
+		timer.shutdownNow();
+		executor.shutdownNow();
+		waiters.clear();
+	}
+}
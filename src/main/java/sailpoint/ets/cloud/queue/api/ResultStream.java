@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * A query that has already been executed, written as a JSON array row by row as the rows are read. The query
+ * selects one row more than is written, to tell whether there are more rows after the ones written.
+ * The query runs before the response is started, so a failing query can still be reported as an error;
+ * only reading the rows happens while streaming. Closing the stream returns its connection to the pool.
+ */
+public class ResultStream implements Closeable {
+
+	private static final Logger log = LogManager.getLogger(ResultStream.class);
+
+	/**
+	 * Writes the current row of a result set.
+	 */
+	public interface RowWriter {
+		/**
+		 * @param writer
+		 * @param connection	The connection of the query, for reading related rows.
+		 * @param rs			The result set, positioned on the row to write.
+		 * @throws SQLException
+		 * @throws IOException
+		 */
+		void write(JsonWriter writer, Connection connection, ResultSet rs) throws SQLException, IOException;
+	}
+
+	private final Connection connection;
+	private final ResultSet rs;
+	private final int max;
+	private final RowWriter row;
+	private boolean hasMore = false;
+
+	/**
+	 * @param connection
+	 * @param rs	The rows, at most max + 1.
+	 * @param max	The number of rows to write.
+	 * @param row
+	 */
+	ResultStream(Connection connection, ResultSet rs, int max, RowWriter row) {
+		this.connection = connection;
+		this.rs = rs;
+		this.max = max;
+		this.row = row;
+	}
+
+	/**
+	 * Write the rows as a JSON array. A failure while reading the rows is reported as an IOException,
+	 * as the response has already been started and can no longer carry an error status.
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	public void write(JsonWriter writer) throws IOException {
+		writer.beginArray();
+		try {
+			int count = 0;
+			while (rs.next()) {
+				if (count++ == max) {
+					hasMore = true;
+					break;
+				}
+				row.write(writer, connection, rs);
+			}
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+		writer.endArray();
+	}
+
+	/**
+	 * Whether there were more rows than were written; valid once the rows are written.
+	 *
+	 * @return
+	 */
+	public boolean hasMore() {
+		return hasMore;
+	}
+
+	@Override
+	public void close() {
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			log.warn("Unable to close connection: " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Brings the database schema up to date when the application starts. Migrations are SQL files named
+ * <code>&lt;version&gt;_&lt;description&gt;.sql</code> in a directory, applied in version order. Applied versions
+ * are recorded in the <code>ets_schema_version</code> table. On MySQL, a named database lock makes sure only one
+ * node migrates at a time.
+ */
+public class SchemaMigrations {
+
+	private static final Logger log = LogManager.getLogger(SchemaMigrations.class);
+	private static final Pattern FILE_NAME = Pattern.compile("^(\\d+)_(.+)\\.sql$");
+	private static final String LOCK_NAME = "ets_schema_migration";
+	private static final int LOCK_TIMEOUT = 60;
+
+	private final File directory;
+
+	/**
+	 * @param directory	The directory holding the migration files.
+	 */
+	public SchemaMigrations(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Apply all migrations with a version above the current schema version.
+	 *
+	 * @param connection
+	 * @return	The number of migrations applied.
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public int migrate(Connection connection) throws SQLException, IOException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: migrate(%s)", directory));
+		}
+		TreeMap<Integer, File> migrations = findMigrations();
+		if (migrations.isEmpty()) {
+			return 0;
+		}
+		// An embedded database has a single user, so only MySQL needs the lock
+		boolean lock = "MySQL".equalsIgnoreCase(connection.getMetaData().getDatabaseProductName());
+		if (lock) {
+			lock(connection);
+		}
+		try {
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("CREATE TABLE IF NOT EXISTS ets_schema_version (version int NOT NULL, description varchar(256) DEFAULT NULL, applied datetime NOT NULL DEFAULT CURRENT_TIMESTAMP, PRIMARY KEY (version))");
+			}
+			int current = getVersion(connection);
+			int applied = 0;
+			for (File file : migrations.tailMap(current, false).values()) {
+				apply(connection, file);
+				applied++;
+			}
+			return applied;
+		} finally {
+			if (lock) {
+				unlock(connection);
+			}
+		}
+	}
+
+	private TreeMap<Integer, File> findMigrations() {
+		TreeMap<Integer, File> migrations = new TreeMap<Integer, File>();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			log.warn(String.format("No schema migrations found in %s", directory));
+			return migrations;
+		}
+		for (File file : files) {
+			Matcher matcher = FILE_NAME.matcher(file.getName());
+			if (matcher.matches()) {
+				migrations.put(Integer.valueOf(matcher.group(1)), file);
+			}
+		}
+		return migrations;
+	}
+
+	private int getVersion(Connection connection) throws SQLException {
+		try (Statement statement = connection.createStatement()) {
+			ResultSet rs = statement.executeQuery("SELECT MAX(version) FROM ets_schema_version");
+			if (rs.next()) {
+				return rs.getInt(1);
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Run the statements of a migration and record its version. Note that MySQL commits DDL statements implicitly,
+	 * so a failing migration must be written to be safe to run again.
+	 *
+	 * @param connection
+	 * @param file
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	private void apply(Connection connection, File file) throws SQLException, IOException {
+		Matcher matcher = FILE_NAME.matcher(file.getName());
+		matcher.matches();
+		int version = Integer.parseInt(matcher.group(1));
+		String description = matcher.group(2).replace('_', ' ');
+		log.info(String.format("Applying schema migration %d: %s", version, description));
+		try (Statement statement = connection.createStatement()) {
+			for (String sql : split(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8))) {
+				if (log.isDebugEnabled()) {
+					log.debug(String.format("migrate: %s", sql));
+				}
+				statement.execute(sql);
+			}
+		}
+		try (PreparedStatement statement = connection.prepareStatement("INSERT INTO ets_schema_version (version, description) VALUES (?, ?)")) {
+			statement.setInt(1, version);
+			statement.setString(2, description);
+			statement.execute();
+		}
+	}
+
+	/**
+	 * Split a script into statements. Statements end with a semicolon at the end of a line; lines starting with
+	 * <code>--</code> are comments.
+	 *
+	 * @param script
+	 * @return
+	 */
+	private List<String> split(String script) {
+		List<String> statements = new ArrayList<String>();
+		StringBuilder current = new StringBuilder();
+		for (String line : script.split("\\r?\\n")) {
+			String trimmed = line.trim();
+			if (trimmed.isEmpty() || trimmed.startsWith("--")) {
+				continue;
+			}
+			current.append(line).append('\n');
+			if (trimmed.endsWith(";")) {
+				String sql = current.toString().trim();
+				statements.add(sql.substring(0, sql.length() - 1));
+				current.setLength(0);
+			}
+		}
+		if (current.toString().trim().length() > 0) {
+			statements.add(current.toString().trim());
+		}
+		return statements;
+	}
+
+	private void lock(Connection connection) throws SQLException {
+		try (PreparedStatement statement = connection.prepareStatement("SELECT GET_LOCK(?, ?)")) {
+			statement.setString(1, LOCK_NAME);
+			statement.setInt(2, LOCK_TIMEOUT);
+			ResultSet rs = statement.executeQuery();
+			if (!rs.next() || rs.getInt(1) != 1) {
+				throw new SQLException("Unable to obtain the schema migration lock");
+			}
+		}
+	}
+
+	private void unlock(Connection connection) {
+		try (PreparedStatement statement = connection.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+			statement.setString(1, LOCK_NAME);
+			statement.executeQuery();
+		} catch (SQLException e) {
+			log.error(e);
+			// Silently ignore
+		}
+	}
+}
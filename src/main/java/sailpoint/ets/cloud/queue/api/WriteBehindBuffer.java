@@ -0,0 +1,325 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import javax.xml.ws.WebServiceException;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import sailpoint.ets.cloud.queue.store.PartialWriteException;
+import sailpoint.ets.cloud.queue.store.QueueStore;
+import sailpoint.ets.cloud.queue.tools.Util;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Accepts queue writes into a bounded buffer, from which a single writer thread stores them in groups. A group is
+ * written when it holds maxBatch entries or when its oldest write has waited maxLatency milliseconds, whichever
+ * comes first, in a single commit per store and priority. Each write is completed once its group is durable, so callers keep
+ * their guarantee while many of them share a commit. Callers are notified on a separate thread pool, so a slow caller,
+ * e.g. one writing a response to a slow client, does not hold up the commits of the other writes.
+ */
+public class WriteBehindBuffer {
+
+	private static final Logger log = LogManager.getLogger(WriteBehindBuffer.class);
+	private static final Instrumentation.Histogram jdbcWrite = Instrumentation.JDBC.get("writeDataToQueueAsync");
+
+	private static class PendingWrite {
+		private final String queue;
+		private final List<String> data;
+		private final int priority;
+		private final CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+
+		PendingWrite(String queue, List<String> data, int priority) {
+			this.queue = queue;
+			this.data = data;
+			this.priority = priority;
+		}
+	}
+
+	private final ArrayBlockingQueue<PendingWrite> buffer;
+	private final Function<String, QueueStore> stores;
+	private final BiConsumer<String, Integer> onStored;
+	private final int maxBatch;
+	private final long maxLatencyNanos;
+	private final long offerTimeout;
+	private final Thread writer;
+	private final ExecutorService completions;
+	// Runs a completion on the caller's thread once the pool is shut down, so no caller is left waiting
+	private final Executor completionExecutor;
+	private volatile boolean running = true;
+
+	/**
+	 * @param stores		Finds the store of a queue.
+	 * @param onStored		Called with the queue and the number of entries after entries were stored.
+	 * @param capacity		The maximum number of writes waiting to be stored.
+	 * @param maxBatch		The maximum number of entries stored per commit.
+	 * @param maxLatency	The maximum time, in milliseconds, a write waits for others to join its commit.
+	 * @param offerTimeout	The time, in milliseconds, a write waits for room in a full buffer before it is refused.
+	 */
+	WriteBehindBuffer(Function<String, QueueStore> stores, BiConsumer<String, Integer> onStored, int capacity,
+			int maxBatch, long maxLatency, long offerTimeout) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Constructor: WriteBehindBuffer(%s, %s, %d, %d, %d, %d)", stores, onStored, capacity,
+					maxBatch, maxLatency, offerTimeout));
+		}
+		this.buffer = new ArrayBlockingQueue<PendingWrite>(Math.max(1, capacity));
+		this.stores = stores;
+		this.onStored = onStored;
+		this.maxBatch = Math.max(1, maxBatch);
+		this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxLatency));
+		this.offerTimeout = Math.max(0, offerTimeout);
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.completions = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "ets-write-behind-completion-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.completionExecutor = task -> {
+			try {
+				completions.execute(task);
+			} catch (RejectedExecutionException e) {
+				task.run();
+			}
+		};
+		this.writer = new Thread(this::run, "ets-write-behind");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Add entries to the buffer.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param data	The data of the entries, in queue order.
+	 * @return	Completes with the number of entries written once they are stored, or exceptionally if storing them
+	 *			failed. Fails with a RejectedExecutionException if the buffer stays full.
+	 */
+	public CompletableFuture<Integer> submit(String queue, List<String> data) {
+		return submit(queue, data, QueueStore.DEFAULT_PRIORITY);
+	}
+
+	/**
+	 * Add entries with a priority to the buffer.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param data	The data of the entries, in queue order.
+	 * @param priority	The priority of the entries.
+	 * @return	Completes with the number of entries written once they are stored, or exceptionally if storing them
+	 *			failed. Fails with a RejectedExecutionException if the buffer stays full. Dependent actions run on the
+	 *			completion thread pool, never on the writer thread.
+	 */
+	public CompletableFuture<Integer> submit(String queue, List<String> data, int priority) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: submit(%s, %s, %d)", queue, (data == null) ? "null" : "List(********)", priority));
+		}
+		if (Util.isNullOrEmpty(queue) || data == null || data.isEmpty()) {
+			return CompletableFuture.completedFuture(0);
+		}
+		PendingWrite write = new PendingWrite(queue, data, priority);
+		boolean accepted = false;
+		if (running) {
+			try {
+				accepted = buffer.offer(write, offerTimeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (!accepted) {
+			write.future.completeExceptionally(new RejectedExecutionException("Write buffer full"));
+		}
+		// Completed by the writer thread; the caller's actions run on the completion pool
+		return write.future.whenCompleteAsync((count, e) -> { }, completionExecutor);
+	}
+
+	/**
+	 * The number of writes waiting to be stored.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return buffer.size();
+	}
+
+	/**
+	 * Stop accepting writes, store the ones already buffered and stop the writer thread.
+	 */
+	void shutdown() {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: shutdown()");
+		}
+		running = false;
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(30));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		PendingWrite write;
+		while ((write = buffer.poll()) != null) {
+			write.future.completeExceptionally(new WebServiceException("Write buffer closed"));
+		}
+		completions.shutdown();
+	}
+
+	private void run() {
+		List<PendingWrite> group = new ArrayList<PendingWrite>();
+		while (running || !buffer.isEmpty()) {
+			try {
+				PendingWrite first = buffer.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				group.add(first);
+				int entries = first.data.size();
+				long deadline = System.nanoTime() + maxLatencyNanos;
+				while (entries < maxBatch) {
+					PendingWrite next = buffer.poll();
+					if (next == null) {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0 || (next = buffer.poll(remaining, TimeUnit.NANOSECONDS)) == null) {
+							break;
+						}
+					}
+					group.add(next);
+					entries += next.data.size();
+				}
+				write(group);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException e) {
+				log.error(e);
+				for (PendingWrite write : group) {
+					write.future.completeExceptionally(e);
+				}
+			} finally {
+				group.clear();
+			}
+		}
+	}
+
+	/**
+	 * Store a group of writes, one commit per store and priority. If a commit fails, the writes it did not store
+	 * are retried one by one, so a single bad write does not fail the others.
+	 *
+	 * @param group
+	 */
+	private void write(List<PendingWrite> group) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: write(%d)", group.size()));
+		}
+		Map<QueueStore, Map<Integer, List<PendingWrite>>> byStore = new IdentityHashMap<QueueStore, Map<Integer, List<PendingWrite>>>();
+		for (PendingWrite write : group) {
+			try {
+				byStore.computeIfAbsent(stores.apply(write.queue), s -> new TreeMap<Integer, List<PendingWrite>>(Collections.reverseOrder()))
+						.computeIfAbsent(write.priority, p -> new ArrayList<PendingWrite>()).add(write);
+			} catch (WebServiceException e) {
+				write.future.completeExceptionally(e);
+			}
+		}
+		for (Map.Entry<QueueStore, Map<Integer, List<PendingWrite>>> entry : byStore.entrySet()) {
+			for (Map.Entry<Integer, List<PendingWrite>> writes : entry.getValue().entrySet()) {
+				write(entry.getKey(), writes.getKey(), writes.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Store the writes of a group for one store and priority in a single commit.
+	 *
+	 * @param store
+	 * @param priority
+	 * @param writes
+	 */
+	private void write(QueueStore store, int priority, List<PendingWrite> writes) {
+		Map<String, List<String>> data = new LinkedHashMap<String, List<String>>();
+		for (PendingWrite write : writes) {
+			data.computeIfAbsent(write.queue, q -> new ArrayList<String>()).addAll(write.data);
+		}
+		long start = System.nanoTime();
+		try {
+			Map<String, Integer> counts = store.enqueueAll(data, priority);
+			jdbcWrite.since(start);
+			for (Map.Entry<String, Integer> count : counts.entrySet()) {
+				onStored.accept(count.getKey(), count.getValue());
+			}
+			for (PendingWrite write : writes) {
+				write.future.complete(count(write.data));
+			}
+		} catch (UnsupportedOperationException e) {
+			// The store does not support the priority; nothing was written
+			for (PendingWrite write : writes) {
+				write.future.completeExceptionally(e);
+			}
+		} catch (PartialWriteException e) {
+			// Only the queues that were not stored are retried, so no entries are written twice
+			log.warn(String.format("Group commit of %d writes failed after %d queues, retrying the others one by one: %s",
+					writes.size(), e.getWritten().size(), e.getMessage()));
+			List<PendingWrite> remaining = new ArrayList<PendingWrite>();
+			for (Map.Entry<String, Integer> count : e.getWritten().entrySet()) {
+				onStored.accept(count.getKey(), count.getValue());
+			}
+			for (PendingWrite write : writes) {
+				if (e.getWritten().containsKey(write.queue)) {
+					write.future.complete(count(write.data));
+				} else {
+					remaining.add(write);
+				}
+			}
+			retry(store, priority, remaining);
+		} catch (WebServiceException e) {
+			log.warn(String.format("Group commit of %d writes failed, retrying one by one: %s", writes.size(), e.getMessage()));
+			retry(store, priority, writes);
+		}
+	}
+
+	/**
+	 * Store writes one by one after their group commit failed, so a single bad write does not fail the others.
+	 *
+	 * @param store
+	 * @param priority
+	 * @param writes	Writes none of whose entries were stored.
+	 */
+	private void retry(QueueStore store, int priority, List<PendingWrite> writes) {
+		for (PendingWrite write : writes) {
+			try {
+				int count = store.enqueue(write.queue, write.data, priority);
+				onStored.accept(write.queue, count);
+				write.future.complete(count);
+			} catch (WebServiceException e) {
+				write.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	private static int count(List<String> data) {
+		int count = 0;
+		for (String entry : data) {
+			if (Util.isNotNullOrEmpty(entry)) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
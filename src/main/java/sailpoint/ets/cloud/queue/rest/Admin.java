@@ -3,35 +3,51 @@
  */
 package sailpoint.ets.cloud.queue.rest;
 
+import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.ToIntFunction;
 
+import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.ws.WebServiceException;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
-import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 
 import sailpoint.ets.cloud.queue.api.AuthorizationException;
 import sailpoint.ets.cloud.queue.api.AuthorizationHelper;
+import sailpoint.ets.cloud.queue.api.DeadLetterEntry;
 import sailpoint.ets.cloud.queue.api.ETSContext;
+import sailpoint.ets.cloud.queue.api.QueueBatch;
+import sailpoint.ets.cloud.queue.api.QueueEntry;
+import sailpoint.ets.cloud.queue.api.ResultStream;
 import sailpoint.ets.cloud.queue.tools.Util;
 
 @Path("admin")
@@ -39,6 +55,9 @@ public class Admin {
 
 	private static final Logger log = LogManager.getLogger(Admin.class);
 
+	@Inject
+	private ETSContext eTSContext;
+
 	public Admin() {
 		super();
 		if (log.isDebugEnabled()) {
@@ -65,13 +84,11 @@ public class Admin {
 	@Path("test")
 	@Produces(MediaType.APPLICATION_JSON)
 	public Map<String, Object> test(@Context HttpServletRequest servletRequest, @HeaderParam("Authorization") String authHeader) {
-		ETSContext eTSContext;
 		Map<String, Object> result = new HashMap<String, Object>();
 		try {
-			eTSContext = ETSContext.getContext(servletRequest);
 			authenticate(eTSContext, authHeader);
 			result.put("status", "success");
-		} catch (AuthorizationException | IOException | SQLException e) {
+		} catch (AuthorizationException | IOException e) {
 			result.put("status", "error");
 			result.put("error", e.getMessage());
 		}
@@ -89,10 +106,8 @@ public class Admin {
 	@Path("reload")
 	@Produces(MediaType.APPLICATION_JSON)
 	public Map<String, Object> reload(@Context HttpServletRequest servletRequest, @HeaderParam("Authorization") String authHeader) {
-		ETSContext eTSContext;
 		Map<String, Object> result = new HashMap<String, Object>();
 		try {
-			eTSContext = ETSContext.getContext(servletRequest);
 			authenticate(eTSContext, authHeader);
 			eTSContext.reload();
 			result.put("status", "success");
@@ -115,10 +130,8 @@ public class Admin {
 	@Path("hashTokens")
 	@Produces(MediaType.APPLICATION_JSON)
 	public Map<String, Object> hashTokens(@Context HttpServletRequest servletRequest, @HeaderParam("Authorization") String authHeader) {
-		ETSContext eTSContext;
 		Map<String, Object> result = new HashMap<String, Object>();
 		try {
-			eTSContext = ETSContext.getContext(servletRequest);
 			authenticate(eTSContext, authHeader);
 			int c = eTSContext.hashTokens();
 			result.put("status", "success");
@@ -140,14 +153,12 @@ public class Admin {
 	@Path("uuid")
 	@Produces(MediaType.APPLICATION_JSON)
 	public Map<String, Object> uuid(@Context HttpServletRequest servletRequest, @HeaderParam("Authorization") String authHeader) {
-		ETSContext eTSContext;
 		Map<String, Object> result = new HashMap<String, Object>();
 		try {
-			eTSContext = ETSContext.getContext(servletRequest);
 			authenticate(eTSContext, authHeader);
 			result.put("status", "success");
 			result.put("uuid", Util.uuid());
-		} catch (AuthorizationException | IOException | SQLException e) {
+		} catch (AuthorizationException | IOException e) {
 			result.put("status", "error");
 			result.put("error", e.getMessage());
 		}
@@ -155,28 +166,79 @@ public class Admin {
 	}
 
 	/**
-	 * List all queues.
+	 * Write a successful list response, streaming the list as it is read from the database.
+	 *
+	 * @param name		The name of the list property.
+	 * @param list		Writes the list, and any properties following it.
+	 * @return
+	 */
+	private Response streamList(final String name, final ListWriter list) {
+		StreamingOutput body = output -> {
+			JsonWriter writer = GsonProvider.getGson().newJsonWriter(
+					new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)));
+			writer.beginObject();
+			writer.name(name);
+			list.write(writer);
+			writer.name("status").value("success");
+			writer.endObject();
+			writer.flush();
+		};
+		return Response.ok(body, MediaType.APPLICATION_JSON_TYPE).build();
+	}
+
+	/**
+	 * Write a successful list response from a query that has already run, closing it when written. The list is
+	 * followed by "hasMore", telling whether there is another page.
+	 *
+	 * @param name		The name of the list property.
+	 * @param rows		The rows of the list.
+	 * @return
+	 */
+	private Response streamList(final String name, final ResultStream rows) {
+		return streamList(name, writer -> {
+			try (ResultStream list = rows) {
+				list.write(writer);
+				writer.name("hasMore").value(list.hasMore());
+			}
+		});
+	}
+
+	private interface ListWriter {
+		void write(JsonWriter writer) throws IOException;
+	}
+
+	/**
+	 * List the queues, in id order, a page at a time. "hasMore" tells whether there is another page, listed by
+	 * passing the id of the last queue as "after". A database failure is reported as 500.
 	 * 
 	 * @param servletRequest
 	 * @param authHeader
+	 * @param after	Only queues with a higher id are listed.
+	 * @param max	The maximum number of queues, limited to 1000.
 	 * @return
 	 */
 	@GET
 	@Path("queue/list")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Map<String, Object> queueList(@Context HttpServletRequest servletRequest, @HeaderParam("Authorization") String authHeader) {
-		ETSContext eTSContext;
-		Map<String, Object> result = new HashMap<String, Object>();
+	public Response queueList(@Context HttpServletRequest servletRequest, @HeaderParam("Authorization") String authHeader,
+			@QueryParam("after") String after, @QueryParam("max") @DefaultValue("1000") int max) {
+		ResultStream queues;
 		try {
-			eTSContext = ETSContext.getContext(servletRequest);
 			authenticate(eTSContext, authHeader);
-			result.put("queues", eTSContext.getQueues());
-			result.put("status", "success");
-		} catch (AuthorizationException | IOException | SQLException e) {
+			queues = eTSContext.openQueues(after, max);
+		} catch (AuthorizationException | IOException e) {
+			Map<String, Object> result = new HashMap<String, Object>();
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+			return Response.ok(result).build();
+		} catch (WebServiceException e) {
+			log.error(e);
+			Map<String, Object> result = new HashMap<String, Object>();
 			result.put("status", "error");
 			result.put("error", e.getMessage());
+			return Response.serverError().entity(result).build();
 		}
-		return result;
+		return streamList("queues", queues);
 	}
 
 	/**
@@ -200,12 +262,12 @@ public class Admin {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("Enter: queueCreate(%s, %s, %s, %s)", servletRequest, servletResponse, authHeader, data));
 		}
-		ETSContext eTSContext = ETSContext.getContext(servletRequest);
 		authenticate(eTSContext, authHeader);
 		String description = Util.otos(data.get("description"));
+		Object maxAge = data.get("maxAge");
 		Map<String, String> result = new HashMap<String, String>();
 		try {
-			result = eTSContext.createQueue(description);
+			result = eTSContext.createQueue(description, (maxAge == null) ? null : Util.otoi(maxAge));
 		} catch (IOException | SQLException e) {
 			servletResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 			result.put("status", "error");
@@ -235,7 +297,6 @@ public class Admin {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("Enter: queueDelete(%s, %s, %s, %s)", servletRequest, servletResponse, authHeader, id));
 		}
-		ETSContext eTSContext = ETSContext.getContext(servletRequest);
 		authenticate(eTSContext, authHeader);
 		Map<String, String> result = new HashMap<String, String>();
 		try {
@@ -250,30 +311,435 @@ public class Admin {
 	}
 
 	/**
-	 * List all users.
+	 * Set the maximum age of the entries of a queue. The body is a JSON object with a "maxAge" property in
+	 * seconds: 0 keeps entries until read, null or absent restores the configured default.
+	 * 
+	 * @param servletRequest
+	 * @param servletResponse
+	 * @param authHeader
+	 * @param id
+	 * @param data
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	@POST
+	@Path("queue/maxage/{id}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, String> queueMaxAge(@Context HttpServletRequest servletRequest, @Context HttpServletResponse servletResponse, @HeaderParam("Authorization") String authHeader,
+			@PathParam("id") String id, Map<String, Object> data) throws FileNotFoundException, IOException, SQLException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: queueMaxAge(%s, %s, %s, %s, %s)", servletRequest, servletResponse, authHeader, id, data));
+		}
+		authenticate(eTSContext, authHeader);
+		Object maxAge = (data == null) ? null : data.get("maxAge");
+		Map<String, String> result = new HashMap<String, String>();
+		try {
+			if (eTSContext.setQueueMaxAge(id, (maxAge == null) ? null : Util.otoi(maxAge))) {
+				result.put("status", "success");
+			} else {
+				servletResponse.setStatus(HttpServletResponse.SC_NOT_FOUND);
+				result.put("status", "error");
+				result.put("error", "Queue not found");
+			}
+		} catch (IOException | SQLException e) {
+			servletResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * Set the maximum number of leased deliveries of the entries of a queue. The body is a JSON object with a
+	 * "maxAttempts" property: entries not acknowledged after that many deliveries are moved to the dead-letter queue
+	 * of the queue, 0 delivers entries until acknowledged, null or absent restores the configured default.
 	 * 
 	 * @param servletRequest
+	 * @param servletResponse
 	 * @param authHeader
+	 * @param id
+	 * @param data
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	@POST
+	@Path("queue/maxattempts/{id}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, String> queueMaxAttempts(@Context HttpServletRequest servletRequest, @Context HttpServletResponse servletResponse, @HeaderParam("Authorization") String authHeader,
+			@PathParam("id") String id, Map<String, Object> data) throws FileNotFoundException, IOException, SQLException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: queueMaxAttempts(%s, %s, %s, %s, %s)", servletRequest, servletResponse, authHeader, id, data));
+		}
+		authenticate(eTSContext, authHeader);
+		Object maxAttempts = (data == null) ? null : data.get("maxAttempts");
+		Map<String, String> result = new HashMap<String, String>();
+		try {
+			if (eTSContext.setQueueMaxAttempts(id, (maxAttempts == null) ? null : Util.otoi(maxAttempts))) {
+				result.put("status", "success");
+			} else {
+				servletResponse.setStatus(HttpServletResponse.SC_NOT_FOUND);
+				result.put("status", "error");
+				result.put("error", "Queue not found");
+			}
+		} catch (IOException | SQLException e) {
+			servletResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * List the entries in the dead-letter queue of a queue, oldest first, with the number of delivery attempts and
+	 * the times they were created and dead-lettered. Page through them with the id of the last entry as after.
+	 * 
+	 * @param servletRequest
+	 * @param servletResponse
+	 * @param authHeader
+	 * @param id
+	 * @param after	Only entries with a higher id are returned.
+	 * @param max	The maximum number of entries, limited to db.queue.maxbatch.
 	 * @return
 	 */
 	@GET
-	@Path("user/list")
+	@Path("queue/deadletter/{id}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Map<String, Object> userList(@Context HttpServletRequest servletRequest, @HeaderParam("Authorization") String authHeader) {
-		ETSContext eTSContext;
+	public Response queueDeadLetters(@Context HttpServletRequest servletRequest, @Context HttpServletResponse servletResponse, @HeaderParam("Authorization") String authHeader,
+			@PathParam("id") String id, @QueryParam("after") @DefaultValue("0") long after, @QueryParam("max") @DefaultValue("100") int max) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: queueDeadLetters(%s, %s, %s, %s, %d, %d)", servletRequest, servletResponse, authHeader, id, after, max));
+		}
 		Map<String, Object> result = new HashMap<String, Object>();
+		final QueueBatch batch;
+		final long count;
 		try {
-			eTSContext = ETSContext.getContext(servletRequest);
 			authenticate(eTSContext, authHeader);
-			result.put("users", eTSContext.getUsers());
+			batch = eTSContext.readDeadLetters(id, after, max);
+			count = eTSContext.getDeadLetterDepth(id);
+		} catch (AuthorizationException | IOException e) {
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+			return Response.ok(result).build();
+		} catch (UnsupportedOperationException e) {
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+			return Response.status(Response.Status.NOT_IMPLEMENTED).entity(result).build();
+		} catch (WebServiceException e) {
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+			return Response.serverError().entity(result).build();
+		}
+		return streamList("entries", writer -> {
+			writer.beginArray();
+			for (QueueEntry entry : batch.getEntries()) {
+				DeadLetterEntry deadLetter = (DeadLetterEntry) entry;
+				writer.beginObject();
+				writer.name("id").value(deadLetter.getId());
+				writer.name("attempts").value(deadLetter.getAttempts());
+				writer.name("created").value(deadLetter.getCreated());
+				writer.name("deadLettered").value(deadLetter.getDeadLettered());
+				writer.name("data").jsonValue(deadLetter.getData());
+				writer.endObject();
+			}
+			writer.endArray();
+			writer.name("hasMore").value(batch.hasMore());
+			writer.name("count").value(count);
+		});
+	}
+
+	/**
+	 * Move entries from the dead-letter queue of a queue back to the tail of the queue, with their delivery attempts
+	 * reset. The body is an optional JSON object with an "ids" property listing the entries; without it, all
+	 * entries are redriven.
+	 * 
+	 * @param servletRequest
+	 * @param servletResponse
+	 * @param authHeader
+	 * @param id
+	 * @param data
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	@POST
+	@Path("queue/deadletter/redrive/{id}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Object> queueDeadLetterRedrive(@Context HttpServletRequest servletRequest, @Context HttpServletResponse servletResponse, @HeaderParam("Authorization") String authHeader,
+			@PathParam("id") String id, Map<String, Object> data) throws FileNotFoundException, IOException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: queueDeadLetterRedrive(%s, %s, %s, %s, %s)", servletRequest, servletResponse, authHeader, id, data));
+		}
+		authenticate(eTSContext, authHeader);
+		return moveDeadLetters(servletResponse, data, ids -> eTSContext.redriveDeadLetters(id, ids));
+	}
+
+	/**
+	 * Remove entries from the dead-letter queue of a queue. The body is an optional JSON object with an "ids"
+	 * property listing the entries; without it, all entries are removed.
+	 * 
+	 * @param servletRequest
+	 * @param servletResponse
+	 * @param authHeader
+	 * @param id
+	 * @param data
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	@POST
+	@Path("queue/deadletter/discard/{id}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Object> queueDeadLetterDiscard(@Context HttpServletRequest servletRequest, @Context HttpServletResponse servletResponse, @HeaderParam("Authorization") String authHeader,
+			@PathParam("id") String id, Map<String, Object> data) throws FileNotFoundException, IOException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: queueDeadLetterDiscard(%s, %s, %s, %s, %s)", servletRequest, servletResponse, authHeader, id, data));
+		}
+		authenticate(eTSContext, authHeader);
+		return moveDeadLetters(servletResponse, data, ids -> eTSContext.discardDeadLetters(id, ids));
+	}
+
+	/**
+	 * Redrive or discard dead-lettered entries, with the ids from the "ids" property of the body, or all of them.
+	 *
+	 * @param servletResponse
+	 * @param data
+	 * @param action	Redrives or discards the entries, and returns the number of entries.
+	 * @return
+	 */
+	private Map<String, Object> moveDeadLetters(HttpServletResponse servletResponse, Map<String, Object> data, ToIntFunction<List<Long>> action) {
+		Map<String, Object> result = new HashMap<String, Object>();
+		try {
+			List<Long> ids = null;
+			Object list = (data == null) ? null : data.get("ids");
+			if (list instanceof List) {
+				ids = new ArrayList<Long>();
+				for (Object o : (List<?>) list) {
+					ids.add((o instanceof Number) ? ((Number) o).longValue() : Long.parseLong(Util.otos(o)));
+				}
+			} else if (list != null) {
+				throw new NumberFormatException("ids must be a list of entry ids");
+			}
+			result.put("count", action.applyAsInt(ids));
 			result.put("status", "success");
-		} catch (AuthorizationException | IOException | SQLException e) {
+		} catch (NumberFormatException e) {
+			servletResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+		} catch (UnsupportedOperationException e) {
+			servletResponse.setStatus(HttpServletResponse.SC_NOT_IMPLEMENTED);
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+		} catch (WebServiceException e) {
+			servletResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * List the subscriptions of a queue, with the id of the last entry each has read.
+	 * 
+	 * @param servletRequest
+	 * @param servletResponse
+	 * @param authHeader
+	 * @param id
+	 * @return
+	 */
+	@GET
+	@Path("queue/subscription/list/{id}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Object> subscriptionList(@Context HttpServletRequest servletRequest, @Context HttpServletResponse servletResponse, @HeaderParam("Authorization") String authHeader,
+			@PathParam("id") String id) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: subscriptionList(%s, %s, %s, %s)", servletRequest, servletResponse, authHeader, id));
+		}
+		Map<String, Object> result = new HashMap<String, Object>();
+		try {
+			authenticate(eTSContext, authHeader);
+			result.put("subscriptions", eTSContext.getSubscriptions(id));
+			result.put("status", "success");
+		} catch (AuthorizationException | IOException e) {
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+		} catch (SQLException e) {
+			servletResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * Add a subscription to a queue. The body is a JSON object with the "name" of the subscription. The queue keeps
+	 * each entry once, until every subscription has read it; consumers poll it with ?subscription=name.
+	 * 
+	 * @param servletRequest
+	 * @param servletResponse
+	 * @param authHeader
+	 * @param id
+	 * @param data
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	@POST
+	@Path("queue/subscription/create/{id}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, String> subscriptionCreate(@Context HttpServletRequest servletRequest, @Context HttpServletResponse servletResponse, @HeaderParam("Authorization") String authHeader,
+			@PathParam("id") String id, Map<String, Object> data) throws FileNotFoundException, IOException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: subscriptionCreate(%s, %s, %s, %s, %s)", servletRequest, servletResponse, authHeader, id, data));
+		}
+		authenticate(eTSContext, authHeader);
+		String name = (data == null) ? null : Util.otos(data.get("name"));
+		Map<String, String> result = new HashMap<String, String>();
+		if (Util.isNullOrEmpty(name) || name.length() > 128) {
+			servletResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			result.put("status", "error");
+			result.put("error", "A name of at most 128 characters is required");
+			return result;
+		}
+		try {
+			eTSContext.createSubscription(id, name);
+			result.put("status", "success");
+			result.put("name", name);
+		} catch (IOException | SQLException e) {
+			servletResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * Remove a subscription from a queue.
+	 * 
+	 * @param servletRequest
+	 * @param servletResponse
+	 * @param authHeader
+	 * @param id
+	 * @param name
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	@DELETE
+	@Path("queue/subscription/delete/{id}/{name}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, String> subscriptionDelete(@Context HttpServletRequest servletRequest, @Context HttpServletResponse servletResponse, @HeaderParam("Authorization") String authHeader,
+			@PathParam("id") String id, @PathParam("name") String name) throws FileNotFoundException, IOException {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: subscriptionDelete(%s, %s, %s, %s, %s)", servletRequest, servletResponse, authHeader, id, name));
+		}
+		authenticate(eTSContext, authHeader);
+		Map<String, String> result = new HashMap<String, String>();
+		try {
+			if (eTSContext.deleteSubscription(id, name)) {
+				result.put("status", "success");
+			} else {
+				servletResponse.setStatus(HttpServletResponse.SC_NOT_FOUND);
+				result.put("status", "error");
+				result.put("error", "Subscription not found");
+			}
+		} catch (IOException | SQLException e) {
+			servletResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * Get statistics of the background reaper that purges expired queue entries.
+	 * 
+	 * @param servletRequest
+	 * @param authHeader
+	 * @return
+	 */
+	@GET
+	@Path("reaper")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Object> reaper(@Context HttpServletRequest servletRequest, @HeaderParam("Authorization") String authHeader) {
+		Map<String, Object> result = new HashMap<String, Object>();
+		try {
+			authenticate(eTSContext, authHeader);
+			result.put("reaper", eTSContext.getReaperStatistics());
+			result.put("status", "success");
+		} catch (AuthorizationException | IOException e) {
 			result.put("status", "error");
 			result.put("error", e.getMessage());
 		}
 		return result;
 	}
 
+	/**
+	 * Get the queue metrics kept in memory: per queue the entries enqueued, dequeued and purged since startup, the
+	 * current depth and the age in seconds of the oldest entry.
+	 * 
+	 * @param servletRequest
+	 * @param authHeader
+	 * @return
+	 */
+	@GET
+	@Path("metrics")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Object> metrics(@Context HttpServletRequest servletRequest, @HeaderParam("Authorization") String authHeader) {
+		Map<String, Object> result = new HashMap<String, Object>();
+		try {
+			authenticate(eTSContext, authHeader);
+			result.put("metrics", eTSContext.getQueueMetrics());
+			result.put("status", "success");
+		} catch (AuthorizationException | IOException e) {
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * List the users, in id order, a page at a time. "hasMore" tells whether there is another page, listed by
+	 * passing the id of the last user as "after". A database failure is reported as 500.
+	 * 
+	 * @param servletRequest
+	 * @param authHeader
+	 * @param after	Only users with a higher id are listed.
+	 * @param max	The maximum number of users, limited to 1000.
+	 * @return
+	 */
+	@GET
+	@Path("user/list")
+	@Produces(MediaType.APPLICATION_JSON)
+	public Response userList(@Context HttpServletRequest servletRequest, @HeaderParam("Authorization") String authHeader,
+			@QueryParam("after") String after, @QueryParam("max") @DefaultValue("1000") int max) {
+		ResultStream users;
+		try {
+			authenticate(eTSContext, authHeader);
+			users = eTSContext.openUsers(after, max);
+		} catch (AuthorizationException | IOException e) {
+			Map<String, Object> result = new HashMap<String, Object>();
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+			return Response.ok(result).build();
+		} catch (WebServiceException e) {
+			log.error(e);
+			Map<String, Object> result = new HashMap<String, Object>();
+			result.put("status", "error");
+			result.put("error", e.getMessage());
+			return Response.serverError().entity(result).build();
+		}
+		return streamList("users", users);
+	}
+
 	/**
 	 * Create a new user.
 	 * 
@@ -295,7 +761,6 @@ public class Admin {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("Enter: queueCreate(%s, %s, %s, %s)", servletRequest, servletResponse, authHeader, data));
 		}
-		ETSContext eTSContext = ETSContext.getContext(servletRequest);
 		authenticate(eTSContext, authHeader);
 		String name = Util.otos(data.get("name"));
 		String displayName = Util.otos(data.get("displayName"));
@@ -332,7 +797,6 @@ public class Admin {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("Enter: queueCreate(%s, %s, %s, %s)", servletRequest, servletResponse, authHeader, data));
 		}
-		ETSContext eTSContext = ETSContext.getContext(servletRequest);
 		authenticate(eTSContext, authHeader);
 		String userId = Util.otos(data.get("userId"));
 		String queueId = Util.otos(data.get("queueId"));
@@ -376,7 +840,6 @@ public class Admin {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("Enter: userDelete(%s, %s, %s, %s)", servletRequest, servletResponse, authHeader, id));
 		}
-		ETSContext eTSContext = ETSContext.getContext(servletRequest);
 		authenticate(eTSContext, authHeader);
 		Map<String, String> result = new HashMap<String, String>();
 		try {
@@ -411,7 +874,6 @@ public class Admin {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("Enter: queueCreate(%s, %s, %s, %s)", servletRequest, servletResponse, authHeader, data));
 		}
-		ETSContext eTSContext = ETSContext.getContext(servletRequest);
 		authenticate(eTSContext, authHeader);
 		String userId = Util.otos(data.get("userId"));
 		String description = Util.otos(data.get("description"));
@@ -449,7 +911,6 @@ public class Admin {
 		if (log.isDebugEnabled()) {
 			log.debug(String.format("Enter: tokenDelete(%s, %s, %s, %s)", servletRequest, servletResponse, authHeader, id));
 		}
-		ETSContext eTSContext = ETSContext.getContext(servletRequest);
 		authenticate(eTSContext, authHeader);
 		Map<String, String> result = new HashMap<String, String>();
 		try {
@@ -3,15 +3,33 @@
  */
 package sailpoint.ets.cloud.queue.rest;
 
+import java.util.function.Supplier;
+
+import org.glassfish.jersey.internal.inject.AbstractBinder;
 import org.glassfish.jersey.server.ResourceConfig;
 
-import javax.ws.rs.ApplicationPath;
+import sailpoint.ets.cloud.queue.api.ETSContext;
 
-//@ApplicationPath("rest")
+/**
+ *
+ * @author menno.pieters
+ *
+ * The JAX-RS application. Registers the resources in this package, gzip/deflate content encoding, the shared
+ * Gson JSON provider and the request timing filter, and makes the application-wide {@link ETSContext} available for injection.
+ */
 public class Application extends ResourceConfig {
 
 	public Application() {
-		//registerClasses(Application.class);
+		packages(Application.class.getPackage().getName());
+		register(ContentEncodingInterceptor.class);
+		register(GsonProvider.class);
+		register(RequestTimingFilter.class);
+		register(new AbstractBinder() {
+			@Override
+			protected void configure() {
+				bindFactory((Supplier<ETSContext>) ETSContext::getInstance).to(ETSContext.class);
+			}
+		});
 	}
 
 }
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.inject.Inject;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ReaderInterceptor;
+import javax.ws.rs.ext.ReaderInterceptorContext;
+import javax.ws.rs.ext.WriterInterceptor;
+import javax.ws.rs.ext.WriterInterceptorContext;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import sailpoint.ets.cloud.queue.api.ETSContext;
+import sailpoint.ets.cloud.queue.tools.Util;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Handles gzip and deflate content encoding. Request bodies sent with <code>Content-Encoding: gzip</code> or
+ * <code>deflate</code> are decompressed. Responses are compressed with the encoding preferred in the request's
+ * <code>Accept-Encoding</code>, once they reach http.compression.minSize bytes; smaller responses are sent as
+ * they are, since compressing them costs more than it saves. Server-Sent Events streams are never compressed.
+ */
+public class ContentEncodingInterceptor implements ReaderInterceptor, WriterInterceptor {
+
+	private static final Logger log = LogManager.getLogger(ContentEncodingInterceptor.class);
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	@Inject
+	private ETSContext eTSContext;
+
+	@Context
+	private HttpHeaders requestHeaders;
+
+	@Override
+	public Object aroundReadFrom(ReaderInterceptorContext context) throws IOException, WebApplicationException {
+		String encoding = context.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+		if (Util.isNotNullOrEmpty(encoding)) {
+			encoding = encoding.trim().toLowerCase();
+			if (GZIP.equals(encoding) || "x-gzip".equals(encoding)) {
+				context.setInputStream(new GZIPInputStream(context.getInputStream()));
+			} else if (DEFLATE.equals(encoding)) {
+				context.setInputStream(new InflaterInputStream(context.getInputStream()));
+			} else if (!"identity".equals(encoding)) {
+				throw new WebApplicationException(String.format("Unsupported content encoding: %s", encoding),
+						Response.Status.UNSUPPORTED_MEDIA_TYPE);
+			}
+			context.getHeaders().remove(HttpHeaders.CONTENT_ENCODING);
+		}
+		return context.proceed();
+	}
+
+	@Override
+	public void aroundWriteTo(WriterInterceptorContext context) throws IOException, WebApplicationException {
+		int minSize = eTSContext.getHttpCompressionMinSize();
+		MultivaluedMap<String, Object> headers = context.getHeaders();
+		if (minSize < 0 || headers.containsKey(HttpHeaders.CONTENT_ENCODING)
+				|| MediaType.SERVER_SENT_EVENTS_TYPE.isCompatible(context.getMediaType())) {
+			context.proceed();
+			return;
+		}
+		headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		String encoding = negotiate(requestHeaders.getHeaderString(HttpHeaders.ACCEPT_ENCODING));
+		if (encoding == null) {
+			context.proceed();
+			return;
+		}
+		EncodingOutputStream output = new EncodingOutputStream(context.getOutputStream(), minSize, encoding, headers);
+		context.setOutputStream(output);
+		context.proceed();
+		output.finish();
+	}
+
+	/**
+	 * Pick the response encoding from an Accept-Encoding header: gzip if accepted, otherwise deflate, otherwise
+	 * none.
+	 *
+	 * @param acceptEncoding
+	 * @return	The encoding, or null.
+	 */
+	static String negotiate(String acceptEncoding) {
+		if (Util.isNullOrEmpty(acceptEncoding)) {
+			return null;
+		}
+		// null when not mentioned, so an explicit q=0 overrides "*"
+		Boolean gzip = null;
+		Boolean deflate = null;
+		boolean any = false;
+		for (String part : acceptEncoding.split(",")) {
+			String[] params = part.trim().split(";");
+			String coding = params[0].trim().toLowerCase();
+			boolean accepted = true;
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						accepted = Double.parseDouble(param.substring(2).trim()) > 0;
+					} catch (NumberFormatException e) {
+						accepted = false;
+					}
+				}
+			}
+			if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+				gzip = accepted;
+			} else if (DEFLATE.equals(coding)) {
+				deflate = accepted;
+			} else if ("*".equals(coding)) {
+				any = accepted;
+			}
+		}
+		if ((gzip == null) ? any : gzip) {
+			return GZIP;
+		}
+		return ((deflate == null) ? any : deflate) ? DEFLATE : null;
+	}
+
+	/**
+	 * Holds back the start of the response until it reaches the minimum size. If the response ends first, it is
+	 * written as it is; otherwise the Content-Encoding header is set, before anything is sent, and the rest is
+	 * compressed.
+	 */
+	private static class EncodingOutputStream extends OutputStream {
+		private final OutputStream target;
+		private final int minSize;
+		private final String encoding;
+		private final MultivaluedMap<String, Object> headers;
+		private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private OutputStream output = null;
+		private boolean finished = false;
+
+		EncodingOutputStream(OutputStream target, int minSize, String encoding, MultivaluedMap<String, Object> headers) {
+			this.target = target;
+			this.minSize = minSize;
+			this.encoding = encoding;
+			this.headers = headers;
+		}
+
+		private void start(boolean compress) throws IOException {
+			if (compress) {
+				if (log.isDebugEnabled()) {
+					log.debug(String.format("Compressing response with %s", encoding));
+				}
+				headers.putSingle(HttpHeaders.CONTENT_ENCODING, encoding);
+				headers.remove(HttpHeaders.CONTENT_LENGTH);
+				output = GZIP.equals(encoding) ? new GZIPOutputStream(target, 8192) : new DeflaterOutputStream(target);
+			} else {
+				output = target;
+			}
+			buffer.writeTo(output);
+			buffer = null;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (output == null) {
+				if (buffer.size() + len < minSize) {
+					buffer.write(b, off, len);
+					return;
+				}
+				start(true);
+			}
+			output.write(b, off, len);
+		}
+
+		/**
+		 * Until the minimum size is reached, flushing would force a decision, so it is ignored.
+		 */
+		@Override
+		public void flush() throws IOException {
+			if (output != null) {
+				output.flush();
+			}
+		}
+
+		/**
+		 * Write out what is held back, or complete the compressed stream, without closing the target.
+		 *
+		 * @throws IOException
+		 */
+		void finish() throws IOException {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			if (output == null) {
+				start(false);
+			} else if (output != target) {
+				((DeflaterOutputStream) output).finish();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			finish();
+			// Closing the compressing stream also releases its Deflater
+			output.close();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.rest;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.xml.ws.WebServiceException;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import sailpoint.ets.cloud.queue.api.ETSContext;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Creates the application-wide {@link ETSContext} when the web application starts and releases its database
+ * pool and background threads when it stops.
+ */
+public class ETSContextListener implements ServletContextListener {
+
+	private static final Logger log = LogManager.getLogger(ETSContextListener.class);
+
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: contextInitialized(%s)", event));
+		}
+		try {
+			ETSContext.initialize(event.getServletContext());
+		} catch (IOException | SQLException e) {
+			log.error("Unable to initialize the ETS context", e);
+			throw new WebServiceException(e);
+		}
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: contextDestroyed(%s)", event));
+		}
+		EventStreams.getInstance().shutdown();
+		ETSContext.shutdown();
+	}
+
+}
@@ -3,31 +3,52 @@
  */
 package sailpoint.ets.cloud.queue.rest;
 
+import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.sql.SQLException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
+import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+import javax.xml.ws.WebServiceException;
 
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
-import com.google.gson.Gson;
-
 import sailpoint.ets.cloud.queue.api.AuthorizationException;
 import sailpoint.ets.cloud.queue.api.AuthorizationHelper;
 import sailpoint.ets.cloud.queue.api.ETSContext;
+import sailpoint.ets.cloud.queue.api.QueueBatch;
+import sailpoint.ets.cloud.queue.api.QueueEntry;
+import sailpoint.ets.cloud.queue.store.AttributeFilter;
+import sailpoint.ets.cloud.queue.store.QueueStore;
+import sailpoint.ets.cloud.queue.tools.JsonPayload;
 import sailpoint.ets.cloud.queue.tools.Util;
 
 import javax.ws.rs.POST;
@@ -38,6 +59,11 @@ import javax.ws.rs.PathParam;
 public class EventListener {
 
 	private static final Logger log = LogManager.getLogger(EventListener.class);
+	public static final String HEADER_HAS_MORE = "X-Has-More";
+	public static final String HEADER_PRIORITY = "X-Priority";
+
+	@Inject
+	private ETSContext eTSContext;
 
 	public EventListener() {
 		super();
@@ -46,128 +72,485 @@ public class EventListener {
 		}
 	}
 
+	/**
+	 * Add an event to the specified queue. The priority, 0 to 9, is taken from the priority query parameter or the
+	 * X-Priority header; events with a higher priority are polled first. Without either, the event gets the
+	 * default priority, 4. Only the mysql and h2 stores support other priorities (501).
+	 *
+	 * @param servletRequest
+	 * @param servletResponse
+	 * @param authHeader
+	 * @param priorityHeader
+	 * @param queue
+	 * @param priority
+	 * @param data
+	 * @param asyncResponse
+	 * @throws FileNotFoundException
+	 */
 	@POST
 	@Path("trigger/{queue}")
 	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
-	public Map<String, Object> trigger(@Context HttpServletRequest servletRequest,
+	public void trigger(@Context HttpServletRequest servletRequest,
 			@Context HttpServletResponse servletResponse, @HeaderParam("Authorization") String authHeader,
-			@PathParam("queue") String queue, Map<String, Object> data)
+			@HeaderParam(HEADER_PRIORITY) String priorityHeader, @PathParam("queue") String queue,
+			@QueryParam("priority") String priority, String data, @Suspended AsyncResponse asyncResponse)
 			throws FileNotFoundException {
 		if (log.isDebugEnabled()) {
-			log.debug(String.format("Enter: trigger(%s, %s, %s, %s, %s)", servletRequest, servletResponse, "********",
-					queue, "********"));
+			log.debug(String.format("Enter: trigger(%s, %s, %s, %s, %s, %s, %s)", servletRequest, servletResponse, "********",
+					priorityHeader, queue, priority, "********"));
 		}
-		Map<String, Object> result = new HashMap<String, Object>();
 		try {
 			String token = AuthorizationHelper.getBearerToken(authHeader);
-			ETSContext eTSContext = ETSContext.getContext(servletRequest);
 			eTSContext.authorizeWrite(token, queue);
-			Gson gson = new Gson();
-			String dataStr = gson.toJson(data);
-			eTSContext.writeDataToQueue(queue, dataStr);
-			result.put("status", "success");
+			String dataStr = JsonPayload.requireObject(data);
+			resumeWhenStored(eTSContext.writeDataToQueueAsync(queue, Collections.singletonList(dataStr),
+					parsePriority(priority, priorityHeader)), asyncResponse, false);
+		} catch (IllegalArgumentException e) {
+			asyncResponse.resume(new WebApplicationException(e, Response.Status.BAD_REQUEST));
 		} catch (AuthorizationException e) {
-			throw new WebApplicationException(e, Response.Status.UNAUTHORIZED);
-		} catch (IOException | SQLException e1) {
-			throw new WebApplicationException(e1, Response.Status.INTERNAL_SERVER_ERROR);
+			asyncResponse.resume(new WebApplicationException(e, Response.Status.UNAUTHORIZED));
+		} catch (WebServiceException e1) {
+			asyncResponse.resume(new WebApplicationException(e1, Response.Status.INTERNAL_SERVER_ERROR));
 		}
-		return result;
 	}
 
 	/**
-	 * Check for an entry in the specified queue.
-	 * 
+	 * Add several events to the specified queue at once. The body is a JSON array of event objects; authorization
+	 * is checked once and all events are written in a single transaction, with the same priority; see
+	 * {@link #trigger}.
+	 *
 	 * @param servletRequest
+	 * @param servletResponse
 	 * @param authHeader
-	 * @param queue		The id of the queue to check.
-	 * @param remove	Remove entry from the queue if true.
-	 * @return
+	 * @param priorityHeader
+	 * @param queue
+	 * @param priority
+	 * @param data
+	 * @param asyncResponse
 	 * @throws FileNotFoundException
-	 * @throws IOException
-	 * @throws SQLException
 	 */
-	private Map<String, Object> pollInternal(HttpServletRequest servletRequest, String authHeader, String queue,
-			boolean remove) throws FileNotFoundException, IOException, SQLException {
+	@POST
+	@Path("trigger/{queue}/batch")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public void triggerBatch(@Context HttpServletRequest servletRequest,
+			@Context HttpServletResponse servletResponse, @HeaderParam("Authorization") String authHeader,
+			@HeaderParam(HEADER_PRIORITY) String priorityHeader, @PathParam("queue") String queue,
+			@QueryParam("priority") String priority, String data, @Suspended AsyncResponse asyncResponse)
+			throws FileNotFoundException {
 		if (log.isDebugEnabled()) {
-			log.debug(String.format("Enter: pollInternal(%s, %s, %s, %b)", servletRequest, "********", queue, remove));
+			log.debug(String.format("Enter: triggerBatch(%s, %s, %s, %s, %s, %s, %s)", servletRequest, servletResponse, "********",
+					priorityHeader, queue, priority, "********"));
 		}
-		String token = AuthorizationHelper.getBearerToken(authHeader);
-		ETSContext eTSContext = ETSContext.getContext(servletRequest);
-		eTSContext.authorizeRead(token, queue);
-		Map<String, Object> result = new HashMap<String, Object>();
-		String dataStr = eTSContext.pollQueueData(queue, remove);
-		if (Util.isNotNullOrEmpty(dataStr)) {
-			Gson gson = new Gson();
-			@SuppressWarnings("unchecked")
-			Map<String, Object> jsonObject = (Map<String, Object>) gson.fromJson(dataStr, result.getClass());
-			if (jsonObject != null && !jsonObject.isEmpty()) {
-				result = jsonObject;
+		try {
+			String token = AuthorizationHelper.getBearerToken(authHeader);
+			eTSContext.authorizeWrite(token, queue);
+			List<String> entries = JsonPayload.splitArray(data);
+			resumeWhenStored(eTSContext.writeDataToQueueAsync(queue, entries, parsePriority(priority, priorityHeader)),
+					asyncResponse, true);
+		} catch (IllegalArgumentException e) {
+			asyncResponse.resume(new WebApplicationException(e, Response.Status.BAD_REQUEST));
+		} catch (AuthorizationException e) {
+			asyncResponse.resume(new WebApplicationException(e, Response.Status.UNAUTHORIZED));
+		} catch (WebServiceException e1) {
+			asyncResponse.resume(new WebApplicationException(e1, Response.Status.INTERNAL_SERVER_ERROR));
+		}
+	}
+
+	/**
+	 * The priority of triggered events, from the query parameter or else the header.
+	 *
+	 * @param priority	The priority query parameter, or null.
+	 * @param priorityHeader	The X-Priority header, or null.
+	 * @return	The priority, or the default if neither is set.
+	 * @throws IllegalArgumentException	If the priority is not a number from QueueStore.MIN_PRIORITY to
+	 * 		QueueStore.MAX_PRIORITY.
+	 */
+	private static int parsePriority(String priority, String priorityHeader) {
+		String value = Util.isNotNullOrEmpty(priority) ? priority : priorityHeader;
+		if (Util.isNullOrEmpty(value)) {
+			return QueueStore.DEFAULT_PRIORITY;
+		}
+		try {
+			int result = Integer.parseInt(value.trim());
+			if (result >= QueueStore.MIN_PRIORITY && result <= QueueStore.MAX_PRIORITY) {
+				return result;
+			}
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+		throw new IllegalArgumentException(String.format("Invalid priority %s; use %d to %d", value, QueueStore.MIN_PRIORITY, QueueStore.MAX_PRIORITY));
+	}
+
+	/**
+	 * Resume the response once the written entries are stored. With write-behind enabled this happens after the
+	 * commit the entries were part of, on the completion threads of the buffer rather than its writer thread. A full
+	 * write buffer is reported as 503, so the caller can retry later, and a priority the store does not support as
+	 * 501.
+	 *
+	 * @param future	The pending write.
+	 * @param asyncResponse
+	 * @param withCount	Whether to include the number of entries written.
+	 */
+	private void resumeWhenStored(CompletableFuture<Integer> future, final AsyncResponse asyncResponse, final boolean withCount) {
+		future.whenComplete((count, e) -> {
+			if (e == null) {
+				Map<String, Object> result = new HashMap<String, Object>();
+				result.put("status", "success");
+				if (withCount) {
+					result.put("count", count);
+				}
+				asyncResponse.resume(result);
+			} else {
+				Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+				if (cause instanceof RejectedExecutionException) {
+					asyncResponse.resume(new WebApplicationException(cause, Response.Status.SERVICE_UNAVAILABLE));
+				} else if (cause instanceof UnsupportedOperationException) {
+					asyncResponse.resume(new WebApplicationException(cause, Response.Status.NOT_IMPLEMENTED));
+				} else {
+					log.error(cause);
+					asyncResponse.resume(new WebApplicationException(cause, Response.Status.INTERNAL_SERVER_ERROR));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Convert entries read from a queue into the response. If max is zero or less, a single entry is returned as a
+	 * JSON object, as before. Otherwise up to max entries are returned in an "events" array. In both cases
+	 * "__hasMore" tells whether the queue holds more entries; for a single peek it is omitted, as before. The
+	 * stored entries are written to the response as they are, without parsing them; the X-Has-More header
+	 * repeats "__hasMore" for clients that prefer not to look into the body. Leased entries get a "__leaseId"
+	 * property, needed to acknowledge them.
+	 *
+	 * @param batch	The entries read.
+	 * @param remove	Whether the entries were removed from the queue.
+	 * @param max		The maximum number of entries requested, or zero for a single entry.
+	 * @return
+	 */
+	private Response toResult(final QueueBatch batch, boolean remove, int max) {
+		StreamingOutput body;
+		if (max > 0) {
+			body = output -> {
+				Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+				writer.write("{\"events\":[");
+				boolean first = true;
+				for (QueueEntry entry : batch.getEntries()) {
+					if (Util.isNotNullOrEmpty(entry.getData())) {
+						if (!first) {
+							writer.write(',');
+						}
+						writer.write(toData(entry));
+						first = false;
+					}
+				}
+				writer.write("],\"__hasMore\":");
+				writer.write(String.valueOf(batch.hasMore()));
+				writer.write('}');
+				writer.flush();
+			};
+		} else {
+			String dataStr = "{}";
+			if (!batch.isEmpty() && Util.isNotNullOrEmpty(batch.getEntries().get(0).getData())) {
+				dataStr = toData(batch.getEntries().get(0));
 				if (remove) {
-					result.put("__hasMore", eTSContext.queueHasMore(queue));
+					dataStr = JsonPayload.withProperty(dataStr, "__hasMore", String.valueOf(batch.hasMore()));
 				}
 			}
+			final byte[] bytes = dataStr.getBytes(StandardCharsets.UTF_8);
+			body = output -> output.write(bytes);
 		}
-		return result;
+		return Response.ok(body, MediaType.APPLICATION_JSON_TYPE)
+				.header(HEADER_HAS_MORE, batch.hasMore())
+				.build();
 	}
 
 	/**
-	 * Check for an entry from the specified queue and remove it after returning.
+	 * The data of an entry as returned to the client, with its lease id if it was leased.
+	 *
+	 * @param entry
+	 * @return
+	 */
+	private static String toData(QueueEntry entry) {
+		if (entry.getLeaseId() == null) {
+			return entry.getData();
+		}
+		return JsonPayload.withProperty(entry.getData(), "__leaseId", JsonPayload.quote(entry.getLeaseId()));
+	}
+
+	/**
+	 * Check for entries in the specified queue and resume the response with the result. If the queue is empty and
+	 * a wait time is given, the request is parked until entries are written to the queue on this node, or until the
+	 * wait time (limited by db.queue.maxwait) expires.
+	 * 
+	 * @param servletRequest
+	 * @param authHeader
+	 * @param queue		The id of the queue to check.
+	 * @param subscription	The subscription to read the queue for, or null to read the queue itself.
+	 * @param remove	Remove entries from the queue, or move the cursor of the subscription, if true.
+	 * @param max		The maximum number of entries to return, or zero for a single entry.
+	 * @param wait		Optional time to wait for entries, e.g. "30s".
+	 * @param leaseMillis	If greater than zero, entries are leased for this time instead of removed.
+	 * @param filters	Conditions on the payload attributes, as name:value, that the entries must match.
+	 * @param asyncResponse
+	 */
+	private void pollInternal(HttpServletRequest servletRequest, String authHeader, final String queue, final String subscription,
+			final boolean remove, final int max, String wait, final long leaseMillis, List<String> filters, AsyncResponse asyncResponse) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: pollInternal(%s, %s, %s, %s, %b, %d, %s, %d, %s)", servletRequest, "********", queue, subscription, remove, max, wait, leaseMillis, filters));
+		}
+		final AttributeFilter filter;
+		try {
+			filter = eTSContext.createFilter(filters);
+		} catch (IllegalArgumentException e) {
+			asyncResponse.resume(new WebApplicationException(e, Response.Status.BAD_REQUEST));
+			return;
+		}
+		if (filter != null && subscription != null) {
+			asyncResponse.resume(new WebApplicationException("Subscriptions do not support filters", Response.Status.BAD_REQUEST));
+			return;
+		}
+		try {
+			String token = AuthorizationHelper.getBearerToken(authHeader);
+			eTSContext.authorizeRead(token, queue);
+			Supplier<QueueBatch> reader;
+			if (subscription != null) {
+				reader = () -> eTSContext.pollSubscription(queue, subscription, max, remove);
+			} else if (leaseMillis > 0) {
+				reader = () -> eTSContext.leaseQueueData(queue, max, leaseMillis, filter);
+			} else {
+				reader = () -> eTSContext.pollQueueData(queue, max, remove, filter);
+			}
+			QueueBatch batch = reader.get();
+			long waitMillis = Math.min(Util.parseDuration(wait), eTSContext.getMaxPollWait());
+			if (batch.isEmpty() && waitMillis > 0) {
+				// Every subscription receives every entry, and a filtered poll may not match the new entries, so
+				// neither consumes the signal. Subscriptions only return entries once they are settled.
+				PendingPoll pendingPoll = new PendingPoll(eTSContext.getWaiters(), queue, remove && subscription == null && filter == null, asyncResponse, reader,
+						b -> toResult(b, remove, max), (subscription == null) ? 0 : eTSContext.getSubscriptionLag() * 1000L);
+				pendingPoll.park(waitMillis);
+			} else {
+				asyncResponse.resume(toResult(batch, remove, max));
+			}
+		} catch (AuthorizationException e) {
+			asyncResponse.resume(new WebApplicationException(e, Response.Status.UNAUTHORIZED));
+		} catch (IllegalArgumentException e) {
+			asyncResponse.resume(new WebApplicationException(e, Response.Status.NOT_FOUND));
+		} catch (IllegalStateException e) {
+			asyncResponse.resume(new WebApplicationException(e, Response.Status.CONFLICT));
+		} catch (UnsupportedOperationException e) {
+			asyncResponse.resume(new WebApplicationException(e, Response.Status.NOT_IMPLEMENTED));
+		} catch (WebServiceException e1) {
+			asyncResponse.resume(new WebApplicationException(e1, Response.Status.INTERNAL_SERVER_ERROR));
+		}
+	}
+
+	/**
+	 * Check for entries from the specified queue and remove them after returning. With a lease time, the entries
+	 * are leased instead: they stay in the queue, hidden from other consumers, until acknowledged through
+	 * {@link #ack} or until the lease expires, after which they are delivered again, up to the maximum attempts of
+	 * the queue; then they are moved to its dead-letter queue. Each leased entry has a "__leaseId" property.
+	 * Entries are returned by priority, highest first, and in queue order within a priority.
+	 * <p>
+	 * A queue with subscriptions is polled per subscription: each subscription receives every entry, continuing
+	 * after the entries it received before, in queue order regardless of priority. Entries reach subscriptions
+	 * db.queue.subscription.lag seconds after they are written. Such queues cannot be polled without a subscription
+	 * (409), and subscriptions do not support leases: delivery is at most once, as the subscription moves past the
+	 * entries before they are returned, and entries of a lost response are not delivered again. When too many
+	 * consumers poll the same subscription at once, a poll can fail with 409; poll again.
+	 * <p>
+	 * With one or more filter parameters, e.g. <code>filter=identity:2c9180857e5f7a6d</code>, only the entries whose
+	 * payload attributes (queue.attributes) have those values are returned; the others stay in the queue.
 	 * 
 	 * @param servletRequest
 	 * @param servletResponse
 	 * @param authHeader
 	 * @param queue
-	 * @return
-	 * @throws FileNotFoundException
+	 * @param max	Optional maximum number of entries to return at once.
+	 * @param wait	Optional time to wait for entries if the queue is empty, e.g. "30s".
+	 * @param lease	Optional lease time, e.g. "60s", limited by db.queue.maxlease.
+	 * @param subscription	Optional name of the subscription to poll for.
+	 * @param filters	Optional conditions on the payload attributes, as name:value.
+	 * @param asyncResponse
 	 */
 	@GET
 	@Path("poll/{queue}")
 	@Produces(MediaType.APPLICATION_JSON)
-	public Map<String, Object> poll(@Context HttpServletRequest servletRequest,
+	public void poll(@Context HttpServletRequest servletRequest,
+			@Context HttpServletResponse servletResponse, @HeaderParam("Authorization") String authHeader,
+			@PathParam("queue") String queue, @QueryParam("max") @DefaultValue("0") int max,
+			@QueryParam("wait") String wait, @QueryParam("lease") String lease, @QueryParam("subscription") String subscription,
+			@QueryParam("filter") List<String> filters, @Suspended AsyncResponse asyncResponse) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: poll(%s, %s, %s, %s, %d, %s, %s, %s, %s)", servletRequest, servletResponse, "********", queue, max, wait, lease, subscription, filters));
+		}
+		long leaseMillis = 0;
+		if (lease != null) {
+			leaseMillis = Util.parseDuration(lease);
+			if (leaseMillis <= 0) {
+				asyncResponse.resume(new WebApplicationException("Invalid lease time", Response.Status.BAD_REQUEST));
+				return;
+			}
+			if (subscription != null) {
+				asyncResponse.resume(new WebApplicationException("Subscriptions do not support leases", Response.Status.BAD_REQUEST));
+				return;
+			}
+		}
+		pollInternal(servletRequest, authHeader, queue, subscription, true, max, wait, leaseMillis, filters, asyncResponse);
+	}
+
+	/**
+	 * Check for entries from the specified queue but do not remove them after returning.
+	 *
+	 * @param servletRequest
+	 * @param servletResponse
+	 * @param authHeader
+	 * @param queue
+	 * @param max	Optional maximum number of entries to return at once.
+	 * @param wait	Optional time to wait for entries if the queue is empty, e.g. "30s".
+	 * @param subscription	Optional name of the subscription to peek for: the entries it would receive next.
+	 * @param filters	Optional conditions on the payload attributes, as name:value.
+	 * @param asyncResponse
+	 */
+	@GET
+	@Path("peek/{queue}")
+	@Produces(MediaType.APPLICATION_JSON)
+	public void peek(@Context HttpServletRequest servletRequest,
 			@Context HttpServletResponse servletResponse, @HeaderParam("Authorization") String authHeader,
-			@PathParam("queue") String queue) throws FileNotFoundException {
+			@PathParam("queue") String queue, @QueryParam("max") @DefaultValue("0") int max,
+			@QueryParam("wait") String wait, @QueryParam("subscription") String subscription,
+			@QueryParam("filter") List<String> filters, @Suspended AsyncResponse asyncResponse) {
 		if (log.isDebugEnabled()) {
-			log.debug(String.format("Enter: poll(%s, %s, %s, %s)", servletRequest, servletResponse, "********", queue));
+			log.debug(String.format("Enter: peek(%s, %s, %s, %s, %d, %s, %s, %s)", servletRequest, servletResponse, "********", queue, max, wait, subscription, filters));
 		}
-		Map<String, Object> result = null;
+		pollInternal(servletRequest, authHeader, queue, subscription, false, max, wait, 0, filters, asyncResponse);
+	}
+
+	/**
+	 * Acknowledge entries leased through {@link #poll}, removing them from the queue in a single statement. The
+	 * body is a JSON array of lease ids. Leases that expired and were taken by another consumer are ignored, so
+	 * "count" tells how many entries were actually removed.
+	 *
+	 * @param servletRequest
+	 * @param authHeader
+	 * @param queue
+	 * @param leaseIds
+	 * @return
+	 */
+	@POST
+	@Path("ack/{queue}")
+	@Consumes(MediaType.APPLICATION_JSON)
+	@Produces(MediaType.APPLICATION_JSON)
+	public Map<String, Object> ack(@Context HttpServletRequest servletRequest, @HeaderParam("Authorization") String authHeader,
+			@PathParam("queue") String queue, List<String> leaseIds) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: ack(%s, %s, %s, %s)", servletRequest, "********", queue, leaseIds));
+		}
+		Map<String, Object> result = new HashMap<String, Object>();
 		try {
-			result = pollInternal(servletRequest, authHeader, queue, true);
+			String token = AuthorizationHelper.getBearerToken(authHeader);
+			eTSContext.authorizeRead(token, queue);
+			int count = eTSContext.ackQueueLeases(queue, leaseIds);
+			result.put("status", "success");
+			result.put("count", count);
 		} catch (AuthorizationException e) {
 			throw new WebApplicationException(e, Response.Status.UNAUTHORIZED);
-		} catch (IOException | SQLException e1) {
+		} catch (UnsupportedOperationException e) {
+			throw new WebApplicationException(e, Response.Status.NOT_IMPLEMENTED);
+		} catch (WebServiceException e1) {
 			throw new WebApplicationException(e1, Response.Status.INTERNAL_SERVER_ERROR);
 		}
 		return result;
 	}
 
 	/**
-	 * Check for an entry from the specified queue but do not remove it after returning.
+	 * Subscribe to the specified queue using Server-Sent Events. Entries are pushed as "event" events, with the
+	 * entry id as event id, as soon as they are written. Each entry is leased to the stream, like a poll with
+	 * ?lease=, so it is delivered to one subscriber only and to no other consumer of the queue, and stays in the
+	 * queue until acknowledged through {@link #streamAck}. At most window entries are delivered to a subscriber
+	 * before it acknowledges them; entries not acknowledged when a subscriber disconnects are delivered again. The
+	 * read access of the token is checked again before entries are leased for the stream, and the connection is
+	 * closed once it is revoked. Only the mysql and h2 stores support leases (501).
 	 *
 	 * @param servletRequest
-	 * @param servletResponse
 	 * @param authHeader
 	 * @param queue
-	 * @return
-	 * @throws FileNotFoundException
-	 * @throws IOException
-	 * @throws SQLException
+	 * @param window	Optional maximum number of unacknowledged entries, limited by db.queue.maxbatch.
+	 * @param sink
+	 * @param sse
 	 */
 	@GET
-	@Path("peek/{queue}")
+	@Path("stream/{queue}")
+	@Produces(MediaType.SERVER_SENT_EVENTS)
+	public void stream(@Context HttpServletRequest servletRequest, @HeaderParam("Authorization") String authHeader,
+			@PathParam("queue") String queue, @QueryParam("window") @DefaultValue("0") int window,
+			@Context SseEventSink sink, @Context Sse sse) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: stream(%s, %s, %s, %d)", servletRequest, "********", queue, window));
+		}
+		try {
+			String token = AuthorizationHelper.getBearerToken(authHeader);
+			eTSContext.authorizeRead(token, queue);
+			if (eTSContext.hasSubscriptions(queue)) {
+				throw new WebApplicationException(String.format("Queue %s is read through subscriptions", queue), Response.Status.CONFLICT);
+			}
+			int maxWindow = eTSContext.getMaxBatchSize();
+			window = (window <= 0) ? maxWindow : Math.min(window, maxWindow);
+			EventStreams.getInstance().subscribe(queue, eTSContext, token, sink, sse, window);
+		} catch (AuthorizationException e) {
+			throw new WebApplicationException(e, Response.Status.UNAUTHORIZED);
+		} catch (UnsupportedOperationException e) {
+			throw new WebApplicationException(e, Response.Status.NOT_IMPLEMENTED);
+		} catch (WebServiceException e1) {
+			throw new WebApplicationException(e1, Response.Status.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * Acknowledge entries delivered through {@link #stream}, removing them from the queue. The body is a JSON
+	 * array of entry ids. Only entries in flight with the stream of the queue on this node can be acknowledged, so
+	 * acknowledgements must be sent to the node the stream is connected to. If the queue is not streamed on this
+	 * node, the response is 409. If none of the ids are in flight with the stream, the response is 404; otherwise
+	 * the ids that are not are listed as "notHeld".
+	 *
+	 * @param servletRequest
+	 * @param authHeader
+	 * @param queue
+	 * @param ids
+	 * @return
+	 */
+	@POST
+	@Path("stream/{queue}/ack")
+	@Consumes(MediaType.APPLICATION_JSON)
 	@Produces(MediaType.APPLICATION_JSON)
-	public Map<String, Object> peek(@Context HttpServletRequest servletRequest,
-			@Context HttpServletResponse servletResponse, @HeaderParam("Authorization") String authHeader,
-			@PathParam("queue") String queue) throws FileNotFoundException, IOException, SQLException {
+	public Map<String, Object> streamAck(@Context HttpServletRequest servletRequest, @HeaderParam("Authorization") String authHeader,
+			@PathParam("queue") String queue, List<Long> ids) {
 		if (log.isDebugEnabled()) {
-			log.debug(String.format("Enter: peek(%s, %s, %s, %s)", servletRequest, servletResponse, "********", queue));
+			log.debug(String.format("Enter: streamAck(%s, %s, %s, %s)", servletRequest, "********", queue, ids));
 		}
-		Map<String, Object> result = null;
+		Map<String, Object> result = new HashMap<String, Object>();
 		try {
-			result = pollInternal(servletRequest, authHeader, queue, false);
+			String token = AuthorizationHelper.getBearerToken(authHeader);
+			eTSContext.authorizeRead(token, queue);
+			int count = 0;
+			List<Long> notHeld = new ArrayList<Long>();
+			if (ids != null && !ids.isEmpty()) {
+				count = EventStreams.getInstance().ack(queue, ids, notHeld);
+				if (notHeld.size() == ids.size()) {
+					throw new WebApplicationException(String.format("None of the entries are in flight with the stream of queue %s on this node", queue), Response.Status.NOT_FOUND);
+				}
+			}
+			result.put("status", "success");
+			result.put("count", count);
+			if (!notHeld.isEmpty()) {
+				result.put("notHeld", notHeld);
+			}
 		} catch (AuthorizationException e) {
 			throw new WebApplicationException(e, Response.Status.UNAUTHORIZED);
-		} catch (IOException | SQLException e1) {
+		} catch (IllegalStateException e) {
+			throw new WebApplicationException(e, Response.Status.CONFLICT);
+		} catch (WebServiceException e1) {
 			throw new WebApplicationException(e1, Response.Status.INTERNAL_SERVER_ERROR);
 		}
 		return result;
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.rest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import sailpoint.ets.cloud.queue.api.ETSContext;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Registry of the queue streams that have subscribers on this node. A single background thread sends keep-alive
+ * comments, so dropped connections are noticed, and looks for entries written by other nodes.
+ */
+class EventStreams {
+
+	private static final Logger log = LogManager.getLogger(EventStreams.class);
+	private static final EventStreams instance = new EventStreams();
+	private static final long REFRESH_SECONDS = 15;
+
+	private final ConcurrentHashMap<String, QueueStream> streams = new ConcurrentHashMap<String, QueueStream>();
+	private final ScheduledExecutorService scheduler;
+
+	private EventStreams() {
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "ets-event-streams");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.scheduler.scheduleWithFixedDelay(this::refresh, REFRESH_SECONDS, REFRESH_SECONDS, TimeUnit.SECONDS);
+	}
+
+	static EventStreams getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Add a subscriber to the stream of the specified queue, starting the stream if needed.
+	 *
+	 * @param queue
+	 * @param context
+	 * @param token	The token the subscriber was authorized with.
+	 * @param sink
+	 * @param sse
+	 * @param window
+	 * @throws UnsupportedOperationException	If the store of the queue does not support leases.
+	 */
+	void subscribe(String queue, ETSContext context, String token, SseEventSink sink, Sse sse, int window) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: subscribe(%s, %d)", queue, window));
+		}
+		while (true) {
+			QueueStream stream = streams.computeIfAbsent(queue, q -> new QueueStream(q, context));
+			if (stream.subscribe(token, sink, sse, window)) {
+				return;
+			}
+			// Closed by its last subscriber in the meantime
+			streams.remove(queue, stream);
+		}
+	}
+
+	/**
+	 * Acknowledge entries of the specified queue that are in flight with its stream on this node.
+	 *
+	 * @param queue
+	 * @param ids
+	 * @param notHeld	Receives the ids that are not in flight with the stream.
+	 * @return	The number of entries removed.
+	 * @throws IllegalStateException	If the queue has no stream on this node: the entries are held under leases
+	 * 		by another node, or were released to other consumers when the stream closed.
+	 */
+	int ack(String queue, List<Long> ids, List<Long> notHeld) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: ack(%s, %s)", queue, ids));
+		}
+		QueueStream stream = streams.get(queue);
+		if (stream == null || stream.isClosed()) {
+			throw new IllegalStateException(String.format("Queue %s is not streamed on this node", queue));
+		}
+		return stream.ack(ids, notHeld);
+	}
+
+	void remove(QueueStream stream) {
+		streams.remove(stream.getQueue(), stream);
+	}
+
+	void execute(Runnable task) {
+		scheduler.execute(task);
+	}
+
+	private void refresh() {
+		for (QueueStream stream : new ArrayList<QueueStream>(streams.values())) {
+			try {
+				stream.refresh();
+			} catch (RuntimeException e) {
+				log.error(String.format("Unable to refresh stream for queue %s", stream.getQueue()), e);
+			}
+		}
+	}
+
+	/**
+	 * Close all streams and stop the background thread.
+	 */
+	void shutdown() {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: shutdown()");
+		}
+		for (QueueStream stream : new ArrayList<QueueStream>(streams.values())) {
+			stream.close();
+		}
+		scheduler.shutdownNow();
+	}
+}
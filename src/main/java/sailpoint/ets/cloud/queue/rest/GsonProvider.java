@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.MessageBodyWriter;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializer;
+import com.google.gson.ToNumberPolicy;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Reads and writes JSON request and response bodies with a single, shared Gson instance. Gson is thread safe and
+ * caches its type adapters, so they are built once instead of per request. Bodies handled as text, bytes or
+ * streams are left to the standard providers, so event payloads pass through unchanged.
+ */
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class GsonProvider implements MessageBodyReader<Object>, MessageBodyWriter<Object> {
+
+	private static final Gson gson = new GsonBuilder()
+			// Whole numbers are read as Long rather than Double, e.g. for maxAge
+			.setObjectToNumberStrategy(ToNumberPolicy.LONG_OR_DOUBLE)
+			.registerTypeHierarchyAdapter(Date.class, (JsonSerializer<Date>) (date, type, context) -> {
+				if (date instanceof java.sql.Date) {
+					return new JsonPrimitive(date.toString());
+				}
+				return new JsonPrimitive(DateTimeFormatter.ISO_INSTANT.format(date.toInstant()));
+			})
+			.disableHtmlEscaping()
+			.create();
+
+	/**
+	 * The shared Gson instance.
+	 *
+	 * @return
+	 */
+	public static Gson getGson() {
+		return gson;
+	}
+
+	private static boolean isHandled(Class<?> type) {
+		return !(type == String.class || type == byte[].class || type == File.class
+				|| InputStream.class.isAssignableFrom(type) || Reader.class.isAssignableFrom(type)
+				|| StreamingOutput.class.isAssignableFrom(type) || Response.class.isAssignableFrom(type));
+	}
+
+	@Override
+	public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return isHandled(type);
+	}
+
+	@Override
+	public Object readFrom(Class<Object> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, String> httpHeaders, InputStream entityStream) throws IOException, WebApplicationException {
+		try {
+			Reader reader = new InputStreamReader(entityStream, StandardCharsets.UTF_8);
+			return gson.fromJson(reader, genericType);
+		} catch (JsonParseException e) {
+			throw new BadRequestException(e);
+		}
+	}
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return isHandled(type);
+	}
+
+	@Override
+	public void writeTo(Object t, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+			MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException, WebApplicationException {
+		Writer writer = new OutputStreamWriter(entityStream, StandardCharsets.UTF_8);
+		gson.toJson(t, genericType, writer);
+		writer.flush();
+	}
+}
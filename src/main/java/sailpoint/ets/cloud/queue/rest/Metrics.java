@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.rest;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import sailpoint.ets.cloud.queue.api.AuthorizationException;
+import sailpoint.ets.cloud.queue.api.AuthorizationHelper;
+import sailpoint.ets.cloud.queue.api.ETSContext;
+import sailpoint.ets.cloud.queue.tools.PrometheusWriter;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Exposes the metrics in the Prometheus text format, for scraping. Unless metrics.authenticate is set to false,
+ * the scraper must send the admin credentials with Basic authentication.
+ */
+@Path("metrics")
+public class Metrics {
+
+	private static final Logger log = LogManager.getLogger(Metrics.class);
+
+	@Inject
+	private ETSContext eTSContext;
+
+	@GET
+	@Produces(PrometheusWriter.CONTENT_TYPE)
+	public Response metrics(@HeaderParam("Authorization") String authHeader) {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: metrics(********)");
+		}
+		if (eTSContext.isMetricsAuthentication()) {
+			try {
+				Map<String, String> credentials = AuthorizationHelper.getBasicCredentials(authHeader);
+				if (credentials == null) {
+					throw new AuthorizationException("Basic Authentication Required");
+				}
+				eTSContext.authorizeAdmin(credentials);
+			} catch (AuthorizationException | IOException e) {
+				return Response.status(Response.Status.UNAUTHORIZED)
+						.header(HttpHeaders.WWW_AUTHENTICATE, "Basic realm=\"metrics\"").build();
+			}
+		}
+		StreamingOutput body = output -> {
+			PrometheusWriter writer = new PrometheusWriter(
+					new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)));
+			eTSContext.writePrometheusMetrics(writer);
+			writer.flush();
+		};
+		return Response.ok(body, PrometheusWriter.CONTENT_TYPE).build();
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.rest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.ws.rs.container.AsyncResponse;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import sailpoint.ets.cloud.queue.api.QueueBatch;
+import sailpoint.ets.cloud.queue.api.QueueWaiters;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * A poll or peek request that is parked until entries arrive in its queue or the wait time expires. Reading the
+ * queue and resuming the response happen under one lock, so entries claimed from the queue are never dropped by a
+ * concurrent timeout.
+ */
+class PendingPoll {
+
+	private static final Logger log = LogManager.getLogger(PendingPoll.class);
+
+	private final String queue;
+	private final AsyncResponse asyncResponse;
+	private final Supplier<QueueBatch> reader;
+	private final Function<QueueBatch, Object> formatter;
+	private final QueueWaiters waiters;
+	private final QueueWaiters.Waiter waiter;
+	private final long settleMillis;
+	private boolean done = false;
+
+	/**
+	 * @param waiters	The registry to wait in.
+	 * @param queue	The id of the queue.
+	 * @param consuming	Whether reading removes entries from the queue.
+	 * @param asyncResponse	The suspended response.
+	 * @param reader	Reads the queue.
+	 * @param formatter	Converts the entries read into the response entity.
+	 * @param settleMillis	The time after a write before the reader returns the new entries, or 0 if it returns them
+	 * 		at once.
+	 */
+	PendingPoll(QueueWaiters waiters, String queue, boolean consuming, AsyncResponse asyncResponse, Supplier<QueueBatch> reader, Function<QueueBatch, Object> formatter,
+			long settleMillis) {
+		this.waiters = waiters;
+		this.queue = queue;
+		this.asyncResponse = asyncResponse;
+		this.reader = reader;
+		this.formatter = formatter;
+		this.waiter = new QueueWaiters.Waiter(consuming, () -> read(true));
+		this.settleMillis = settleMillis;
+	}
+
+	/**
+	 * Park the request for at most the specified time.
+	 *
+	 * @param waitMillis
+	 */
+	void park(long waitMillis) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: park(%d)", waitMillis));
+		}
+		asyncResponse.setTimeoutHandler(response -> timeout());
+		asyncResponse.setTimeout(waitMillis, TimeUnit.MILLISECONDS);
+		waiters.register(queue, waiter);
+		// An entry may have been written between the initial read and registering.
+		read(false);
+		if (settleMillis > 0) {
+			// Or shortly before the initial read, and not have been returned yet
+			waiters.schedule(() -> read(false), settleMillis);
+		}
+	}
+
+	/**
+	 * Read the queue and resume if entries were found. Otherwise keep waiting, registering again if the waiter was
+	 * removed by the signal that triggered this read.
+	 *
+	 * @param register
+	 */
+	private synchronized void read(boolean register) {
+		if (done) {
+			return;
+		}
+		try {
+			QueueBatch batch = reader.get();
+			if (!batch.isEmpty()) {
+				finish(batch);
+			} else if (register) {
+				waiters.register(queue, waiter);
+				if (settleMillis > 0) {
+					// The entries that woke this poll may not be returned yet; read again once they are
+					waiters.schedule(() -> read(false), settleMillis);
+				}
+			}
+		} catch (RuntimeException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Read the queue one final time, to pick up entries written by other nodes, and resume.
+	 */
+	private synchronized void timeout() {
+		if (done) {
+			return;
+		}
+		try {
+			finish(reader.get());
+		} catch (RuntimeException e) {
+			fail(e);
+		}
+	}
+
+	private void finish(QueueBatch batch) {
+		done = true;
+		waiters.unregister(queue, waiter);
+		asyncResponse.resume(formatter.apply(batch));
+	}
+
+	private void fail(RuntimeException e) {
+		log.error(e);
+		done = true;
+		waiters.unregister(queue, waiter);
+		asyncResponse.resume(e);
+	}
+}
@@ -0,0 +1,345 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.rest;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import sailpoint.ets.cloud.queue.api.AuthorizationException;
+import sailpoint.ets.cloud.queue.api.ETSContext;
+import sailpoint.ets.cloud.queue.api.QueueBatch;
+import sailpoint.ets.cloud.queue.api.QueueEntry;
+import sailpoint.ets.cloud.queue.api.QueueWaiters;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Dispatches the entries of one queue to the Server-Sent Events subscribers connected to this node. Entries are
+ * claimed from the store under a lease of db.queue.maxlease, so pollers, lease consumers and the streams of other
+ * nodes never receive them, and handed out round-robin, each to a single subscriber, which holds it in flight until
+ * it is acknowledged. Only acknowledged entries are removed from the queue, and only entries in flight with this
+ * stream can be acknowledged through it. Entries in flight with a subscriber that disconnects are handed to the
+ * remaining subscribers, or released to other consumers if none are left. If the node fails, they are delivered
+ * again once their leases expire. The read authorization of each subscriber is checked again before every lease
+ * round, so a subscriber whose token or access is revoked is disconnected.
+ */
+class QueueStream {
+
+	private static final Logger log = LogManager.getLogger(QueueStream.class);
+
+	/**
+	 * A connected subscriber and the entries it has not acknowledged yet.
+	 */
+	class Subscriber {
+		private final String token;
+		private final SseEventSink sink;
+		private final Sse sse;
+		private final int window;
+		private final Map<Long, QueueEntry> inFlight = new LinkedHashMap<Long, QueueEntry>();
+		private volatile boolean failed = false;
+
+		Subscriber(String token, SseEventSink sink, Sse sse, int window) {
+			this.token = token;
+			this.sink = sink;
+			this.sse = sse;
+			this.window = window;
+		}
+
+		int capacity() {
+			return window - inFlight.size();
+		}
+
+		boolean send(OutboundSseEvent event) {
+			if (failed || sink.isClosed()) {
+				return false;
+			}
+			try {
+				sink.send(event).whenComplete((result, e) -> {
+					if (e != null) {
+						log.debug(String.format("Send to subscriber on queue %s failed", queue), e);
+						// May complete on the sending thread, so never unsubscribe from here.
+						failed = true;
+						EventStreams.getInstance().execute(() -> unsubscribe(this));
+					}
+				});
+				return !failed;
+			} catch (IllegalStateException e) {
+				failed = true;
+				return false;
+			}
+		}
+
+		boolean send(QueueEntry entry) {
+			inFlight.put(entry.getId(), entry);
+			OutboundSseEvent event = sse.newEventBuilder()
+					.id(String.valueOf(entry.getId()))
+					.name("event")
+					.mediaType(MediaType.APPLICATION_JSON_TYPE)
+					.data(String.class, entry.getData())
+					.build();
+			return send(event);
+		}
+	}
+
+	private final String queue;
+	private final ETSContext context;
+	private final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+	private final TreeMap<Long, QueueEntry> redeliver = new TreeMap<Long, QueueEntry>();
+	private final QueueWaiters.Waiter waiter;
+	private int next = 0;
+	private boolean closed = false;
+
+	QueueStream(String queue, ETSContext context) {
+		this.queue = queue;
+		this.context = context;
+		this.waiter = new QueueWaiters.Waiter(false, this::onSignal);
+		context.getWaiters().register(queue, waiter);
+	}
+
+	String getQueue() {
+		return queue;
+	}
+
+	synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Add a subscriber and deliver the available entries to it.
+	 *
+	 * @param token	The token the subscriber was authorized with, checked again before each lease round.
+	 * @param sink
+	 * @param sse
+	 * @param window	The maximum number of unacknowledged entries for the subscriber.
+	 * @return	false if this stream was closed and a new one must be used.
+	 * @throws UnsupportedOperationException	If the store of the queue does not support leases.
+	 */
+	synchronized boolean subscribe(String token, SseEventSink sink, Sse sse, int window) {
+		if (closed) {
+			return false;
+		}
+		Subscriber subscriber = new Subscriber(token, sink, sse, Math.max(1, window));
+		subscribers.add(subscriber);
+		try {
+			dispatch();
+		} catch (UnsupportedOperationException e) {
+			subscribers.remove(subscriber);
+			if (subscribers.isEmpty()) {
+				closed = true;
+				context.getWaiters().unregister(queue, waiter);
+				EventStreams.getInstance().remove(this);
+			}
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * Remove a subscriber. Its unacknowledged entries are queued for redelivery. The stream is closed when the last
+	 * subscriber leaves.
+	 *
+	 * @param subscriber
+	 */
+	synchronized void unsubscribe(Subscriber subscriber) {
+		if (drop(subscriber)) {
+			dispatch();
+		}
+	}
+
+	/**
+	 * Remove a subscriber without handing its entries to the others yet.
+	 *
+	 * @param subscriber
+	 * @return	false if the subscriber was already removed.
+	 */
+	private boolean drop(Subscriber subscriber) {
+		if (!subscribers.remove(subscriber)) {
+			return false;
+		}
+		redeliver.putAll(subscriber.inFlight);
+		subscriber.inFlight.clear();
+		try {
+			subscriber.sink.close();
+		} catch (Exception e) {
+			// Silently ignore
+		}
+		if (subscribers.isEmpty()) {
+			closed = true;
+			context.getWaiters().unregister(queue, waiter);
+			EventStreams.getInstance().remove(this);
+			release();
+		}
+		return true;
+	}
+
+	/**
+	 * Disconnect the subscribers that are no longer allowed to read the queue. A subscriber is kept if its
+	 * authorization cannot be checked, e.g. while the database is unavailable, as no entries can be leased then
+	 * either.
+	 */
+	private void checkAuthorization() {
+		for (Subscriber subscriber : new ArrayList<Subscriber>(subscribers)) {
+			try {
+				context.authorizeRead(subscriber.token, queue);
+			} catch (AuthorizationException e) {
+				if (e.getCause() == null) {
+					log.info(String.format("Disconnecting subscriber on queue %s: %s", queue, e.getMessage()));
+					drop(subscriber);
+				} else {
+					log.warn(String.format("Unable to check the authorization of a subscriber on queue %s", queue), e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Release the leases of the entries waiting for redelivery, so other consumers receive them right away instead
+	 * of after the leases expire.
+	 */
+	private void release() {
+		List<String> leaseIds = new ArrayList<String>();
+		for (QueueEntry entry : redeliver.values()) {
+			leaseIds.add(entry.getLeaseId());
+		}
+		redeliver.clear();
+		try {
+			context.releaseQueueLeases(queue, leaseIds);
+		} catch (RuntimeException e) {
+			log.warn(String.format("Unable to release %d entries of queue %s; they are delivered again when their leases expire", leaseIds.size(), queue), e);
+		}
+	}
+
+	/**
+	 * Acknowledge entries, removing them from the queue. Ids that are not in flight with this stream are not
+	 * acknowledged, and are added to notHeld.
+	 *
+	 * @param ids
+	 * @param notHeld	Receives the ids that are not in flight with this stream.
+	 * @return	The number of entries removed.
+	 */
+	synchronized int ack(List<Long> ids, List<Long> notHeld) {
+		List<String> leaseIds = new ArrayList<String>();
+		for (Long id : ids) {
+			QueueEntry entry = redeliver.remove(id);
+			for (int i = 0; entry == null && i < subscribers.size(); i++) {
+				entry = subscribers.get(i).inFlight.remove(id);
+			}
+			if (entry != null) {
+				leaseIds.add(entry.getLeaseId());
+			} else {
+				notHeld.add(id);
+			}
+		}
+		// A lease that expired and was taken by another consumer is not removed
+		int count = context.ackQueueLeases(queue, leaseIds);
+		dispatch();
+		return count;
+	}
+
+	/**
+	 * Send a keep-alive comment to all subscribers, dropping those whose connection is gone, and look for entries
+	 * written by other nodes.
+	 */
+	synchronized void refresh() {
+		for (Subscriber subscriber : new ArrayList<Subscriber>(subscribers)) {
+			if (!subscriber.send(subscriber.sse.newEventBuilder().comment("keep-alive").build())) {
+				unsubscribe(subscriber);
+			}
+		}
+		dispatch();
+	}
+
+	/**
+	 * Close all subscriber connections.
+	 */
+	synchronized void close() {
+		for (Subscriber subscriber : new ArrayList<Subscriber>(subscribers)) {
+			unsubscribe(subscriber);
+		}
+	}
+
+	private synchronized void onSignal() {
+		if (closed) {
+			return;
+		}
+		context.getWaiters().register(queue, waiter);
+		dispatch();
+	}
+
+	/**
+	 * Hand out entries to subscribers with free capacity: first entries queued for redelivery, then entries newly
+	 * leased from the queue. Subscribers that lost their read access are disconnected first.
+	 *
+	 * @throws UnsupportedOperationException	If the store of the queue does not support leases.
+	 */
+	private void dispatch() {
+		if (closed || subscribers.isEmpty()) {
+			return;
+		}
+		checkAuthorization();
+		if (closed) {
+			return;
+		}
+		int capacity = 0;
+		for (Subscriber subscriber : subscribers) {
+			capacity += Math.max(0, subscriber.capacity());
+		}
+		if (capacity <= 0) {
+			return;
+		}
+		List<QueueEntry> entries = new ArrayList<QueueEntry>();
+		Iterator<QueueEntry> iterator = redeliver.values().iterator();
+		while (iterator.hasNext() && entries.size() < capacity) {
+			entries.add(iterator.next());
+			iterator.remove();
+		}
+		if (entries.size() < capacity) {
+			try {
+				QueueBatch batch = context.leaseQueueData(queue, capacity - entries.size(), context.getMaxLease());
+				entries.addAll(batch.getEntries());
+			} catch (UnsupportedOperationException e) {
+				throw e;
+			} catch (RuntimeException e) {
+				log.error(String.format("Unable to read queue %s for streaming", queue), e);
+			}
+		}
+		for (int i = 0; i < entries.size(); i++) {
+			Subscriber subscriber = nextSubscriber();
+			if (subscriber == null || !subscriber.send(entries.get(i))) {
+				for (QueueEntry entry : entries.subList(i, entries.size())) {
+					redeliver.put(entry.getId(), entry);
+				}
+				if (subscriber != null) {
+					// Hands the remaining entries to the other subscribers.
+					unsubscribe(subscriber);
+				}
+				return;
+			}
+		}
+	}
+
+	private Subscriber nextSubscriber() {
+		for (int i = 0; i < subscribers.size(); i++) {
+			Subscriber subscriber = subscribers.get((next + i) % subscribers.size());
+			if (subscriber.capacity() > 0) {
+				next = (next + i + 1) % subscribers.size();
+				return subscriber;
+			}
+		}
+		return null;
+	}
+}
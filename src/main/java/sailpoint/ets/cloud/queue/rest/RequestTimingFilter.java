@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.rest;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.ResourceInfo;
+import javax.ws.rs.core.Context;
+
+import sailpoint.ets.cloud.queue.api.Instrumentation;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Records the time taken by each REST call in the histogram of its resource method, e.g.
+ * <code>EventListener.trigger</code>. For suspended calls, such as long polls, the time runs until the response is
+ * resumed. Requests that match no resource method are not recorded.
+ */
+public class RequestTimingFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+	private static final String PROPERTY_START = RequestTimingFilter.class.getName() + ".start";
+	private static final String PROPERTY_HISTOGRAM = RequestTimingFilter.class.getName() + ".histogram";
+
+	@Context
+	private ResourceInfo resourceInfo;
+
+	@Override
+	public void filter(ContainerRequestContext requestContext) throws IOException {
+		Method method = resourceInfo.getResourceMethod();
+		if (method != null) {
+			String endpoint = resourceInfo.getResourceClass().getSimpleName() + "." + method.getName();
+			requestContext.setProperty(PROPERTY_HISTOGRAM, Instrumentation.REQUESTS.get(endpoint));
+			requestContext.setProperty(PROPERTY_START, System.nanoTime());
+		}
+	}
+
+	@Override
+	public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+		Object histogram = requestContext.getProperty(PROPERTY_HISTOGRAM);
+		Object start = requestContext.getProperty(PROPERTY_START);
+		if (histogram != null && start != null) {
+			((Instrumentation.Histogram) histogram).since((Long) start);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.store;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Restricts reads to the entries whose extracted attributes have the specified values; see
+ * {@link EntryAttributes#filter(java.util.List)}. Entries written before an attribute was configured do not match.
+ */
+public class AttributeFilter {
+
+	private final int[] columns;
+	private final String[] values;
+
+	/**
+	 * @param columns	The attribute columns, 1 to {@link EntryAttributes#MAX_ATTRIBUTES}.
+	 * @param values	The value required in each column.
+	 */
+	AttributeFilter(int[] columns, String[] values) {
+		this.columns = columns;
+		this.values = values;
+	}
+
+	/**
+	 * The SQL condition, starting with AND, to add to a WHERE clause on ets_queue_entry.
+	 *
+	 * @return
+	 */
+	String getCondition() {
+		StringBuilder condition = new StringBuilder();
+		for (int column : columns) {
+			condition.append(" AND attr").append(column).append(" = ?");
+		}
+		return condition.toString();
+	}
+
+	/**
+	 * Set the values of the condition on a statement.
+	 *
+	 * @param statement
+	 * @param index	The index of the first parameter of the condition.
+	 * @return	The index of the parameter following the condition.
+	 * @throws SQLException
+	 */
+	int bind(PreparedStatement statement, int index) throws SQLException {
+		for (String value : values) {
+			statement.setString(index++, value);
+		}
+		return index;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder("AttributeFilter(");
+		for (int i = 0; i < columns.length; i++) {
+			result.append((i == 0) ? "" : ", ").append("attr").append(columns[i]).append('=').append(values[i]);
+		}
+		return result.append(')').toString();
+	}
+}
@@ -0,0 +1,19 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.store;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Hands out pooled database connections to a store. The caller closes the connection to return it.
+ */
+public interface ConnectionProvider {
+
+	Connection getConnection() throws SQLException, IOException;
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import sailpoint.ets.cloud.queue.tools.JsonPayload;
+import sailpoint.ets.cloud.queue.tools.Util;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * The payload attributes extracted into the indexed attr1 to attr3 columns of ets_queue_entry when entries are
+ * written, so reads can be filtered on them in SQL. Each attribute has a name, used in filters, and a path of
+ * property names leading to its value in the payload. The position of an attribute decides its column, so
+ * attributes must only be added at the end while entries are queued.
+ */
+public class EntryAttributes {
+
+	public static final int MAX_ATTRIBUTES = 3;
+	// The size of the attribute columns; longer values are truncated
+	public static final int MAX_LENGTH = 255;
+	public static final EntryAttributes NONE = new EntryAttributes(Collections.<String>emptyList(), Collections.<String[]>emptyList());
+
+	private final List<String> names;
+	private final List<String[]> paths;
+
+	private EntryAttributes(List<String> names, List<String[]> paths) {
+		this.names = names;
+		this.paths = paths;
+	}
+
+	/**
+	 * Parse a comma-separated list of name:path pairs, the path being property names separated by dots, e.g.
+	 * <code>trigger:_metadata.triggerId,identity:identity.id</code>.
+	 *
+	 * @param specification
+	 * @return
+	 * @throws IllegalArgumentException	If the list is malformed or holds more than MAX_ATTRIBUTES attributes.
+	 */
+	public static EntryAttributes parse(String specification) {
+		if (Util.isNullOrEmpty(specification) || specification.trim().isEmpty()) {
+			return NONE;
+		}
+		List<String> names = new ArrayList<String>();
+		List<String[]> paths = new ArrayList<String[]>();
+		for (String attribute : specification.split(",")) {
+			int colon = attribute.indexOf(':');
+			String name = (colon < 0) ? "" : attribute.substring(0, colon).trim();
+			String path = (colon < 0) ? "" : attribute.substring(colon + 1).trim();
+			if (name.isEmpty() || path.isEmpty() || names.contains(name)) {
+				throw new IllegalArgumentException(String.format("Invalid queue attribute: %s", attribute.trim()));
+			}
+			names.add(name);
+			paths.add(path.split("\\."));
+		}
+		if (names.size() > MAX_ATTRIBUTES) {
+			throw new IllegalArgumentException(String.format("At most %d queue attributes are supported", MAX_ATTRIBUTES));
+		}
+		return new EntryAttributes(names, paths);
+	}
+
+	/**
+	 * The number of attributes.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return names.size();
+	}
+
+	/**
+	 * The names of the attributes, in column order.
+	 *
+	 * @return
+	 */
+	public List<String> getNames() {
+		return Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * The values of the attributes in a payload, in column order. Missing values are null.
+	 *
+	 * @param data
+	 * @return
+	 */
+	public String[] extract(String data) {
+		String[] values = new String[paths.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = truncate(JsonPayload.extract(data, paths.get(i)));
+		}
+		return values;
+	}
+
+	/**
+	 * A filter from name:value pairs; the entries must match all of them.
+	 *
+	 * @param conditions
+	 * @return	The filter, or null if there are no conditions.
+	 * @throws IllegalArgumentException	If a condition is malformed or names an unknown attribute.
+	 */
+	public AttributeFilter filter(List<String> conditions) {
+		if (conditions == null || conditions.isEmpty()) {
+			return null;
+		}
+		int[] columns = new int[conditions.size()];
+		String[] values = new String[conditions.size()];
+		for (int i = 0; i < columns.length; i++) {
+			String condition = conditions.get(i);
+			int colon = (condition == null) ? -1 : condition.indexOf(':');
+			int index = (colon < 0) ? -1 : names.indexOf(condition.substring(0, colon).trim());
+			if (index < 0) {
+				throw new IllegalArgumentException(String.format("Invalid filter %s; filter on one of %s as name:value", condition, names));
+			}
+			columns[i] = index + 1;
+			values[i] = truncate(condition.substring(colon + 1));
+		}
+		return new AttributeFilter(columns, values);
+	}
+
+	private static String truncate(String value) {
+		return (value != null && value.length() > MAX_LENGTH) ? value.substring(0, MAX_LENGTH) : value;
+	}
+}
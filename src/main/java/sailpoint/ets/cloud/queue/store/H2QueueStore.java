@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.store;
+
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Keeps queue entries in an embedded H2 database, for small deployments and test rigs without a MySQL server. The
+ * database must be opened in MySQL compatibility mode, e.g.
+ * <code>jdbc:h2:file:/var/lib/etscloudqueue/queue;MODE=MySQL;DATABASE_TO_LOWER=TRUE</code>, and the tables are
+ * created from WEB-INF/database/h2 on startup.
+ */
+public class H2QueueStore extends JdbcQueueStore {
+
+	public H2QueueStore(ConnectionProvider connectionProvider) {
+		super(connectionProvider);
+	}
+
+	public H2QueueStore(ConnectionProvider connectionProvider, Function<String, PayloadCodec> codecs) {
+		super(connectionProvider, codecs);
+	}
+
+	public H2QueueStore(ConnectionProvider connectionProvider, Function<String, PayloadCodec> codecs, Supplier<EntryAttributes> attributes) {
+		super(connectionProvider, codecs, attributes);
+	}
+
+	/**
+	 * H2 does not support ORDER BY and LIMIT on DELETE.
+	 */
+	@Override
+	protected String getPurgeQuery() {
+		return "DELETE FROM ets_queue_entry WHERE id IN (SELECT id FROM ets_queue_entry WHERE queue_id = ? AND created < ? ORDER BY created FETCH FIRST ? ROWS ONLY)";
+	}
+
+	/**
+	 * H2 does not support ORDER BY and LIMIT on DELETE.
+	 */
+	@Override
+	protected String getTrimQuery() {
+		return "DELETE FROM ets_queue_entry WHERE id IN (SELECT id FROM ets_queue_entry WHERE queue_id = ? AND id <= ? ORDER BY id FETCH FIRST ? ROWS ONLY)";
+	}
+
+	/**
+	 * H2 does not support ORDER BY and LIMIT on UPDATE.
+	 */
+	@Override
+	protected String getPromoteQuery() {
+		return "UPDATE ets_queue_entry SET priority = ? WHERE id IN (SELECT id FROM ets_queue_entry WHERE queue_id = ? AND created < ? AND priority < ? ORDER BY created FETCH FIRST ? ROWS ONLY)";
+	}
+}
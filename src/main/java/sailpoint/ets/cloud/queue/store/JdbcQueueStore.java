@@ -0,0 +1,925 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.store;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.xml.ws.WebServiceException;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import sailpoint.ets.cloud.queue.api.DeadLetterEntry;
+import sailpoint.ets.cloud.queue.api.QueueBatch;
+import sailpoint.ets.cloud.queue.api.QueueEntry;
+import sailpoint.ets.cloud.queue.tools.Util;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Keeps queue entries in the ets_queue_entry table of a MySQL database. Requires MySQL 8.0.1 or later for
+ * <code>FOR UPDATE SKIP LOCKED</code>. Entry data is stored as bytes, optionally compressed per queue; see
+ * {@link PayloadCodec}. Leased entries stay in the table with their lease id and expiry until acknowledged, and
+ * entries that run out of delivery attempts are moved to the ets_queue_dead_letter table. Configured payload
+ * attributes are stored in indexed columns next to the data, so reads can be filtered on them; see
+ * {@link EntryAttributes}. Entries are taken from the head of a queue on the (queue_id, priority, id) index.
+ */
+public class JdbcQueueStore implements QueueStore {
+
+	private static final Logger log = LogManager.getLogger(JdbcQueueStore.class);
+	// Rows per INSERT statement; keeps the statement well below the placeholder and packet limits
+	private static final int INSERT_ROWS = 500;
+	// Entries not held by an unexpired lease. Parameter: the current time.
+	private static final String VISIBLE = "(lease_expires IS NULL OR lease_expires <= ?)";
+	// Claims per lease when the claimed entries all went to the dead-letter queue
+	private static final int CLAIM_ROUNDS = 10;
+	// Dead-lettered entries redriven or discarded per transaction
+	private static final int DEAD_LETTER_CHUNK = 500;
+
+	private final ConnectionProvider connectionProvider;
+	private final Function<String, PayloadCodec> codecs;
+	private final Supplier<EntryAttributes> attributes;
+
+	public JdbcQueueStore(ConnectionProvider connectionProvider) {
+		this(connectionProvider, new PayloadCodec());
+	}
+
+	public JdbcQueueStore(ConnectionProvider connectionProvider, final PayloadCodec codec) {
+		this(connectionProvider, queue -> codec);
+	}
+
+	/**
+	 * @param connectionProvider
+	 * @param codecs	Finds the codec of a queue.
+	 */
+	public JdbcQueueStore(ConnectionProvider connectionProvider, Function<String, PayloadCodec> codecs) {
+		this(connectionProvider, codecs, () -> EntryAttributes.NONE);
+	}
+
+	/**
+	 * @param connectionProvider
+	 * @param codecs	Finds the codec of a queue.
+	 * @param attributes	Provides the attributes to extract from entries as they are written.
+	 */
+	public JdbcQueueStore(ConnectionProvider connectionProvider, Function<String, PayloadCodec> codecs, Supplier<EntryAttributes> attributes) {
+		this.connectionProvider = connectionProvider;
+		this.codecs = codecs;
+		this.attributes = attributes;
+	}
+
+	protected Connection getConnection() throws SQLException, IOException {
+		return connectionProvider.getConnection();
+	}
+
+	/**
+	 * Roll back the current transaction. Failures are logged, so the error that caused the rollback is kept.
+	 *
+	 * @param connection
+	 */
+	protected void rollback(Connection connection) {
+		try {
+			connection.rollback();
+		} catch (SQLException e) {
+			log.error(e);
+			// Silently ignore
+		}
+	}
+
+	/**
+	 * Write the entries using multi-row INSERT statements in a single transaction. A single entry is written with
+	 * auto-commit.
+	 */
+	@Override
+	public int enqueue(String queue, List<String> data) {
+		return enqueue(queue, data, DEFAULT_PRIORITY);
+	}
+
+	@Override
+	public int enqueue(String queue, List<String> data, int priority) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: enqueue(%s, %s, %d)", queue, (data == null) ? "null" : "List(********)", priority));
+		}
+		if (Util.isNullOrEmpty(queue) || data == null || data.isEmpty()) {
+			return 0;
+		}
+		try (Connection connection = getConnection()) {
+			if (data.size() == 1) {
+				if (Util.isNullOrEmpty(data.get(0))) {
+					return 0;
+				}
+				EntryAttributes attributes = this.attributes.get();
+				try (PreparedStatement statement = connection.prepareStatement(getInsertQuery(1, attributes.size()))) {
+					bindEntry(statement, 1, queue, priority, codecs.apply(queue), attributes, data.get(0));
+					statement.execute();
+					return 1;
+				}
+			}
+			connection.setAutoCommit(false);
+			try {
+				int count = insert(connection, queue, data, priority);
+				connection.commit();
+				return count;
+			} catch (SQLException e) {
+				rollback(connection);
+				throw e;
+			}
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * Write the entries of all queues in a single transaction, so a group of writers shares one commit.
+	 */
+	@Override
+	public Map<String, Integer> enqueueAll(Map<String, List<String>> data) {
+		return enqueueAll(data, DEFAULT_PRIORITY);
+	}
+
+	@Override
+	public Map<String, Integer> enqueueAll(Map<String, List<String>> data, int priority) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: enqueueAll(%s, %d)", (data == null) ? "null" : data.keySet(), priority));
+		}
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		if (data == null || data.isEmpty()) {
+			return counts;
+		}
+		try (Connection connection = getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				for (Map.Entry<String, List<String>> entry : data.entrySet()) {
+					counts.put(entry.getKey(), insert(connection, entry.getKey(), entry.getValue(), priority));
+				}
+				connection.commit();
+				return counts;
+			} catch (SQLException e) {
+				rollback(connection);
+				throw e;
+			}
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * An INSERT statement for the specified number of entries. Parameters: queue id, priority, data and the
+	 * attribute values, per entry.
+	 *
+	 * @param rows
+	 * @param attributes	The number of attribute columns.
+	 * @return
+	 */
+	protected String getInsertQuery(int rows, int attributes) {
+		StringBuilder query = new StringBuilder("INSERT INTO ets_queue_entry (queue_id, priority, data");
+		StringBuilder row = new StringBuilder("(?, ?, ?");
+		for (int i = 1; i <= attributes; i++) {
+			query.append(", attr").append(i);
+			row.append(", ?");
+		}
+		row.append(')');
+		query.append(") VALUES ").append(row);
+		for (int i = 1; i < rows; i++) {
+			query.append(',').append(row);
+		}
+		return query.toString();
+	}
+
+	/**
+	 * Set the parameters of one entry of an INSERT statement.
+	 *
+	 * @param statement
+	 * @param index	The index of the first parameter of the entry.
+	 * @param queue
+	 * @param priority
+	 * @param codec
+	 * @param attributes
+	 * @param data
+	 * @return	The index of the first parameter of the next entry.
+	 * @throws SQLException
+	 */
+	private static int bindEntry(PreparedStatement statement, int index, String queue, int priority, PayloadCodec codec, EntryAttributes attributes, String data) throws SQLException {
+		statement.setString(index++, queue);
+		statement.setInt(index++, priority);
+		statement.setBytes(index++, codec.encode(data));
+		for (String value : attributes.extract(data)) {
+			statement.setString(index++, value);
+		}
+		return index;
+	}
+
+	/**
+	 * Insert the non-empty entries, up to INSERT_ROWS per statement, on a connection in a transaction.
+	 *
+	 * @param connection
+	 * @param queue
+	 * @param data
+	 * @param priority
+	 * @return	The number of entries written.
+	 * @throws SQLException
+	 */
+	private int insert(Connection connection, String queue, List<String> data, int priority) throws SQLException {
+		List<String> entries = new ArrayList<String>(data.size());
+		for (String entry : data) {
+			if (Util.isNotNullOrEmpty(entry)) {
+				entries.add(entry);
+			}
+		}
+		if (Util.isNullOrEmpty(queue) || entries.isEmpty()) {
+			return 0;
+		}
+		PayloadCodec codec = codecs.apply(queue);
+		EntryAttributes attributes = this.attributes.get();
+		for (int offset = 0; offset < entries.size(); offset += INSERT_ROWS) {
+			int rows = Math.min(INSERT_ROWS, entries.size() - offset);
+			try (PreparedStatement statement = connection.prepareStatement(getInsertQuery(rows, attributes.size()))) {
+				int index = 1;
+				for (int i = 0; i < rows; i++) {
+					index = bindEntry(statement, index, queue, priority, codec, attributes, entries.get(offset + i));
+				}
+				statement.execute();
+			}
+		}
+		return entries.size();
+	}
+
+	/**
+	 * Claim entries from the head of the queue and remove them in a single transaction. The rows are locked with
+	 * FOR UPDATE SKIP LOCKED, so concurrent pollers on the same queue each claim different entries instead of
+	 * receiving the same ones, and never wait for each other's locks. One row more than requested is locked to find
+	 * out whether the queue has more entries; it is released again on commit. Entries held by a lease are skipped.
+	 */
+	@Override
+	public QueueBatch dequeue(String queue, int max) {
+		return dequeue(queue, max, null);
+	}
+
+	/**
+	 * A filter on one attribute finds the entries on the (queue_id, attrN, priority, id) index.
+	 */
+	@Override
+	public QueueBatch dequeue(String queue, int max, AttributeFilter filter) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: dequeue(%s, %d, %s)", queue, max, filter));
+		}
+		try (Connection connection = getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				QueueBatch batch = claim(connection, queue, max, filter);
+				if (!batch.isEmpty()) {
+					List<QueueEntry> entries = batch.getEntries();
+					try (PreparedStatement statement = connection.prepareStatement(getInListQuery("DELETE FROM ets_queue_entry WHERE id IN ", entries.size()))) {
+						for (int i = 0; i < entries.size(); i++) {
+							statement.setLong(i + 1, entries.get(i).getId());
+						}
+						statement.execute();
+					}
+				}
+				connection.commit();
+				return batch;
+			} catch (SQLException e) {
+				rollback(connection);
+				throw e;
+			}
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * Claim entries like {@link #dequeue(String, int)}, but instead of deleting them, give each a lease id and
+	 * expiry and count the delivery attempt, in the same transaction. Expired leases are claimed again like any other
+	 * entry. Claimed entries that already had maxAttempts deliveries are moved to ets_queue_dead_letter instead; when
+	 * that leaves nothing to deliver, the next entries are claimed, at most CLAIM_ROUNDS times.
+	 */
+	@Override
+	public QueueBatch lease(String queue, int max, long leaseMillis, int maxAttempts) {
+		return lease(queue, max, leaseMillis, maxAttempts, null);
+	}
+
+	@Override
+	public QueueBatch lease(String queue, int max, long leaseMillis, int maxAttempts, AttributeFilter filter) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: lease(%s, %d, %d, %d, %s)", queue, max, leaseMillis, maxAttempts, filter));
+		}
+		String claimQuery = "SELECT id,data,attempts FROM ets_queue_entry WHERE queue_id = ? AND " + VISIBLE + getCondition(filter) + " ORDER BY priority DESC, id LIMIT ? FOR UPDATE SKIP LOCKED";
+		String updateQuery = "UPDATE ets_queue_entry SET lease_id = ?, lease_expires = ?, attempts = attempts + 1 WHERE id = ?";
+		PayloadCodec codec = codecs.apply(queue);
+		try (Connection connection = getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				List<QueueEntry> leased = new ArrayList<QueueEntry>();
+				boolean hasMore = false;
+				int deadLettered = 0;
+				for (int round = 0; round < CLAIM_ROUNDS && leased.isEmpty(); round++) {
+					List<Long> exhausted = new ArrayList<Long>();
+					int rows = 0;
+					try (PreparedStatement statement = connection.prepareStatement(claimQuery)) {
+						statement.setString(1, queue);
+						statement.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+						statement.setInt(bind(filter, statement, 3), max + 1);
+						ResultSet rs = statement.executeQuery();
+						while (rs.next()) {
+							rows++;
+							if (maxAttempts > 0 && rs.getInt("attempts") >= maxAttempts) {
+								exhausted.add(rs.getLong("id"));
+							} else if (leased.size() < max) {
+								leased.add(new QueueEntry(rs.getLong("id"), codec.decode(rs.getBytes("data")), Util.uuid()));
+							}
+						}
+					}
+					hasMore = rows > max;
+					if (exhausted.isEmpty()) {
+						break;
+					}
+					deadLettered += deadLetter(connection, exhausted);
+				}
+				if (!leased.isEmpty()) {
+					Timestamp expires = new Timestamp(System.currentTimeMillis() + leaseMillis);
+					try (PreparedStatement statement = connection.prepareStatement(updateQuery)) {
+						for (QueueEntry entry : leased) {
+							statement.setString(1, entry.getLeaseId());
+							statement.setTimestamp(2, expires);
+							statement.setLong(3, entry.getId());
+							statement.addBatch();
+						}
+						statement.executeBatch();
+					}
+				}
+				connection.commit();
+				return new QueueBatch(leased, hasMore, deadLettered);
+			} catch (SQLException e) {
+				rollback(connection);
+				throw e;
+			}
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * Move locked entries to ets_queue_dead_letter, on a connection in a transaction.
+	 *
+	 * @param connection
+	 * @param ids
+	 * @return	The number of entries moved.
+	 * @throws SQLException
+	 */
+	private int deadLetter(Connection connection, List<Long> ids) throws SQLException {
+		String insertQuery = getInListQuery("INSERT INTO ets_queue_dead_letter (id, queue_id, created, dead_lettered, attempts, priority, data, attr1, attr2, attr3) "
+				+ "SELECT id, queue_id, created, CURRENT_TIMESTAMP(3), attempts, priority, data, attr1, attr2, attr3 FROM ets_queue_entry WHERE id IN ", ids.size());
+		try (PreparedStatement statement = connection.prepareStatement(insertQuery)) {
+			for (int i = 0; i < ids.size(); i++) {
+				statement.setLong(i + 1, ids.get(i));
+			}
+			statement.execute();
+		}
+		try (PreparedStatement statement = connection.prepareStatement(getInListQuery("DELETE FROM ets_queue_entry WHERE id IN ", ids.size()))) {
+			for (int i = 0; i < ids.size(); i++) {
+				statement.setLong(i + 1, ids.get(i));
+			}
+			return statement.executeUpdate();
+		}
+	}
+
+	/**
+	 * Lock up to max visible entries from the head of the queue, plus one to find out whether there are more, on a
+	 * connection in a transaction.
+	 *
+	 * @param connection
+	 * @param queue
+	 * @param max
+	 * @param filter	The filter, or null.
+	 * @return
+	 * @throws SQLException
+	 */
+	private QueueBatch claim(Connection connection, String queue, int max, AttributeFilter filter) throws SQLException {
+		String query = "SELECT id,data FROM ets_queue_entry WHERE queue_id = ? AND " + VISIBLE + getCondition(filter) + " ORDER BY priority DESC, id LIMIT ? FOR UPDATE SKIP LOCKED";
+		try (PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			statement.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+			statement.setInt(bind(filter, statement, 3), max + 1);
+			return toBatch(queue, statement.executeQuery(), max);
+		}
+	}
+
+	private static String getCondition(AttributeFilter filter) {
+		return (filter == null) ? "" : filter.getCondition();
+	}
+
+	private static int bind(AttributeFilter filter, PreparedStatement statement, int index) throws SQLException {
+		return (filter == null) ? index : filter.bind(statement, index);
+	}
+
+	/**
+	 * Delete leased entries in a single statement, on the lease_id index.
+	 */
+	@Override
+	public int ackLeases(String queue, List<String> leaseIds) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: ackLeases(%s, %s)", queue, leaseIds));
+		}
+		if (leaseIds == null || leaseIds.isEmpty()) {
+			return 0;
+		}
+		String query = getInListQuery("DELETE FROM ets_queue_entry WHERE queue_id = ? AND lease_id IN ", leaseIds.size());
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			for (int i = 0; i < leaseIds.size(); i++) {
+				statement.setString(i + 2, leaseIds.get(i));
+			}
+			return statement.executeUpdate();
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * Clear the leases in a single statement, on the lease_id index.
+	 */
+	@Override
+	public int releaseLeases(String queue, List<String> leaseIds) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: releaseLeases(%s, %s)", queue, leaseIds));
+		}
+		if (leaseIds == null || leaseIds.isEmpty()) {
+			return 0;
+		}
+		String query = getInListQuery("UPDATE ets_queue_entry SET lease_id = NULL, lease_expires = NULL WHERE queue_id = ? AND lease_id IN ", leaseIds.size());
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			for (int i = 0; i < leaseIds.size(); i++) {
+				statement.setString(i + 2, leaseIds.get(i));
+			}
+			return statement.executeUpdate();
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * Read from the (queue_id, id) index of ets_queue_dead_letter.
+	 */
+	@Override
+	public QueueBatch readDeadLetters(String queue, long afterId, int max) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: readDeadLetters(%s, %d, %d)", queue, afterId, max));
+		}
+		String query = "SELECT id,data,attempts,created,dead_lettered FROM ets_queue_dead_letter WHERE queue_id = ? AND id > ? ORDER BY id LIMIT ?";
+		PayloadCodec codec = codecs.apply(queue);
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			statement.setLong(2, afterId);
+			statement.setInt(3, max + 1);
+			ResultSet rs = statement.executeQuery();
+			List<QueueEntry> entries = new ArrayList<QueueEntry>();
+			boolean hasMore = false;
+			while (rs.next()) {
+				if (entries.size() == max) {
+					hasMore = true;
+					break;
+				}
+				entries.add(new DeadLetterEntry(rs.getLong("id"), codec.decode(rs.getBytes("data")), rs.getInt("attempts"),
+						rs.getTimestamp("created").getTime(), rs.getTimestamp("dead_lettered").getTime()));
+			}
+			return new QueueBatch(entries, hasMore);
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	@Override
+	public long deadLetterDepth(String queue) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: deadLetterDepth(%s)", queue));
+		}
+		String query = "SELECT COUNT(*) FROM ets_queue_dead_letter WHERE queue_id = ?";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			ResultSet rs = statement.executeQuery();
+			return rs.next() ? rs.getLong(1) : 0;
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * The entries are inserted with new ids, in id order, so they keep their order at the tail of the queue.
+	 */
+	@Override
+	public int redriveDeadLetters(String queue, List<Long> ids) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: redriveDeadLetters(%s, %s)", queue, ids));
+		}
+		return removeDeadLetters(queue, ids, true);
+	}
+
+	@Override
+	public int discardDeadLetters(String queue, List<Long> ids) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: discardDeadLetters(%s, %s)", queue, ids));
+		}
+		return removeDeadLetters(queue, ids, false);
+	}
+
+	/**
+	 * Remove dead-lettered entries, DEAD_LETTER_CHUNK per transaction, optionally inserting them into the queue
+	 * again. The rows are locked first, so concurrent calls never move the same entry twice.
+	 *
+	 * @param queue
+	 * @param ids	The ids of the entries, or null for all of them.
+	 * @param redrive	Whether to insert the entries into the queue.
+	 * @return	The number of entries removed.
+	 */
+	private int removeDeadLetters(String queue, List<Long> ids, boolean redrive) {
+		int total = 0;
+		try (Connection connection = getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				int offset = 0;
+				while (ids == null || offset < ids.size()) {
+					List<Long> chunk = null;
+					if (ids != null) {
+						chunk = ids.subList(offset, Math.min(ids.size(), offset + DEAD_LETTER_CHUNK));
+						offset += chunk.size();
+					}
+					List<Long> locked = lockDeadLetters(connection, queue, chunk);
+					if (!locked.isEmpty()) {
+						if (redrive) {
+							String insertQuery = getInListQuery("INSERT INTO ets_queue_entry (queue_id, priority, data, attr1, attr2, attr3) "
+									+ "SELECT queue_id, priority, data, attr1, attr2, attr3 FROM ets_queue_dead_letter WHERE id IN ", locked.size()) + " ORDER BY id";
+							try (PreparedStatement statement = connection.prepareStatement(insertQuery)) {
+								for (int i = 0; i < locked.size(); i++) {
+									statement.setLong(i + 1, locked.get(i));
+								}
+								statement.execute();
+							}
+						}
+						try (PreparedStatement statement = connection.prepareStatement(getInListQuery("DELETE FROM ets_queue_dead_letter WHERE id IN ", locked.size()))) {
+							for (int i = 0; i < locked.size(); i++) {
+								statement.setLong(i + 1, locked.get(i));
+							}
+							total += statement.executeUpdate();
+						}
+					}
+					connection.commit();
+					if (ids == null && locked.size() < DEAD_LETTER_CHUNK) {
+						break;
+					}
+				}
+				return total;
+			} catch (SQLException e) {
+				rollback(connection);
+				throw e;
+			}
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * Lock the specified dead-lettered entries of a queue, or the first DEAD_LETTER_CHUNK of them, on a connection
+	 * in a transaction.
+	 *
+	 * @param connection
+	 * @param queue
+	 * @param ids	The ids of the entries, or null.
+	 * @return	The ids of the entries found, in id order.
+	 * @throws SQLException
+	 */
+	private List<Long> lockDeadLetters(Connection connection, String queue, List<Long> ids) throws SQLException {
+		String query = (ids == null)
+				? "SELECT id FROM ets_queue_dead_letter WHERE queue_id = ? ORDER BY id LIMIT ? FOR UPDATE"
+				: getInListQuery("SELECT id FROM ets_queue_dead_letter WHERE queue_id = ? AND id IN ", ids.size()) + " ORDER BY id FOR UPDATE";
+		List<Long> locked = new ArrayList<Long>();
+		try (PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			if (ids == null) {
+				statement.setInt(2, DEAD_LETTER_CHUNK);
+			} else {
+				for (int i = 0; i < ids.size(); i++) {
+					statement.setLong(i + 2, ids.get(i));
+				}
+			}
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				locked.add(rs.getLong("id"));
+			}
+		}
+		return locked;
+	}
+
+	/**
+	 * Append a parenthesized list of the specified number of placeholders to a statement.
+	 *
+	 * @param prefix
+	 * @param count
+	 * @return
+	 */
+	private static String getInListQuery(String prefix, int count) {
+		StringBuilder query = new StringBuilder(prefix).append("(?");
+		for (int i = 1; i < count; i++) {
+			query.append(",?");
+		}
+		return query.append(")").toString();
+	}
+
+	/**
+	 * Like {@link #read(String, long, int)} from the start of the queue, but skips entries held by a lease.
+	 */
+	@Override
+	public QueueBatch peek(String queue, int max) {
+		return peek(queue, max, null);
+	}
+
+	@Override
+	public QueueBatch peek(String queue, int max, AttributeFilter filter) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: peek(%s, %d, %s)", queue, max, filter));
+		}
+		String query = "SELECT e.id,e.data FROM ets_queue_entry e JOIN (SELECT id FROM ets_queue_entry WHERE queue_id = ? AND " + VISIBLE + getCondition(filter) + " ORDER BY priority DESC, id LIMIT ?) h ON e.id = h.id ORDER BY e.priority DESC, e.id";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			statement.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+			statement.setInt(bind(filter, statement, 3), max + 1);
+			return toBatch(queue, statement.executeQuery(), max);
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * The ids are found on the (queue_id, id) index alone; only the rows returned are read from the table.
+	 */
+	@Override
+	public QueueBatch read(String queue, long afterId, int max) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: read(%s, %d, %d)", queue, afterId, max));
+		}
+		String query = "SELECT e.id,e.data FROM ets_queue_entry e JOIN (SELECT id FROM ets_queue_entry WHERE queue_id = ? AND id > ? ORDER BY id LIMIT ?) h ON e.id = h.id ORDER BY e.id";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			statement.setLong(2, afterId);
+			statement.setInt(3, max + 1);
+			return toBatch(queue, statement.executeQuery(), max);
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * Ids are taken from AUTO_INCREMENT when an entry is inserted, not when it is committed, so an entry may become
+	 * visible after entries with higher ids. Only entries created before the cut-off are read; the cut-off is taken
+	 * from the database clock, which also sets the created time, and is checked after the (queue_id, id) index.
+	 */
+	@Override
+	public QueueBatch read(String queue, long afterId, int max, int settleSeconds) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: read(%s, %d, %d, %d)", queue, afterId, max, settleSeconds));
+		}
+		String query = "SELECT e.id,e.data FROM ets_queue_entry e JOIN (SELECT id FROM ets_queue_entry WHERE queue_id = ? AND id > ? AND created < TIMESTAMPADD(SECOND, ?, CURRENT_TIMESTAMP) ORDER BY id LIMIT ?) h ON e.id = h.id ORDER BY e.id";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			statement.setLong(2, afterId);
+			statement.setInt(3, -settleSeconds);
+			statement.setInt(4, max + 1);
+			return toBatch(queue, statement.executeQuery(), max);
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * Collect up to max entries from a result set that was limited to max + 1 rows.
+	 *
+	 * @param queue
+	 * @param rs
+	 * @param max
+	 * @return
+	 * @throws SQLException
+	 */
+	protected QueueBatch toBatch(String queue, ResultSet rs, int max) throws SQLException {
+		PayloadCodec codec = codecs.apply(queue);
+		List<QueueEntry> entries = new ArrayList<QueueEntry>();
+		boolean hasMore = false;
+		while (rs.next()) {
+			if (entries.size() == max) {
+				hasMore = true;
+				break;
+			}
+			entries.add(new QueueEntry(rs.getLong("id"), codec.decode(rs.getBytes("data"))));
+		}
+		return new QueueBatch(entries, hasMore);
+	}
+
+	@Override
+	public int ack(String queue, List<Long> ids) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: ack(%s, %s)", queue, ids));
+		}
+		if (ids == null || ids.isEmpty()) {
+			return 0;
+		}
+		String query = getInListQuery("DELETE FROM ets_queue_entry WHERE queue_id = ? AND id IN ", ids.size());
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			for (int i = 0; i < ids.size(); i++) {
+				statement.setLong(i + 2, ids.get(i));
+			}
+			return statement.executeUpdate();
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * The statement deleting at most a chunk of expired entries of a queue, oldest first. Parameters: queue id,
+	 * cut-off time, chunk size.
+	 *
+	 * @return
+	 */
+	protected String getPurgeQuery() {
+		return "DELETE FROM ets_queue_entry WHERE queue_id = ? AND created < ? ORDER BY created LIMIT ?";
+	}
+
+	/**
+	 * The statement deleting at most a chunk of the entries of a queue up to an id, in id order. Parameters: queue
+	 * id, last id, chunk size.
+	 *
+	 * @return
+	 */
+	protected String getTrimQuery() {
+		return "DELETE FROM ets_queue_entry WHERE queue_id = ? AND id <= ? ORDER BY id LIMIT ?";
+	}
+
+	/**
+	 * Entries are deleted on the (queue_id, id) index in chunks, each committed separately to keep lock times short.
+	 */
+	@Override
+	public int trim(String queue, long throughId, int chunkSize) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: trim(%s, %d, %d)", queue, throughId, chunkSize));
+		}
+		int total = 0;
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(getTrimQuery())) {
+			int count;
+			do {
+				statement.setString(1, queue);
+				statement.setLong(2, throughId);
+				statement.setInt(3, chunkSize);
+				count = statement.executeUpdate();
+				total += count;
+			} while (count >= chunkSize);
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+		return total;
+	}
+
+	/**
+	 * Entries are deleted in chunks, each committed separately to keep lock times short.
+	 */
+	@Override
+	public int purge(String queue, int maxAge, int chunkSize) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: purge(%s, %d, %d)", queue, maxAge, chunkSize));
+		}
+		Calendar cal = Calendar.getInstance();
+		cal.add(Calendar.SECOND, -1 * maxAge);
+		Timestamp t = new Timestamp(cal.getTimeInMillis());
+		int total = 0;
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(getPurgeQuery())) {
+			int count;
+			do {
+				statement.setString(1, queue);
+				statement.setTimestamp(2, t);
+				statement.setInt(3, chunkSize);
+				count = statement.executeUpdate();
+				total += count;
+			} while (count >= chunkSize);
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+		return total;
+	}
+
+	/**
+	 * The statement raising at most a chunk of the entries of a queue created before a cut-off time to a priority,
+	 * oldest first. Parameters: new priority, queue id, cut-off time, new priority, chunk size.
+	 *
+	 * @return
+	 */
+	protected String getPromoteQuery() {
+		return "UPDATE ets_queue_entry SET priority = ? WHERE queue_id = ? AND created < ? AND priority < ? ORDER BY created LIMIT ?";
+	}
+
+	/**
+	 * Entries are found on the (queue_id, created) index and promoted in chunks, each committed separately to keep
+	 * lock times short.
+	 */
+	@Override
+	public int promote(String queue, int maxWait, int chunkSize) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: promote(%s, %d, %d)", queue, maxWait, chunkSize));
+		}
+		Timestamp t = new Timestamp(System.currentTimeMillis() - 1000L * maxWait);
+		int total = 0;
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(getPromoteQuery())) {
+			int count;
+			do {
+				statement.setInt(1, AGED_PRIORITY);
+				statement.setString(2, queue);
+				statement.setTimestamp(3, t);
+				statement.setInt(4, AGED_PRIORITY);
+				statement.setInt(5, chunkSize);
+				count = statement.executeUpdate();
+				total += count;
+			} while (count >= chunkSize);
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+		return total;
+	}
+
+	@Override
+	public long depth(String queue) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: depth(%s)", queue));
+		}
+		String query = "SELECT COUNT(*) FROM ets_queue_entry WHERE queue_id = ?";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			ResultSet rs = statement.executeQuery();
+			return rs.next() ? rs.getLong(1) : 0;
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * Read from the (queue_id, created) index.
+	 */
+	@Override
+	public long oldestEntryTime(String queue) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: oldestEntryTime(%s)", queue));
+		}
+		String query = "SELECT MIN(created) FROM ets_queue_entry WHERE queue_id = ?";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			ResultSet rs = statement.executeQuery();
+			Timestamp created = rs.next() ? rs.getTimestamp(1) : null;
+			return (created == null) ? 0 : created.getTime();
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * Stops at the first entry found on the (queue_id, id) index instead of counting them all.
+	 */
+	@Override
+	public boolean hasEntries(String queue) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: hasEntries(%s)", queue));
+		}
+		String query = "SELECT id FROM ets_queue_entry WHERE queue_id = ? LIMIT 1";
+		try (Connection connection = getConnection(); PreparedStatement statement = connection.prepareStatement(query)) {
+			statement.setString(1, queue);
+			ResultSet rs = statement.executeQuery();
+			return rs.next();
+		} catch (SQLException | IOException e) {
+			throw new WebServiceException(e);
+		}
+	}
+
+	/**
+	 * Entries are removed by the cascading foreign key when the queue is deleted.
+	 */
+	@Override
+	public void drop(String queue) {
+		// Nothing to do
+	}
+
+	/**
+	 * The connection pool is owned by the context.
+	 */
+	@Override
+	public void close() {
+		// Nothing to do
+	}
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.store;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import sailpoint.ets.cloud.queue.api.QueueBatch;
+import sailpoint.ets.cloud.queue.api.QueueEntry;
+import sailpoint.ets.cloud.queue.tools.Util;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Keeps queue entries in memory, in a lock-free deque per queue. Entries are lost when the application stops and
+ * are only visible on the node that received them, so this store suits latency-sensitive queues whose events can
+ * be regenerated, and test rigs.
+ */
+public class MemoryQueueStore implements QueueStore {
+
+	private static final Logger log = LogManager.getLogger(MemoryQueueStore.class);
+
+	private static class Entry {
+		private final QueueEntry entry;
+		private final long created;
+
+		Entry(long id, String data) {
+			this.entry = new QueueEntry(id, data);
+			this.created = System.currentTimeMillis();
+		}
+	}
+
+	private static class MemoryQueue {
+		private final ConcurrentLinkedDeque<Entry> entries = new ConcurrentLinkedDeque<Entry>();
+		// ConcurrentLinkedDeque.size() walks the whole deque
+		private final AtomicLong size = new AtomicLong();
+
+		boolean remove(Entry entry) {
+			if (entries.removeFirstOccurrence(entry)) {
+				size.decrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private final ConcurrentHashMap<String, MemoryQueue> queues = new ConcurrentHashMap<String, MemoryQueue>();
+	private final AtomicLong sequence = new AtomicLong();
+
+	private MemoryQueue getQueue(String queue) {
+		return queues.computeIfAbsent(queue, q -> new MemoryQueue());
+	}
+
+	/**
+	 * Producers on the same queue take a short lock, so ids are appended in increasing order and cursor reads
+	 * never skip an entry. Consumers never lock.
+	 */
+	@Override
+	public int enqueue(String queue, List<String> data) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: enqueue(%s, %s)", queue, (data == null) ? "null" : "List(********)"));
+		}
+		if (Util.isNullOrEmpty(queue) || data == null || data.isEmpty()) {
+			return 0;
+		}
+		MemoryQueue memoryQueue = getQueue(queue);
+		int count = 0;
+		synchronized (memoryQueue) {
+			for (String entry : data) {
+				if (Util.isNotNullOrEmpty(entry)) {
+					memoryQueue.entries.addLast(new Entry(sequence.incrementAndGet(), entry));
+					count++;
+				}
+			}
+			memoryQueue.size.addAndGet(count);
+		}
+		return count;
+	}
+
+	@Override
+	public QueueBatch dequeue(String queue, int max) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: dequeue(%s, %d)", queue, max));
+		}
+		MemoryQueue memoryQueue = queues.get(queue);
+		List<QueueEntry> entries = new ArrayList<QueueEntry>();
+		if (memoryQueue == null) {
+			return new QueueBatch(entries, false);
+		}
+		while (entries.size() < max) {
+			Entry entry = memoryQueue.entries.pollFirst();
+			if (entry == null) {
+				break;
+			}
+			memoryQueue.size.decrementAndGet();
+			entries.add(entry.entry);
+		}
+		return new QueueBatch(entries, !memoryQueue.entries.isEmpty());
+	}
+
+	@Override
+	public QueueBatch peek(String queue, int max) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: peek(%s, %d)", queue, max));
+		}
+		return read(queue, 0, max);
+	}
+
+	@Override
+	public QueueBatch read(String queue, long afterId, int max) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: read(%s, %d, %d)", queue, afterId, max));
+		}
+		MemoryQueue memoryQueue = queues.get(queue);
+		List<QueueEntry> entries = new ArrayList<QueueEntry>();
+		boolean hasMore = false;
+		if (memoryQueue != null) {
+			for (Entry entry : memoryQueue.entries) {
+				if (entry.entry.getId() <= afterId) {
+					continue;
+				}
+				if (entries.size() == max) {
+					hasMore = true;
+					break;
+				}
+				entries.add(entry.entry);
+			}
+		}
+		return new QueueBatch(entries, hasMore);
+	}
+
+	@Override
+	public int ack(String queue, List<Long> ids) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: ack(%s, %s)", queue, ids));
+		}
+		MemoryQueue memoryQueue = queues.get(queue);
+		if (memoryQueue == null || ids == null || ids.isEmpty()) {
+			return 0;
+		}
+		Set<Long> remaining = new HashSet<Long>(ids);
+		List<Entry> found = new ArrayList<Entry>();
+		Iterator<Entry> iterator = memoryQueue.entries.iterator();
+		while (iterator.hasNext() && !remaining.isEmpty()) {
+			Entry entry = iterator.next();
+			if (remaining.remove(entry.entry.getId())) {
+				found.add(entry);
+			}
+		}
+		int count = 0;
+		for (Entry entry : found) {
+			// Only counts entries not taken by a concurrent dequeue
+			if (memoryQueue.remove(entry)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Entries are in creation order, so expired entries are removed from the head until a younger one is found.
+	 */
+	@Override
+	public int purge(String queue, int maxAge, int chunkSize) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: purge(%s, %d, %d)", queue, maxAge, chunkSize));
+		}
+		MemoryQueue memoryQueue = queues.get(queue);
+		if (memoryQueue == null) {
+			return 0;
+		}
+		long cutOff = System.currentTimeMillis() - maxAge * 1000L;
+		int count = 0;
+		Entry entry;
+		while ((entry = memoryQueue.entries.peekFirst()) != null && entry.created < cutOff) {
+			if (memoryQueue.remove(entry)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public long depth(String queue) {
+		MemoryQueue memoryQueue = queues.get(queue);
+		return (memoryQueue == null) ? 0 : Math.max(0, memoryQueue.size.get());
+	}
+
+	@Override
+	public long oldestEntryTime(String queue) {
+		MemoryQueue memoryQueue = queues.get(queue);
+		Entry entry = (memoryQueue == null) ? null : memoryQueue.entries.peekFirst();
+		return (entry == null) ? 0 : entry.created;
+	}
+
+	@Override
+	public boolean hasEntries(String queue) {
+		MemoryQueue memoryQueue = queues.get(queue);
+		return memoryQueue != null && !memoryQueue.entries.isEmpty();
+	}
+
+	@Override
+	public void drop(String queue) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: drop(%s)", queue));
+		}
+		queues.remove(queue);
+	}
+
+	@Override
+	public void close() {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: close()");
+		}
+		queues.clear();
+	}
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.store;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.xml.ws.WebServiceException;
+
+/**
+ * 
+ * @author menno.pieters
+ *
+ * Thrown by {@link QueueStore#enqueueAll(Map)} when the entries of some queues were stored before writing another
+ * queue failed. The stored queues must not be written again.
+ */
+public class PartialWriteException extends WebServiceException {
+
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+	private final Map<String, Integer> written;
+
+	/**
+	 * @param written	The number of entries written per queue id, for the queues that were stored.
+	 * @param cause	The failure writing the next queue.
+	 */
+	public PartialWriteException(Map<String, Integer> written, Throwable cause) {
+		super(String.format("Stored %d queues before failing: %s", written.size(), cause.getMessage()), cause);
+		this.written = Collections.unmodifiableMap(written);
+	}
+
+	/**
+	 * The number of entries written per queue id, for the queues that were stored.
+	 *
+	 * @return
+	 */
+	public Map<String, Integer> getWritten() {
+		return written;
+	}
+
+}
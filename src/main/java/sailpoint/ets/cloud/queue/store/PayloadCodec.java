@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.store;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.xml.ws.WebServiceException;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Converts entry data to the bytes stored in the database and back. Data that is compressed is stored as a marker
+ * byte followed by a zlib stream; all other data is stored as plain UTF-8. JSON text never starts with the marker,
+ * so entries written before compression was enabled, or below the size threshold, are read back as they are.
+ * Decoding does not depend on the settings used to encode, so compression can be switched per queue at any time.
+ * <p>
+ * An optional preset dictionary, holding text that is common in the payloads (attribute names, recurring values),
+ * makes small payloads compress much better. The zlib stream records the checksum of the dictionary it was
+ * written with; entries written with a different dictionary than the current one can not be read.
+ */
+public class PayloadCodec {
+
+	public static final byte MARKER_DEFLATE = 0x01;
+
+	private final boolean compress;
+	private final int minSize;
+	private final byte[] dictionary;
+	private final int dictionaryId;
+	private final ThreadLocal<Deflater> deflaters;
+	private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater());
+
+	/**
+	 * A codec storing all data as plain UTF-8 and reading back both plain and compressed data.
+	 */
+	public PayloadCodec() {
+		this(false, Deflater.DEFAULT_COMPRESSION, 0, null);
+	}
+
+	/**
+	 * @param compress		Whether to compress data.
+	 * @param level			The Deflate compression level, 0-9 or -1 for the default.
+	 * @param minSize		Data shorter than this many bytes is stored as it is.
+	 * @param dictionary	An optional preset dictionary, or null.
+	 */
+	public PayloadCodec(boolean compress, final int level, int minSize, byte[] dictionary) {
+		this.compress = compress;
+		this.minSize = minSize;
+		this.dictionary = (dictionary == null || dictionary.length == 0) ? null : dictionary;
+		if (this.dictionary != null) {
+			Adler32 adler = new Adler32();
+			adler.update(this.dictionary);
+			this.dictionaryId = (int) adler.getValue();
+		} else {
+			this.dictionaryId = 0;
+		}
+		this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+	}
+
+	/**
+	 * Whether this codec compresses data.
+	 *
+	 * @return
+	 */
+	public boolean isCompressing() {
+		return compress;
+	}
+
+	/**
+	 * Convert entry data to the bytes to store. Compressed data is only used when it is smaller.
+	 *
+	 * @param data
+	 * @return
+	 */
+	public byte[] encode(String data) {
+		byte[] plain = data.getBytes(StandardCharsets.UTF_8);
+		if (!compress || plain.length < minSize) {
+			return plain;
+		}
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(plain);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length / 2 + 16);
+		out.write(MARKER_DEFLATE);
+		byte[] buffer = new byte[Math.min(plain.length, 8192)];
+		while (!deflater.finished()) {
+			int count = deflater.deflate(buffer);
+			out.write(buffer, 0, count);
+			if (out.size() >= plain.length) {
+				return plain;
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Convert stored bytes back to entry data.
+	 *
+	 * @param stored
+	 * @return
+	 */
+	public String decode(byte[] stored) {
+		if (stored == null) {
+			return null;
+		}
+		if (stored.length == 0 || stored[0] != MARKER_DEFLATE) {
+			return new String(stored, StandardCharsets.UTF_8);
+		}
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(stored, 1, stored.length - 1);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(stored.length * 4);
+		byte[] buffer = new byte[8192];
+		try {
+			while (!inflater.finished()) {
+				int count = inflater.inflate(buffer);
+				if (count == 0) {
+					if (inflater.needsDictionary()) {
+						if (dictionary == null || inflater.getAdler() != dictionaryId) {
+							throw new WebServiceException(String.format("Entry compressed with unknown dictionary %08x", inflater.getAdler()));
+						}
+						inflater.setDictionary(dictionary);
+					} else if (inflater.needsInput()) {
+						throw new WebServiceException("Truncated compressed entry");
+					}
+				}
+				out.write(buffer, 0, count);
+			}
+		} catch (DataFormatException e) {
+			throw new WebServiceException(e);
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,394 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.store;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.ws.WebServiceException;
+
+import sailpoint.ets.cloud.queue.api.QueueBatch;
+import sailpoint.ets.cloud.queue.api.QueueEntry;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Storage of queue entries. Entries get increasing ids in the order they are written, and are read back in id
+ * order. Stores that support priorities take entries from the head of a queue by priority first, highest first, and
+ * by id within a priority. Implementations must be thread safe, and report storage failures as
+ * {@link javax.xml.ws.WebServiceException}. Queues themselves, users and authorizations are not kept here.
+ */
+public interface QueueStore {
+
+	int MIN_PRIORITY = 0;
+	int MAX_PRIORITY = 9;
+	int DEFAULT_PRIORITY = 4;
+	/**
+	 * The priority entries that waited too long are raised to: one below MAX_PRIORITY, so aged entries never
+	 * overtake entries written with the highest priority.
+	 */
+	int AGED_PRIORITY = MAX_PRIORITY - 1;
+
+	/**
+	 * Append entries to a queue. Either all or none of them are stored.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param data	The data of the entries, in queue order.
+	 * @return	The number of entries written.
+	 */
+	int enqueue(String queue, List<String> data);
+
+	/**
+	 * Like {@link #enqueue(String, List)}, with a priority for the entries.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param data	The data of the entries, in queue order.
+	 * @param priority	From MIN_PRIORITY to MAX_PRIORITY; entries with a higher priority are taken first.
+	 * @return	The number of entries written.
+	 * @throws UnsupportedOperationException	If the priority is not the default and the store does not support
+	 * 		priorities.
+	 */
+	default int enqueue(String queue, List<String> data, int priority) {
+		if (priority == DEFAULT_PRIORITY) {
+			return enqueue(queue, data);
+		}
+		throw new UnsupportedOperationException(String.format("%s does not support priorities", getClass().getSimpleName()));
+	}
+
+	/**
+	 * Append entries to several queues at once. Stores that can, write them all in a single commit; by default each
+	 * queue is written separately, all or nothing per queue.
+	 *
+	 * @param data	The data of the entries per queue id, in queue order.
+	 * @return	The number of entries written per queue id.
+	 * @throws PartialWriteException	If some queues were stored before writing another one failed.
+	 */
+	default Map<String, Integer> enqueueAll(Map<String, List<String>> data) {
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, List<String>> entry : data.entrySet()) {
+			try {
+				counts.put(entry.getKey(), enqueue(entry.getKey(), entry.getValue()));
+			} catch (WebServiceException e) {
+				if (counts.isEmpty()) {
+					throw e;
+				}
+				throw new PartialWriteException(counts, e);
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Like {@link #enqueueAll(Map)}, with the same priority for all entries.
+	 *
+	 * @param data	The data of the entries per queue id, in queue order.
+	 * @param priority	From MIN_PRIORITY to MAX_PRIORITY.
+	 * @return	The number of entries written per queue id.
+	 * @throws UnsupportedOperationException	If the priority is not the default and the store does not support
+	 * 		priorities.
+	 */
+	default Map<String, Integer> enqueueAll(Map<String, List<String>> data, int priority) {
+		if (priority == DEFAULT_PRIORITY) {
+			return enqueueAll(data);
+		}
+		throw new UnsupportedOperationException(String.format("%s does not support priorities", getClass().getSimpleName()));
+	}
+
+	/**
+	 * Take up to max entries from the head of a queue, removing them. Concurrent callers never receive the same
+	 * entry.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param max	The maximum number of entries to take.
+	 * @return
+	 */
+	QueueBatch dequeue(String queue, int max);
+
+	/**
+	 * Like {@link #dequeue(String, int)}, but only takes entries matching the filter.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param max	The maximum number of entries to take.
+	 * @param filter	The filter, or null to take any entries.
+	 * @return
+	 * @throws UnsupportedOperationException	If a filter is given and the store does not support filters.
+	 */
+	default QueueBatch dequeue(String queue, int max, AttributeFilter filter) {
+		if (filter == null) {
+			return dequeue(queue, max);
+		}
+		throw new UnsupportedOperationException(String.format("%s does not support filters", getClass().getSimpleName()));
+	}
+
+	/**
+	 * Claim up to max entries from the head of a queue under a lease, without removing them. Each entry gets its
+	 * own lease id and stays hidden from dequeue, peek and other leases until the lease expires, after which it is
+	 * delivered again, or until it is acknowledged with {@link #ackLeases(String, List)}. Concurrent callers never
+	 * receive the same entry.
+	 * <p>
+	 * Every lease counts as a delivery attempt. An entry that was already delivered maxAttempts times is not
+	 * delivered again but moved to the dead-letter queue of the queue, in the same transaction; see
+	 * {@link QueueBatch#getDeadLettered()}.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param max	The maximum number of entries to claim.
+	 * @param leaseMillis	The time, in milliseconds, the entries stay hidden.
+	 * @param maxAttempts	The maximum number of deliveries of an entry, or 0 to deliver it until acknowledged.
+	 * @return
+	 * @throws UnsupportedOperationException	If the store does not support leases.
+	 */
+	default QueueBatch lease(String queue, int max, long leaseMillis, int maxAttempts) {
+		throw new UnsupportedOperationException(String.format("%s does not support leases", getClass().getSimpleName()));
+	}
+
+	/**
+	 * Like {@link #lease(String, int, long, int)}, but only claims entries matching the filter.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param max	The maximum number of entries to claim.
+	 * @param leaseMillis	The time, in milliseconds, the entries stay hidden.
+	 * @param maxAttempts	The maximum number of deliveries of an entry, or 0 to deliver it until acknowledged.
+	 * @param filter	The filter, or null to claim any entries.
+	 * @return
+	 * @throws UnsupportedOperationException	If the store does not support leases, or a filter is given and the
+	 * 		store does not support filters.
+	 */
+	default QueueBatch lease(String queue, int max, long leaseMillis, int maxAttempts, AttributeFilter filter) {
+		if (filter == null) {
+			return lease(queue, max, leaseMillis, maxAttempts);
+		}
+		throw new UnsupportedOperationException(String.format("%s does not support filters", getClass().getSimpleName()));
+	}
+
+	/**
+	 * Remove leased entries. Lease ids that are unknown, or whose entry was leased again after the lease expired,
+	 * are ignored.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param leaseIds	The lease ids of the entries.
+	 * @return	The number of entries removed.
+	 * @throws UnsupportedOperationException	If the store does not support leases.
+	 */
+	default int ackLeases(String queue, List<String> leaseIds) {
+		throw new UnsupportedOperationException(String.format("%s does not support leases", getClass().getSimpleName()));
+	}
+
+	/**
+	 * Make leased entries visible again before their leases expire, e.g. when the consumer holding them is gone.
+	 * Lease ids that are unknown, or whose entry was leased again after the lease expired, are ignored.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param leaseIds	The lease ids of the entries.
+	 * @return	The number of entries released.
+	 * @throws UnsupportedOperationException	If the store does not support leases.
+	 */
+	default int releaseLeases(String queue, List<String> leaseIds) {
+		throw new UnsupportedOperationException(String.format("%s does not support leases", getClass().getSimpleName()));
+	}
+
+	/**
+	 * Read up to max entries following the specified entry id from the dead-letter queue of a queue. The entries are
+	 * {@link sailpoint.ets.cloud.queue.api.DeadLetterEntry} instances.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param afterId	Only entries with a higher id are returned.
+	 * @param max	The maximum number of entries to read.
+	 * @return
+	 * @throws UnsupportedOperationException	If the store does not support dead-letter queues.
+	 */
+	default QueueBatch readDeadLetters(String queue, long afterId, int max) {
+		throw new UnsupportedOperationException(String.format("%s does not support dead-letter queues", getClass().getSimpleName()));
+	}
+
+	/**
+	 * The number of entries in the dead-letter queue of a queue.
+	 *
+	 * @param queue	The id of the queue.
+	 * @return
+	 * @throws UnsupportedOperationException	If the store does not support dead-letter queues.
+	 */
+	default long deadLetterDepth(String queue) {
+		throw new UnsupportedOperationException(String.format("%s does not support dead-letter queues", getClass().getSimpleName()));
+	}
+
+	/**
+	 * Move entries from the dead-letter queue back to the tail of the queue, in their original order and with their
+	 * delivery attempts reset. Ids that are not in the dead-letter queue are ignored.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param ids	The ids of the dead-lettered entries, or null for all of them.
+	 * @return	The number of entries moved.
+	 * @throws UnsupportedOperationException	If the store does not support dead-letter queues.
+	 */
+	default int redriveDeadLetters(String queue, List<Long> ids) {
+		throw new UnsupportedOperationException(String.format("%s does not support dead-letter queues", getClass().getSimpleName()));
+	}
+
+	/**
+	 * Remove entries from the dead-letter queue. Ids that are not in the dead-letter queue are ignored.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param ids	The ids of the dead-lettered entries, or null for all of them.
+	 * @return	The number of entries removed.
+	 * @throws UnsupportedOperationException	If the store does not support dead-letter queues.
+	 */
+	default int discardDeadLetters(String queue, List<Long> ids) {
+		throw new UnsupportedOperationException(String.format("%s does not support dead-letter queues", getClass().getSimpleName()));
+	}
+
+	/**
+	 * Read up to max entries from the head of a queue without removing them.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param max	The maximum number of entries to read.
+	 * @return
+	 */
+	QueueBatch peek(String queue, int max);
+
+	/**
+	 * Like {@link #peek(String, int)}, but only reads entries matching the filter.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param max	The maximum number of entries to read.
+	 * @param filter	The filter, or null to read any entries.
+	 * @return
+	 * @throws UnsupportedOperationException	If a filter is given and the store does not support filters.
+	 */
+	default QueueBatch peek(String queue, int max, AttributeFilter filter) {
+		if (filter == null) {
+			return peek(queue, max);
+		}
+		throw new UnsupportedOperationException(String.format("%s does not support filters", getClass().getSimpleName()));
+	}
+
+	/**
+	 * Read up to max entries following the specified entry id, without removing them.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param afterId	Only entries with a higher id are returned.
+	 * @param max	The maximum number of entries to read.
+	 * @return
+	 */
+	QueueBatch read(String queue, long afterId, int max);
+
+	/**
+	 * Like {@link #read(String, long, int)}, but only for entries written at least the specified time ago, for
+	 * readers that keep a cursor on the id of the last entry read. Stores whose ids are taken before the entries are
+	 * committed may make an entry visible after entries with higher ids; a cursor moved past those would skip it for
+	 * good. Leaving out the most recent entries gives such writes time to commit, but a write that takes longer
+	 * than that can still be skipped. Stores that make entries visible in id order read all entries.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param afterId	Only entries with a higher id are returned.
+	 * @param max	The maximum number of entries to read.
+	 * @param settleSeconds	The time, in seconds, since entries must have been written, by the clock of the store.
+	 * @return
+	 */
+	default QueueBatch read(String queue, long afterId, int max, int settleSeconds) {
+		return read(queue, afterId, max);
+	}
+
+	/**
+	 * Remove entries that were read earlier. Ids that are not in the queue are ignored.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param ids	The ids of the entries.
+	 * @return	The number of entries removed.
+	 */
+	int ack(String queue, List<Long> ids);
+
+	/**
+	 * Remove the entries of a queue up to and including the specified id, at most chunkSize at a time. Used to drop
+	 * the entries all subscriptions of a queue have read. By default the entries are read from the head of the
+	 * queue and acknowledged.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param throughId	The id of the last entry to remove.
+	 * @param chunkSize	The maximum number of entries removed per step.
+	 * @return	The number of entries removed.
+	 */
+	default int trim(String queue, long throughId, int chunkSize) {
+		int total = 0;
+		while (true) {
+			List<Long> ids = new ArrayList<Long>();
+			for (QueueEntry entry : read(queue, 0, chunkSize).getEntries()) {
+				if (entry.getId() > throughId) {
+					break;
+				}
+				ids.add(entry.getId());
+			}
+			if (ids.isEmpty()) {
+				return total;
+			}
+			int count = ack(queue, ids);
+			total += count;
+			if (count < chunkSize) {
+				return total;
+			}
+		}
+	}
+
+	/**
+	 * Remove the entries of a queue older than the specified age, at most chunkSize at a time.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param maxAge	The maximum age, in seconds.
+	 * @param chunkSize	The maximum number of entries removed per step.
+	 * @return	The number of entries removed.
+	 */
+	int purge(String queue, int maxAge, int chunkSize);
+
+	/**
+	 * Raise the entries of a queue that have waited longer than the specified time to AGED_PRIORITY, at most
+	 * chunkSize at a time, so a steady stream of higher priority entries cannot hold them back indefinitely. Stores
+	 * without priorities have nothing to promote.
+	 *
+	 * @param queue	The id of the queue.
+	 * @param maxWait	The time, in seconds, an entry may wait at its own priority.
+	 * @param chunkSize	The maximum number of entries promoted per step.
+	 * @return	The number of entries promoted.
+	 */
+	default int promote(String queue, int maxWait, int chunkSize) {
+		return 0;
+	}
+
+	/**
+	 * The number of entries in a queue.
+	 *
+	 * @param queue	The id of the queue.
+	 * @return
+	 */
+	long depth(String queue);
+
+	/**
+	 * The creation time of the oldest entry in a queue.
+	 *
+	 * @param queue	The id of the queue.
+	 * @return	The time in milliseconds since the epoch, or 0 if the queue is empty.
+	 */
+	long oldestEntryTime(String queue);
+
+	/**
+	 * Whether a queue holds any entries. Cheaper than {@link #depth(String)}.
+	 *
+	 * @param queue	The id of the queue.
+	 * @return
+	 */
+	boolean hasEntries(String queue);
+
+	/**
+	 * Remove all entries of a deleted queue.
+	 *
+	 * @param queue	The id of the queue.
+	 */
+	void drop(String queue);
+
+	/**
+	 * Release all resources held by the store.
+	 */
+	void close();
+}
@@ -0,0 +1,745 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import javax.xml.ws.WebServiceException;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LogManager;
+
+import sailpoint.ets.cloud.queue.api.QueueBatch;
+import sailpoint.ets.cloud.queue.api.QueueEntry;
+import sailpoint.ets.cloud.queue.tools.Util;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Keeps queue entries in append-only, memory-mapped segment files, one directory per queue. Entries are appended
+ * sequentially to the newest segment, which is rolled over when full. Reading an entry from the head, or
+ * acknowledging it, sets a flag in its record; the consumer offset (the first id that may still be unread) is kept
+ * in a separate file. A segment is deleted once all its entries are consumed or expired.
+ * <p>
+ * A single background thread flushes changed segments to disk (group commit): writers append to the mapped
+ * segment and then wait for the next flush, so one fsync covers all writes that arrived in the meantime.
+ * <p>
+ * Record layout: data length (int), CRC32 of the data (int), id (long), created (long), flags (byte), data. On
+ * startup, a queue is recovered by scanning its segments; a record with a bad checksum marks the end of the log.
+ */
+public class SegmentLogQueueStore implements QueueStore {
+
+	private static final Logger log = LogManager.getLogger(SegmentLogQueueStore.class);
+
+	private static final int HEADER_SIZE = 25;
+	private static final int OFFSET_CRC = 4;
+	private static final int OFFSET_ID = 8;
+	private static final int OFFSET_CREATED = 16;
+	private static final int OFFSET_FLAGS = 24;
+	private static final byte FLAG_CONSUMED = 1;
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CONSUMER_OFFSET_FILE = "consumer.offset";
+
+	/**
+	 * A segment file, mapped into memory. The positions of the records are kept in memory, so any entry can be
+	 * found by id.
+	 */
+	private static class Segment {
+		private final File file;
+		private final long baseId;
+		private final MappedByteBuffer buffer;
+		private int[] positions = new int[1024];
+		private int count = 0;
+		private int writePosition = 0;
+		private int live = 0;
+		private long lastCreated = 0;
+		private boolean dirty = false;
+
+		Segment(File file, long baseId, int size) throws IOException {
+			this.file = file;
+			this.baseId = baseId;
+			// The mapping stays valid after the file is closed
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, (int) raf.length()));
+			}
+		}
+
+		int position(long id) {
+			return positions[(int) (id - baseId)];
+		}
+
+		boolean fits(int length) {
+			return writePosition + HEADER_SIZE + length <= buffer.capacity();
+		}
+
+		void addPosition(int position) {
+			if (count == positions.length) {
+				positions = Arrays.copyOf(positions, count * 2);
+			}
+			positions[count++] = position;
+		}
+
+		boolean isConsumed(long id) {
+			return buffer.get(position(id) + OFFSET_FLAGS) != 0;
+		}
+
+		long getCreated(long id) {
+			return buffer.getLong(position(id) + OFFSET_CREATED);
+		}
+
+		String getData(long id) {
+			int position = position(id);
+			byte[] bytes = new byte[buffer.getInt(position)];
+			ByteBuffer view = buffer.duplicate();
+			view.position(position + HEADER_SIZE);
+			view.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * The segments and consumer offset of one queue. All access is synchronized on the instance.
+	 */
+	private class SegmentQueue {
+		private final File directory;
+		private final List<Segment> segments = new ArrayList<Segment>();
+		private final MappedByteBuffer consumerOffset;
+		private long nextId = 1;
+		private long head = 1;
+		private long live = 0;
+		private boolean closed = false;
+
+		SegmentQueue(File directory) throws IOException {
+			this.directory = directory;
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException(String.format("Unable to create directory %s", directory));
+			}
+			try (RandomAccessFile raf = new RandomAccessFile(new File(directory, CONSUMER_OFFSET_FILE), "rw")) {
+				this.consumerOffset = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+			}
+			recover();
+		}
+
+		/**
+		 * Rebuild the in-memory state from the segment files.
+		 *
+		 * @throws IOException
+		 */
+		private void recover() throws IOException {
+			File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+			List<Long> baseIds = new ArrayList<Long>();
+			if (files != null) {
+				for (File file : files) {
+					try {
+						baseIds.add(Long.valueOf(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						log.warn(String.format("Ignoring unexpected file %s", file));
+					}
+				}
+			}
+			Collections.sort(baseIds);
+			long offset = Math.max(1, consumerOffset.getLong(0));
+			for (Long baseId : baseIds) {
+				Segment segment = new Segment(segmentFile(baseId), baseId, 0);
+				scan(segment, offset);
+				segments.add(segment);
+				live += segment.live;
+				nextId = Math.max(nextId, segment.baseId + segment.count);
+			}
+			nextId = Math.max(nextId, offset);
+			head = offset;
+			advanceHead();
+			if (log.isDebugEnabled()) {
+				log.debug(String.format("recover: %s: %d segments, head %d, next %d, %d entries", directory, segments.size(), head, nextId, live));
+			}
+		}
+
+		private void scan(Segment segment, long offset) {
+			MappedByteBuffer buffer = segment.buffer;
+			int position = 0;
+			CRC32 crc = new CRC32();
+			while (position + HEADER_SIZE <= buffer.capacity()) {
+				int length = buffer.getInt(position);
+				if (length <= 0 || position + HEADER_SIZE + length > buffer.capacity()) {
+					break;
+				}
+				long id = buffer.getLong(position + OFFSET_ID);
+				if (id != segment.baseId + segment.count) {
+					break;
+				}
+				crc.reset();
+				ByteBuffer view = buffer.duplicate();
+				view.position(position + HEADER_SIZE);
+				view.limit(position + HEADER_SIZE + length);
+				crc.update(view);
+				if ((int) crc.getValue() != buffer.getInt(position + OFFSET_CRC)) {
+					log.warn(String.format("Torn record %d in %s, truncating the log", id, segment.file));
+					break;
+				}
+				segment.addPosition(position);
+				segment.lastCreated = buffer.getLong(position + OFFSET_CREATED);
+				if (id < offset && buffer.get(position + OFFSET_FLAGS) == 0) {
+					// The consumer offset was flushed, the flag was not
+					buffer.put(position + OFFSET_FLAGS, FLAG_CONSUMED);
+					segment.dirty = true;
+				}
+				if (buffer.get(position + OFFSET_FLAGS) == 0) {
+					segment.live++;
+				}
+				position += HEADER_SIZE + length;
+			}
+			segment.writePosition = position;
+			// Clear whatever follows, so it is not mistaken for a record later
+			for (int i = position; i < Math.min(position + HEADER_SIZE, buffer.capacity()); i++) {
+				buffer.put(i, (byte) 0);
+			}
+		}
+
+		private File segmentFile(long baseId) {
+			return new File(directory, String.format("%020d%s", baseId, SEGMENT_SUFFIX));
+		}
+
+		private Segment findSegment(long id) {
+			int low = 0;
+			int high = segments.size() - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				Segment segment = segments.get(middle);
+				if (id < segment.baseId) {
+					high = middle - 1;
+				} else if (id >= segment.baseId + segment.count) {
+					low = middle + 1;
+				} else {
+					return segment;
+				}
+			}
+			return null;
+		}
+
+		private Segment getActiveSegment() {
+			return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		}
+
+		void append(List<byte[]> data) throws IOException {
+			checkOpen();
+			CRC32 crc = new CRC32();
+			for (byte[] bytes : data) {
+				Segment segment = getActiveSegment();
+				if (segment == null || !segment.fits(bytes.length)) {
+					segment = new Segment(segmentFile(nextId), nextId, Math.max(segmentSize, HEADER_SIZE * 2 + bytes.length));
+					segments.add(segment);
+				}
+				long created = System.currentTimeMillis();
+				int position = segment.writePosition;
+				MappedByteBuffer buffer = segment.buffer;
+				crc.reset();
+				crc.update(bytes);
+				buffer.putInt(position + OFFSET_CRC, (int) crc.getValue());
+				buffer.putLong(position + OFFSET_ID, nextId);
+				buffer.putLong(position + OFFSET_CREATED, created);
+				buffer.put(position + OFFSET_FLAGS, (byte) 0);
+				ByteBuffer view = buffer.duplicate();
+				view.position(position + HEADER_SIZE);
+				view.put(bytes);
+				// The length is written last: a record without it is not part of the log
+				buffer.putInt(position, bytes.length);
+				segment.addPosition(position);
+				segment.writePosition = position + HEADER_SIZE + bytes.length;
+				segment.live++;
+				segment.lastCreated = created;
+				segment.dirty = true;
+				live++;
+				nextId++;
+			}
+		}
+
+		private void consume(Segment segment, long id) {
+			segment.buffer.put(segment.position(id) + OFFSET_FLAGS, FLAG_CONSUMED);
+			segment.live--;
+			segment.dirty = true;
+			live--;
+		}
+
+		/**
+		 * Find the first id, from the specified one on, in a segment that still holds entries. Skips ids of deleted
+		 * segments and of segments holding only consumed entries.
+		 *
+		 * @param id
+		 * @return	The id, or nextId if there is none.
+		 */
+		private long skip(long id) {
+			while (id < nextId) {
+				Segment segment = findSegment(id);
+				if (segment == null) {
+					long next = nextId;
+					for (Segment s : segments) {
+						if (s.baseId > id) {
+							next = s.baseId;
+							break;
+						}
+					}
+					id = next;
+				} else if (segment.live == 0) {
+					id = segment.baseId + segment.count;
+				} else {
+					return id;
+				}
+			}
+			return nextId;
+		}
+
+		/**
+		 * Move the consumer offset past consumed entries, and delete segments that no longer hold any entries.
+		 */
+		private void advanceHead() {
+			while ((head = skip(head)) < nextId && findSegment(head).isConsumed(head)) {
+				head++;
+			}
+			deleteSegments(Long.MIN_VALUE);
+		}
+
+		/**
+		 * Delete all segments, except the active one, that hold no entries or only entries created before the
+		 * cut-off time. Long.MIN_VALUE only deletes empty segments.
+		 *
+		 * @param cutOff
+		 * @return	The number of entries deleted.
+		 */
+		private int deleteSegments(long cutOff) {
+			int deleted = 0;
+			for (int i = segments.size() - 2; i >= 0; i--) {
+				Segment segment = segments.get(i);
+				if (segment.live == 0 || segment.lastCreated < cutOff) {
+					deleted += segment.live;
+					live -= segment.live;
+					segments.remove(i);
+					if (!segment.file.delete()) {
+						log.warn(String.format("Unable to delete segment %s", segment.file));
+					}
+				}
+			}
+			return deleted;
+		}
+
+		List<QueueEntry> read(long afterId, int max, boolean consume) {
+			List<QueueEntry> entries = new ArrayList<QueueEntry>();
+			long id = Math.max(head, afterId + 1);
+			while ((id = skip(id)) < nextId && entries.size() < max) {
+				Segment segment = findSegment(id);
+				if (!segment.isConsumed(id)) {
+					entries.add(new QueueEntry(id, segment.getData(id)));
+					if (consume) {
+						consume(segment, id);
+					}
+				}
+				id++;
+			}
+			if (consume) {
+				advanceHead();
+			}
+			return entries;
+		}
+
+		boolean hasMoreAfter(long id) {
+			id++;
+			while ((id = skip(id)) < nextId) {
+				if (!findSegment(id).isConsumed(id)) {
+					return true;
+				}
+				id++;
+			}
+			return false;
+		}
+
+		int ack(List<Long> ids) {
+			int count = 0;
+			for (Long id : ids) {
+				if (id == null || id < head || id >= nextId) {
+					continue;
+				}
+				Segment segment = findSegment(id);
+				if (segment != null && !segment.isConsumed(id)) {
+					consume(segment, id);
+					count++;
+				}
+			}
+			advanceHead();
+			return count;
+		}
+
+		/**
+		 * Remove expired entries: whole segments first, then at most chunkSize entries from the head.
+		 *
+		 * @param cutOff
+		 * @param chunkSize
+		 * @return	The number of entries removed, and whether more may be expired.
+		 */
+		int[] purge(long cutOff, int chunkSize) {
+			int count = deleteSegments(cutOff);
+			int expired = 0;
+			long id = head;
+			while ((id = skip(id)) < nextId && expired < chunkSize) {
+				Segment segment = findSegment(id);
+				if (segment.getCreated(id) >= cutOff) {
+					break;
+				}
+				if (!segment.isConsumed(id)) {
+					consume(segment, id);
+					expired++;
+				}
+				id++;
+			}
+			advanceHead();
+			return new int[] { count + expired, (expired >= chunkSize) ? 1 : 0 };
+		}
+
+		/**
+		 * Collect the segments changed since the last flush and store the consumer offset.
+		 *
+		 * @return
+		 */
+		List<MappedByteBuffer> takeDirty() {
+			List<MappedByteBuffer> dirty = new ArrayList<MappedByteBuffer>();
+			if (closed) {
+				return dirty;
+			}
+			for (Segment segment : segments) {
+				if (segment.dirty) {
+					segment.dirty = false;
+					dirty.add(segment.buffer);
+				}
+			}
+			if (consumerOffset.getLong(0) != head) {
+				consumerOffset.putLong(0, head);
+				dirty.add(consumerOffset);
+			}
+			return dirty;
+		}
+
+		private void checkOpen() throws IOException {
+			if (closed) {
+				throw new IOException(String.format("Queue log %s is closed", directory));
+			}
+		}
+
+		void close() {
+			closed = true;
+			segments.clear();
+		}
+	}
+
+	private final File baseDirectory;
+	private final int segmentSize;
+	private final boolean syncWrites;
+	private final long syncInterval;
+	private final ConcurrentHashMap<String, SegmentQueue> queues = new ConcurrentHashMap<String, SegmentQueue>();
+	private final Object syncLock = new Object();
+	private final Thread syncThread;
+	private long currentRound = 1;
+	private long completedRound = 0;
+	private int pendingWrites = 0;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param baseDirectory	The directory holding a sub-directory per queue.
+	 * @param segmentSize	The size, in bytes, of new segment files.
+	 * @param syncWrites	Whether enqueue waits until the entries are flushed to disk.
+	 * @param syncInterval	The maximum time, in milliseconds, between flushes.
+	 */
+	public SegmentLogQueueStore(File baseDirectory, int segmentSize, boolean syncWrites, long syncInterval) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Constructor: SegmentLogQueueStore(%s, %d, %b, %d)", baseDirectory, segmentSize, syncWrites, syncInterval));
+		}
+		if (!baseDirectory.isDirectory() && !baseDirectory.mkdirs()) {
+			throw new WebServiceException(String.format("Unable to create directory %s", baseDirectory));
+		}
+		this.baseDirectory = baseDirectory;
+		this.segmentSize = Math.max(64 * 1024, segmentSize);
+		this.syncWrites = syncWrites;
+		this.syncInterval = Math.max(1, syncInterval);
+		this.syncThread = new Thread(this::syncLoop, "ets-segment-log-sync");
+		this.syncThread.setDaemon(true);
+		this.syncThread.start();
+	}
+
+	/**
+	 * Queue ids are used as directory names, so anything but letters, digits, '-' and '_' is hex encoded.
+	 *
+	 * @param queue
+	 * @return
+	 */
+	private String directoryName(String queue) {
+		StringBuilder name = new StringBuilder();
+		for (char c : queue.toCharArray()) {
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_') {
+				name.append(c);
+			} else {
+				name.append(String.format(".%04x", (int) c));
+			}
+		}
+		return name.toString();
+	}
+
+	private SegmentQueue getQueue(String queue) {
+		if (closed) {
+			throw new WebServiceException("Segment log store is closed");
+		}
+		return queues.computeIfAbsent(queue, q -> {
+			try {
+				return new SegmentQueue(new File(baseDirectory, directoryName(q)));
+			} catch (IOException e) {
+				throw new WebServiceException(e);
+			}
+		});
+	}
+
+	@Override
+	public int enqueue(String queue, List<String> data) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: enqueue(%s, %s)", queue, (data == null) ? "null" : "List(********)"));
+		}
+		if (Util.isNullOrEmpty(queue) || data == null || data.isEmpty()) {
+			return 0;
+		}
+		List<byte[]> records = new ArrayList<byte[]>(data.size());
+		for (String entry : data) {
+			if (Util.isNotNullOrEmpty(entry)) {
+				records.add(entry.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		if (records.isEmpty()) {
+			return 0;
+		}
+		SegmentQueue segmentQueue = getQueue(queue);
+		try {
+			synchronized (segmentQueue) {
+				segmentQueue.append(records);
+			}
+		} catch (IOException e) {
+			throw new WebServiceException(e);
+		}
+		awaitSync();
+		return records.size();
+	}
+
+	/**
+	 * Wait for the next flush, which includes the entries just written.
+	 */
+	private void awaitSync() {
+		synchronized (syncLock) {
+			long round = currentRound;
+			pendingWrites++;
+			syncLock.notifyAll();
+			if (!syncWrites) {
+				return;
+			}
+			while (completedRound < round && !closed) {
+				try {
+					syncLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new WebServiceException(e);
+				}
+			}
+		}
+	}
+
+	private void syncLoop() {
+		while (true) {
+			long round;
+			synchronized (syncLock) {
+				if (pendingWrites == 0 && !closed) {
+					try {
+						syncLock.wait(syncInterval);
+					} catch (InterruptedException e) {
+						// Closing
+					}
+				}
+				round = currentRound++;
+				pendingWrites = 0;
+			}
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				log.error("Unable to flush the segment log", e);
+			}
+			synchronized (syncLock) {
+				completedRound = round;
+				syncLock.notifyAll();
+				if (closed) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void flush() {
+		for (SegmentQueue segmentQueue : queues.values()) {
+			List<MappedByteBuffer> dirty;
+			synchronized (segmentQueue) {
+				dirty = segmentQueue.takeDirty();
+			}
+			for (MappedByteBuffer buffer : dirty) {
+				buffer.force();
+			}
+		}
+	}
+
+	@Override
+	public QueueBatch dequeue(String queue, int max) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: dequeue(%s, %d)", queue, max));
+		}
+		SegmentQueue segmentQueue = getQueue(queue);
+		synchronized (segmentQueue) {
+			List<QueueEntry> entries = segmentQueue.read(0, max, true);
+			return new QueueBatch(entries, segmentQueue.live > 0);
+		}
+	}
+
+	@Override
+	public QueueBatch peek(String queue, int max) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: peek(%s, %d)", queue, max));
+		}
+		return read(queue, 0, max);
+	}
+
+	@Override
+	public QueueBatch read(String queue, long afterId, int max) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: read(%s, %d, %d)", queue, afterId, max));
+		}
+		SegmentQueue segmentQueue = getQueue(queue);
+		synchronized (segmentQueue) {
+			List<QueueEntry> entries = segmentQueue.read(afterId, max, false);
+			boolean hasMore = !entries.isEmpty() && segmentQueue.hasMoreAfter(entries.get(entries.size() - 1).getId());
+			return new QueueBatch(entries, hasMore);
+		}
+	}
+
+	@Override
+	public int ack(String queue, List<Long> ids) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: ack(%s, %s)", queue, ids));
+		}
+		if (ids == null || ids.isEmpty()) {
+			return 0;
+		}
+		SegmentQueue segmentQueue = getQueue(queue);
+		synchronized (segmentQueue) {
+			return segmentQueue.ack(ids);
+		}
+	}
+
+	/**
+	 * Segments holding only expired entries are deleted as a whole. Expired entries in the remaining segments are
+	 * flagged, chunkSize at a time, releasing the queue in between.
+	 */
+	@Override
+	public int purge(String queue, int maxAge, int chunkSize) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: purge(%s, %d, %d)", queue, maxAge, chunkSize));
+		}
+		SegmentQueue segmentQueue = getQueue(queue);
+		long cutOff = System.currentTimeMillis() - maxAge * 1000L;
+		int total = 0;
+		int[] result;
+		do {
+			synchronized (segmentQueue) {
+				result = segmentQueue.purge(cutOff, Math.max(1, chunkSize));
+			}
+			total += result[0];
+		} while (result[1] > 0);
+		return total;
+	}
+
+	@Override
+	public long depth(String queue) {
+		SegmentQueue segmentQueue = getQueue(queue);
+		synchronized (segmentQueue) {
+			return segmentQueue.live;
+		}
+	}
+
+	/**
+	 * Entries are appended in creation order, so the head, the first entry not consumed, is the oldest.
+	 */
+	@Override
+	public long oldestEntryTime(String queue) {
+		SegmentQueue segmentQueue = getQueue(queue);
+		synchronized (segmentQueue) {
+			long head = segmentQueue.skip(segmentQueue.head);
+			return (head < segmentQueue.nextId) ? segmentQueue.findSegment(head).getCreated(head) : 0;
+		}
+	}
+
+	@Override
+	public boolean hasEntries(String queue) {
+		return depth(queue) > 0;
+	}
+
+	@Override
+	public void drop(String queue) {
+		if (log.isDebugEnabled()) {
+			log.debug(String.format("Enter: drop(%s)", queue));
+		}
+		SegmentQueue segmentQueue = queues.remove(queue);
+		File directory = new File(baseDirectory, directoryName(queue));
+		if (segmentQueue != null) {
+			synchronized (segmentQueue) {
+				segmentQueue.close();
+			}
+		}
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.delete()) {
+					log.warn(String.format("Unable to delete %s", file));
+				}
+			}
+		}
+		if (directory.exists() && !directory.delete()) {
+			log.warn(String.format("Unable to delete %s", directory));
+		}
+	}
+
+	/**
+	 * Flush all queues and stop the background thread.
+	 */
+	@Override
+	public void close() {
+		if (log.isDebugEnabled()) {
+			log.debug("Enter: close()");
+		}
+		synchronized (syncLock) {
+			closed = true;
+			syncLock.notifyAll();
+		}
+		try {
+			syncThread.join(10000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (SegmentQueue segmentQueue : queues.values()) {
+			synchronized (segmentQueue) {
+				segmentQueue.close();
+			}
+		}
+		queues.clear();
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.tools;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Helpers to handle event payloads as JSON text, without building objects from them. Payloads are checked with a
+ * streaming reader, which only tokenizes the text, and are otherwise passed on as they are.
+ */
+public class JsonPayload {
+
+	public JsonPayload() { }
+
+	/**
+	 * Check that the text is a single JSON object.
+	 *
+	 * @param payload
+	 * @return	The payload.
+	 * @throws IllegalArgumentException	If the text is not a single JSON object.
+	 */
+	public static String requireObject(String payload) {
+		if (Util.isNullOrEmpty(payload)) {
+			throw new IllegalArgumentException("Event must be a JSON object");
+		}
+		try (JsonReader reader = new JsonReader(new StringReader(payload))) {
+			if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+				throw new IllegalArgumentException("Event must be a JSON object");
+			}
+			reader.skipValue();
+			if (reader.peek() != JsonToken.END_DOCUMENT) {
+				throw new IllegalArgumentException("Unexpected content after the event");
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException(String.format("Invalid JSON: %s", e.getMessage()), e);
+		}
+		return payload;
+	}
+
+	/**
+	 * Split a JSON array of objects into the text of each object. Null elements are skipped.
+	 *
+	 * @param payload
+	 * @return
+	 * @throws IllegalArgumentException	If the text is not a JSON array of objects.
+	 */
+	public static List<String> splitArray(String payload) {
+		if (Util.isNullOrEmpty(payload)) {
+			throw new IllegalArgumentException("Events must be a JSON array");
+		}
+		try (JsonReader reader = new JsonReader(new StringReader(payload))) {
+			if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+				throw new IllegalArgumentException("Events must be a JSON array");
+			}
+			reader.beginArray();
+			while (reader.hasNext()) {
+				JsonToken token = reader.peek();
+				if (token != JsonToken.BEGIN_OBJECT && token != JsonToken.NULL) {
+					throw new IllegalArgumentException("Each event must be a JSON object");
+				}
+				reader.skipValue();
+			}
+			reader.endArray();
+			if (reader.peek() != JsonToken.END_DOCUMENT) {
+				throw new IllegalArgumentException("Unexpected content after the events");
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException(String.format("Invalid JSON: %s", e.getMessage()), e);
+		}
+		// The text is valid, so the objects can be found by counting brackets outside of strings
+		List<String> objects = new ArrayList<String>();
+		int depth = 0;
+		int start = -1;
+		boolean inString = false;
+		for (int i = 0; i < payload.length(); i++) {
+			char c = payload.charAt(i);
+			if (inString) {
+				if (c == '\\') {
+					i++;
+				} else if (c == '"') {
+					inString = false;
+				}
+			} else if (c == '"') {
+				inString = true;
+			} else if (c == '{' || c == '[') {
+				if (depth == 1) {
+					start = i;
+				}
+				depth++;
+			} else if (c == '}' || c == ']') {
+				depth--;
+				if (depth == 1) {
+					objects.add(payload.substring(start, i + 1));
+				}
+			}
+		}
+		return objects;
+	}
+
+	/**
+	 * Add a property to the front of a JSON object, without parsing it.
+	 *
+	 * @param object	The text of a JSON object.
+	 * @param name		The name of the property.
+	 * @param value		The JSON text of the value.
+	 * @return
+	 */
+	public static String withProperty(String object, String name, String value) {
+		int open = object.indexOf('{');
+		int next = open + 1;
+		while (next < object.length() && Character.isWhitespace(object.charAt(next))) {
+			next++;
+		}
+		if (open < 0 || next >= object.length()) {
+			return object;
+		}
+		StringBuilder result = new StringBuilder(object.length() + name.length() + value.length() + 4);
+		result.append(object, 0, open + 1);
+		result.append('"').append(name).append("\":").append(value);
+		if (object.charAt(next) != '}') {
+			result.append(',');
+		}
+		result.append(object, open + 1, object.length());
+		return result.toString();
+	}
+
+	/**
+	 * Find a value in a JSON object by the names of the properties leading to it, reading the text only as far as
+	 * needed.
+	 *
+	 * @param payload	The text of a JSON object.
+	 * @param path		The property names, outermost first.
+	 * @return	The value if it is a string, number or boolean, otherwise null.
+	 */
+	public static String extract(String payload, String[] path) {
+		if (Util.isNullOrEmpty(payload) || path == null || path.length == 0) {
+			return null;
+		}
+		try (JsonReader reader = new JsonReader(new StringReader(payload))) {
+			for (String name : path) {
+				if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+					return null;
+				}
+				reader.beginObject();
+				boolean found = false;
+				while (!found && reader.hasNext()) {
+					found = name.equals(reader.nextName());
+					if (!found) {
+						reader.skipValue();
+					}
+				}
+				if (!found) {
+					return null;
+				}
+			}
+			switch (reader.peek()) {
+			case STRING:
+			case NUMBER:
+				return reader.nextString();
+			case BOOLEAN:
+				return String.valueOf(reader.nextBoolean());
+			default:
+				return null;
+			}
+		} catch (IOException | IllegalStateException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The JSON text of a string value.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static String quote(String value) {
+		StringBuilder result = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				result.append('\\').append(c);
+			} else if (c < 0x20) {
+				result.append(String.format("\\u%04x", (int) c));
+			} else {
+				result.append(c);
+			}
+		}
+		return result.append('"').toString();
+	}
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2022-2023 SailPoint Technologies
+ */
+package sailpoint.ets.cloud.queue.tools;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ *
+ * @author menno.pieters
+ *
+ * Writes metrics in the Prometheus text exposition format, version 0.0.4. Each metric starts with its HELP and
+ * TYPE lines, followed by its samples.
+ */
+public class PrometheusWriter {
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	public static final String COUNTER = "counter";
+	public static final String GAUGE = "gauge";
+	public static final String HISTOGRAM = "histogram";
+
+	private final Writer writer;
+
+	public PrometheusWriter(Writer writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * Start a metric.
+	 *
+	 * @param name
+	 * @param help
+	 * @param type	One of COUNTER, GAUGE or HISTOGRAM.
+	 * @throws IOException
+	 */
+	public void header(String name, String help, String type) throws IOException {
+		writer.write("# HELP ");
+		writer.write(name);
+		writer.write(' ');
+		writer.write(help.replace("\\", "\\\\").replace("\n", "\\n"));
+		writer.write("\n# TYPE ");
+		writer.write(name);
+		writer.write(' ');
+		writer.write(type);
+		writer.write('\n');
+	}
+
+	/**
+	 * Write a sample without labels.
+	 *
+	 * @param name
+	 * @param value
+	 * @throws IOException
+	 */
+	public void sample(String name, double value) throws IOException {
+		sample(name, null, value);
+	}
+
+	/**
+	 * Write a sample.
+	 *
+	 * @param name
+	 * @param labels	Label names and values, alternating, or null.
+	 * @param value
+	 * @throws IOException
+	 */
+	public void sample(String name, String[] labels, double value) throws IOException {
+		writer.write(name);
+		if (labels != null && labels.length > 1) {
+			writer.write('{');
+			for (int i = 0; i + 1 < labels.length; i += 2) {
+				if (i > 0) {
+					writer.write(',');
+				}
+				writer.write(labels[i]);
+				writer.write("=\"");
+				writer.write(escape(labels[i + 1]));
+				writer.write('"');
+			}
+			writer.write('}');
+		}
+		writer.write(' ');
+		writer.write(format(value));
+		writer.write('\n');
+	}
+
+	/**
+	 * Write a metric with a single sample.
+	 *
+	 * @param name
+	 * @param help
+	 * @param type
+	 * @param value
+	 * @throws IOException
+	 */
+	public void metric(String name, String help, String type, double value) throws IOException {
+		header(name, help, type);
+		sample(name, value);
+	}
+
+	public void flush() throws IOException {
+		writer.flush();
+	}
+
+	/**
+	 * Format a value: whole numbers without a fraction, infinity as +Inf/-Inf.
+	 *
+	 * @param value
+	 * @return
+	 */
+	public static String format(double value) {
+		if (Double.isNaN(value)) {
+			return "NaN";
+		}
+		if (Double.isInfinite(value)) {
+			return (value > 0) ? "+Inf" : "-Inf";
+		}
+		if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	private static String escape(String value) {
+		if (value == null) {
+			return "";
+		}
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
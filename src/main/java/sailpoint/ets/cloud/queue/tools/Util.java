@@ -328,4 +328,35 @@ public class Util {
 		}
 		return null;
 	}
+
+	/**
+	 * Convert a duration such as "500ms", "30s" or "2m" to a number of milliseconds. A value without a unit is
+	 * taken to be in seconds. Zero is returned if the value is null, empty or cannot be parsed.
+	 *
+	 * @param s
+	 * @return
+	 */
+	public static long parseDuration(String s) {
+		if (Util.isNullOrEmpty(s)) {
+			return 0;
+		}
+		String value = s.trim().toLowerCase();
+		long factor = 1000;
+		if (value.endsWith("ms")) {
+			factor = 1;
+			value = value.substring(0, value.length() - 2);
+		} else if (value.endsWith("s")) {
+			value = value.substring(0, value.length() - 1);
+		} else if (value.endsWith("m")) {
+			factor = 60000;
+			value = value.substring(0, value.length() - 1);
+		}
+		try {
+			long l = Long.parseLong(value.trim());
+			return (l > 0) ? l * factor : 0;
+		} catch (NumberFormatException e) {
+			// Silently ignore
+		}
+		return 0;
+	}
 }
@@ -0,0 +1,55 @@
+--
+-- Schema for the embedded H2 database, equivalent to mysql_create.sql with migrations up to 002.
+-- The database must be opened with MODE=MySQL;DATABASE_TO_LOWER=TRUE.
+--
+
+CREATE TABLE IF NOT EXISTS `ets_queue` (
+  `id` varchar(128) NOT NULL,
+  `description` clob,
+  `max_age` int DEFAULT NULL,
+  PRIMARY KEY (`id`)
+);
+
+CREATE TABLE IF NOT EXISTS `ets_user` (
+  `id` varchar(128) NOT NULL,
+  `name` varchar(128) NOT NULL,
+  `display_name` varchar(128) DEFAULT NULL,
+  `active` tinyint NOT NULL DEFAULT 1,
+  PRIMARY KEY (`id`),
+  CONSTRAINT `idx_name` UNIQUE (`name`)
+);
+
+CREATE TABLE IF NOT EXISTS `ets_queue_access` (
+  `queue_id` varchar(128) NOT NULL,
+  `user_id` varchar(128) NOT NULL,
+  `read` tinyint NOT NULL DEFAULT 0,
+  `write` tinyint NOT NULL DEFAULT 0,
+  PRIMARY KEY (`user_id`,`queue_id`),
+  CONSTRAINT `fk_xs_queue_id` FOREIGN KEY (`queue_id`) REFERENCES `ets_queue` (`id`) ON DELETE CASCADE ON UPDATE CASCADE,
+  CONSTRAINT `fk_xs_user_id` FOREIGN KEY (`user_id`) REFERENCES `ets_user` (`id`) ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+CREATE INDEX IF NOT EXISTS `fk_queue_id_idx` ON `ets_queue_access` (`queue_id`);
+
+CREATE TABLE IF NOT EXISTS `ets_queue_entry` (
+  `id` bigint NOT NULL AUTO_INCREMENT,
+  `queue_id` varchar(128) NOT NULL,
+  `created` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  `data` clob NOT NULL,
+  PRIMARY KEY (`id`),
+  CONSTRAINT `fk_queue_id` FOREIGN KEY (`queue_id`) REFERENCES `ets_queue` (`id`) ON DELETE CASCADE ON UPDATE CASCADE
+);
+
+CREATE INDEX IF NOT EXISTS `idx_queue_id_id` ON `ets_queue_entry` (`queue_id`,`id`);
+CREATE INDEX IF NOT EXISTS `idx_queue_id_created` ON `ets_queue_entry` (`queue_id`,`created`);
+
+CREATE TABLE IF NOT EXISTS `ets_user_token` (
+  `id` varchar(128) NOT NULL,
+  `token` varchar(768) NOT NULL,
+  `user_id` varchar(128) NOT NULL,
+  `description` varchar(256) DEFAULT NULL,
+  `expiration` timestamp DEFAULT NULL,
+  PRIMARY KEY (`id`),
+  CONSTRAINT `token_UNIQUE` UNIQUE (`token`),
+  CONSTRAINT `fk_user_id` FOREIGN KEY (`user_id`) REFERENCES `ets_user` (`id`) ON DELETE CASCADE ON UPDATE CASCADE
+);
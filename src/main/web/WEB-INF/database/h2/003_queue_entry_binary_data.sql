@@ -0,0 +1,6 @@
+--
+-- Store queue entry data as bytes, so entries can be compressed (see queue.compression).
+-- Existing entries are converted to their UTF-8 bytes and are read back as plain text.
+--
+
+ALTER TABLE `ets_queue_entry` ALTER COLUMN `data` SET DATA TYPE blob;
@@ -0,0 +1,9 @@
+--
+-- Lease-based delivery: a polled entry can be claimed under a lease instead of being deleted. It stays
+-- in the table, hidden from other consumers until lease_expires, and is deleted when acknowledged by
+-- its lease_id.
+--
+
+ALTER TABLE `ets_queue_entry` ADD COLUMN IF NOT EXISTS `lease_id` varchar(64) DEFAULT NULL;
+ALTER TABLE `ets_queue_entry` ADD COLUMN IF NOT EXISTS `lease_expires` timestamp(3) DEFAULT NULL;
+CREATE INDEX IF NOT EXISTS `idx_lease_id` ON `ets_queue_entry` (`lease_id`);
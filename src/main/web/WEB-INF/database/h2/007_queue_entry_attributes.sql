@@ -0,0 +1,16 @@
+--
+-- Payload attributes extracted when entries are written (queue.attributes), so polls can filter on
+-- them in SQL. Each attribute column is indexed with the queue and the entry id, so a filtered poll
+-- reads the matching entries in queue order. Dead-lettered entries keep their attributes.
+--
+
+ALTER TABLE `ets_queue_entry` ADD COLUMN IF NOT EXISTS `attr1` varchar(255) DEFAULT NULL;
+ALTER TABLE `ets_queue_entry` ADD COLUMN IF NOT EXISTS `attr2` varchar(255) DEFAULT NULL;
+ALTER TABLE `ets_queue_entry` ADD COLUMN IF NOT EXISTS `attr3` varchar(255) DEFAULT NULL;
+CREATE INDEX IF NOT EXISTS `idx_queue_id_attr1` ON `ets_queue_entry` (`queue_id`,`attr1`,`id`);
+CREATE INDEX IF NOT EXISTS `idx_queue_id_attr2` ON `ets_queue_entry` (`queue_id`,`attr2`,`id`);
+CREATE INDEX IF NOT EXISTS `idx_queue_id_attr3` ON `ets_queue_entry` (`queue_id`,`attr3`,`id`);
+
+ALTER TABLE `ets_queue_dead_letter` ADD COLUMN IF NOT EXISTS `attr1` varchar(255) DEFAULT NULL;
+ALTER TABLE `ets_queue_dead_letter` ADD COLUMN IF NOT EXISTS `attr2` varchar(255) DEFAULT NULL;
+ALTER TABLE `ets_queue_dead_letter` ADD COLUMN IF NOT EXISTS `attr3` varchar(255) DEFAULT NULL;
@@ -0,0 +1,17 @@
+--
+-- Widen the queue entry id and index the queue head.
+--
+-- The (queue_id, id) index serves polling in queue order and replaces the plain queue_id index
+-- used by the foreign key. The (queue_id, created) index serves purging expired entries.
+-- The id_UNIQUE keys duplicate the primary keys.
+--
+
+ALTER TABLE `ets_queue_entry`
+  MODIFY `id` bigint NOT NULL AUTO_INCREMENT,
+  ADD KEY `idx_queue_id_id` (`queue_id`,`id`),
+  ADD KEY `idx_queue_id_created` (`queue_id`,`created`),
+  DROP KEY `fk_queue_id_idx`,
+  DROP KEY `id_UNIQUE`;
+
+ALTER TABLE `ets_queue`
+  DROP KEY `id_UNIQUE`;
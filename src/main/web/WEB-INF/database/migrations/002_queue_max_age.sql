@@ -0,0 +1,7 @@
+--
+-- Per-queue maximum entry age in seconds. NULL uses the configured default (db.queue.maxage),
+-- 0 keeps entries until they are read.
+--
+
+ALTER TABLE `ets_queue`
+  ADD COLUMN `max_age` int DEFAULT NULL;
@@ -0,0 +1,7 @@
+--
+-- Store queue entry data as bytes, so entries can be compressed (see queue.compression).
+-- Existing entries keep their UTF-8 bytes and are read back as plain text.
+--
+
+ALTER TABLE `ets_queue_entry`
+  MODIFY `data` longblob NOT NULL;
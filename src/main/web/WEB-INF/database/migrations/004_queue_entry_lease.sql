@@ -0,0 +1,10 @@
+--
+-- Lease-based delivery: a polled entry can be claimed under a lease instead of being deleted. It stays
+-- in the table, hidden from other consumers until lease_expires, and is deleted when acknowledged by
+-- its lease_id.
+--
+
+ALTER TABLE `ets_queue_entry`
+  ADD COLUMN `lease_id` varchar(64) DEFAULT NULL,
+  ADD COLUMN `lease_expires` datetime(3) DEFAULT NULL,
+  ADD KEY `idx_lease_id` (`lease_id`);
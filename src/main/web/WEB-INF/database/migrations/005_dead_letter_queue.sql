@@ -0,0 +1,23 @@
+--
+-- Dead-letter queues: every leased delivery of an entry counts as an attempt. An entry whose lease
+-- expired after max_attempts deliveries (NULL uses db.queue.maxattempts, 0 retries forever) is moved
+-- to ets_queue_dead_letter, the dead-letter queue of its queue, until an administrator redrives it.
+--
+
+ALTER TABLE `ets_queue`
+  ADD COLUMN `max_attempts` int DEFAULT NULL;
+
+ALTER TABLE `ets_queue_entry`
+  ADD COLUMN `attempts` int NOT NULL DEFAULT 0;
+
+CREATE TABLE `ets_queue_dead_letter` (
+  `id` bigint NOT NULL,
+  `queue_id` varchar(128) NOT NULL,
+  `created` datetime NOT NULL,
+  `dead_lettered` datetime(3) NOT NULL,
+  `attempts` int NOT NULL,
+  `data` longblob NOT NULL,
+  PRIMARY KEY (`id`),
+  KEY `idx_dl_queue_id_id` (`queue_id`,`id`),
+  CONSTRAINT `fk_dl_queue_id` FOREIGN KEY (`queue_id`) REFERENCES `ets_queue` (`id`) ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
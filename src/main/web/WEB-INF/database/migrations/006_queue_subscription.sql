@@ -0,0 +1,14 @@
+--
+-- Fan-out subscriptions: a queue with subscriptions keeps each entry once, and every subscription
+-- reads it with its own cursor, the id of the last entry it consumed. Entries are removed when all
+-- subscriptions of the queue have read past them.
+--
+
+CREATE TABLE `ets_queue_subscription` (
+  `queue_id` varchar(128) NOT NULL,
+  `name` varchar(128) NOT NULL,
+  `last_id` bigint NOT NULL DEFAULT 0,
+  `created` datetime NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`queue_id`,`name`),
+  CONSTRAINT `fk_sub_queue_id` FOREIGN KEY (`queue_id`) REFERENCES `ets_queue` (`id`) ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
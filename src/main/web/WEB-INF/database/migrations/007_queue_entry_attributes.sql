@@ -0,0 +1,18 @@
+--
+-- Payload attributes extracted when entries are written (queue.attributes), so polls can filter on
+-- them in SQL. Each attribute column is indexed with the queue and the entry id, so a filtered poll
+-- reads the matching entries in queue order. Dead-lettered entries keep their attributes.
+--
+
+ALTER TABLE `ets_queue_entry`
+  ADD COLUMN `attr1` varchar(255) DEFAULT NULL,
+  ADD COLUMN `attr2` varchar(255) DEFAULT NULL,
+  ADD COLUMN `attr3` varchar(255) DEFAULT NULL,
+  ADD KEY `idx_queue_id_attr1` (`queue_id`,`attr1`,`id`),
+  ADD KEY `idx_queue_id_attr2` (`queue_id`,`attr2`,`id`),
+  ADD KEY `idx_queue_id_attr3` (`queue_id`,`attr3`,`id`);
+
+ALTER TABLE `ets_queue_dead_letter`
+  ADD COLUMN `attr1` varchar(255) DEFAULT NULL,
+  ADD COLUMN `attr2` varchar(255) DEFAULT NULL,
+  ADD COLUMN `attr3` varchar(255) DEFAULT NULL;
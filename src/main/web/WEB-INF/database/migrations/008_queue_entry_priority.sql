@@ -0,0 +1,20 @@
+--
+-- Entry priorities: entries are taken from the head of a queue by priority, highest first, and in
+-- queue order within a priority. Existing entries get the default priority, 4. The reaper raises
+-- entries that waited longer than db.queue.priority.aging to priority 8, below the highest, 9.
+-- The attribute indexes are rebuilt with the priority, so filtered polls read the matching entries in
+-- priority order from the index.
+--
+
+ALTER TABLE `ets_queue_entry`
+  ADD COLUMN `priority` tinyint NOT NULL DEFAULT 4,
+  ADD KEY `idx_queue_id_priority` (`queue_id`,`priority` DESC,`id`),
+  DROP KEY `idx_queue_id_attr1`,
+  DROP KEY `idx_queue_id_attr2`,
+  DROP KEY `idx_queue_id_attr3`,
+  ADD KEY `idx_queue_id_attr1_priority` (`queue_id`,`attr1`,`priority` DESC,`id`),
+  ADD KEY `idx_queue_id_attr2_priority` (`queue_id`,`attr2`,`priority` DESC,`id`),
+  ADD KEY `idx_queue_id_attr3_priority` (`queue_id`,`attr3`,`priority` DESC,`id`);
+
+ALTER TABLE `ets_queue_dead_letter`
+  ADD COLUMN `priority` tinyint NOT NULL DEFAULT 4;
@@ -30,8 +30,9 @@ DROP TABLE IF EXISTS `ets_queue`;
 CREATE TABLE `ets_queue` (
   `id` varchar(128) NOT NULL,
   `description` longtext,
-  PRIMARY KEY (`id`),
-  UNIQUE KEY `id_UNIQUE` (`id`)
+  `max_age` int DEFAULT NULL,
+  `max_attempts` int DEFAULT NULL,
+  PRIMARY KEY (`id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
 --
@@ -56,15 +57,62 @@ CREATE TABLE `ets_queue_access` (
 
 DROP TABLE IF EXISTS `ets_queue_entry`;
 CREATE TABLE `ets_queue_entry` (
-  `id` int NOT NULL AUTO_INCREMENT,
+  `id` bigint NOT NULL AUTO_INCREMENT,
   `queue_id` varchar(128) NOT NULL,
   `created` datetime NOT NULL DEFAULT CURRENT_TIMESTAMP,
-  `data` longtext NOT NULL,
+  `data` longblob NOT NULL,
+  `lease_id` varchar(64) DEFAULT NULL,
+  `lease_expires` datetime(3) DEFAULT NULL,
+  `attempts` int NOT NULL DEFAULT 0,
+  `attr1` varchar(255) DEFAULT NULL,
+  `attr2` varchar(255) DEFAULT NULL,
+  `attr3` varchar(255) DEFAULT NULL,
+  `priority` tinyint NOT NULL DEFAULT 4,
   PRIMARY KEY (`id`),
-  UNIQUE KEY `id_UNIQUE` (`id`),
-  KEY `fk_queue_id_idx` (`queue_id`),
+  KEY `idx_queue_id_id` (`queue_id`,`id`),
+  KEY `idx_queue_id_created` (`queue_id`,`created`),
+  KEY `idx_lease_id` (`lease_id`),
+  KEY `idx_queue_id_attr1_priority` (`queue_id`,`attr1`,`priority` DESC,`id`),
+  KEY `idx_queue_id_attr2_priority` (`queue_id`,`attr2`,`priority` DESC,`id`),
+  KEY `idx_queue_id_attr3_priority` (`queue_id`,`attr3`,`priority` DESC,`id`),
+  KEY `idx_queue_id_priority` (`queue_id`,`priority` DESC,`id`),
   CONSTRAINT `fk_queue_id` FOREIGN KEY (`queue_id`) REFERENCES `ets_queue` (`id`) ON DELETE CASCADE ON UPDATE CASCADE
-) ENGINE=InnoDB AUTO_INCREMENT=36 DEFAULT CHARSET=utf8;
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+--
+-- Table structure for table `ets_queue_dead_letter`
+--
+
+DROP TABLE IF EXISTS `ets_queue_dead_letter`;
+CREATE TABLE `ets_queue_dead_letter` (
+  `id` bigint NOT NULL,
+  `queue_id` varchar(128) NOT NULL,
+  `created` datetime NOT NULL,
+  `dead_lettered` datetime(3) NOT NULL,
+  `attempts` int NOT NULL,
+  `data` longblob NOT NULL,
+  `attr1` varchar(255) DEFAULT NULL,
+  `attr2` varchar(255) DEFAULT NULL,
+  `attr3` varchar(255) DEFAULT NULL,
+  `priority` tinyint NOT NULL DEFAULT 4,
+  PRIMARY KEY (`id`),
+  KEY `idx_dl_queue_id_id` (`queue_id`,`id`),
+  CONSTRAINT `fk_dl_queue_id` FOREIGN KEY (`queue_id`) REFERENCES `ets_queue` (`id`) ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+--
+-- Table structure for table `ets_queue_subscription`
+--
+
+DROP TABLE IF EXISTS `ets_queue_subscription`;
+CREATE TABLE `ets_queue_subscription` (
+  `queue_id` varchar(128) NOT NULL,
+  `name` varchar(128) NOT NULL,
+  `last_id` bigint NOT NULL DEFAULT 0,
+  `created` datetime NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`queue_id`,`name`),
+  CONSTRAINT `fk_sub_queue_id` FOREIGN KEY (`queue_id`) REFERENCES `ets_queue` (`id`) ON DELETE CASCADE ON UPDATE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
 --
 -- Table structure for table `ets_user`
@@ -97,6 +145,22 @@ CREATE TABLE `ets_user_token` (
   CONSTRAINT `fk_user_id` FOREIGN KEY (`user_id`) REFERENCES `ets_user` (`id`) ON DELETE CASCADE ON UPDATE CASCADE
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
+--
+-- Table structure for table `ets_schema_version`
+--
+-- Records the migrations in WEB-INF/database/migrations that this schema already includes.
+--
+
+DROP TABLE IF EXISTS `ets_schema_version`;
+CREATE TABLE `ets_schema_version` (
+  `version` int NOT NULL,
+  `description` varchar(256) DEFAULT NULL,
+  `applied` datetime NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`version`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+INSERT INTO `ets_schema_version` (`version`, `description`) VALUES (1, 'queue entry indexes'), (2, 'queue max age'), (3, 'queue entry binary data'), (4, 'queue entry lease'), (5, 'dead letter queue'), (6, 'queue subscription'), (7, 'queue entry attributes'), (8, 'queue entry priority');
+
 /*!40101 SET SQL_MODE=@OLD_SQL_MODE */;
 /*!40014 SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS */;
 /*!40014 SET UNIQUE_CHECKS=@OLD_UNIQUE_CHECKS */;